@@ -1,6 +1,9 @@
 package tukano.api;
 
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.InputStream;
 
 /**
  * Interface of blob service for storing short videos media ...
@@ -23,6 +26,15 @@ public interface Blobs {
 	 */
 	Result<Void> upload(String blobId, byte[] bytes, Cookie cookie);
 
+	/**
+	 * Uploads a short video blob resource from a stream, without holding the whole blob in memory.
+	 * Same outcomes as upload(blobId, bytes, cookie).
+	 * 
+	 * @param blobId the identifier generated by the Shorts service for this blob
+	 * @param in     the contents of the blob resource, read until the end
+	 */
+	Result<Void> upload(String blobId, InputStream in, Cookie cookie);
+
 	/**
 	 * Downloads a short video blob resource in a single byte chunk of bytes.
 	 * 
@@ -32,6 +44,27 @@ public interface Blobs {
 	 */
 	Result<byte[]> download(String blobId, Cookie cookie);
 
+	/**
+	 * A blob ready to be streamed: its size, the SHA-256 of its contents,
+	 * and the byte ranges of it, written when the response is sent.
+	 */
+	interface Download {
+		long size();
+
+		String sha256();
+
+		StreamingOutput range(long offset, long length);
+	}
+
+	/**
+	 * Downloads a short video blob resource as a stream, without holding the whole blob in memory.
+	 * 
+	 * @param blobId the id of the blob;
+	 * @return (OK, download), if the blob exists;
+	 * 			 NOT_FOUND, if no blob matches the provided blobId
+	 */
+	Result<Download> downloadStream(String blobId, Cookie cookie);
+
 
 	/**
 	 * Deletes a short video blob resource.
@@ -0,0 +1,101 @@
+package tukano.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ *
+ * One page of a listing, along with the opaque token that continues it.
+ *
+ * Tokens encode the position of the last item of the page (e.g. the keys of the last row,
+ * or a database continuation token); clients must pass them back unchanged.
+ *
+ * @param <T> type of the items of the page
+ */
+public record Page<T>(List<T> items, String next) {
+
+	public static final int DEFAULT_SIZE = 100;
+	public static final int MAX_SIZE = 1000;
+
+	private static final String SEPARATOR = "\u0000";
+
+	/**
+	 * Returns true if there are more items after this page.
+	 */
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	/**
+	 * Clamps a requested page size to [1, MAX_SIZE], using DEFAULT_SIZE if none was requested.
+	 */
+	public static int size(Integer requested) {
+		if (requested == null || requested <= 0)
+			return DEFAULT_SIZE;
+		return Math.min(requested, MAX_SIZE);
+	}
+
+	/**
+	 * Builds a page from up to size + 1 items read in order, where the extra item only tells that there is a next page.
+	 *
+	 * @param keys the keys of an item, encoded in the token that resumes right after it
+	 */
+	public static <T> Page<T> of(List<T> items, int size, Function<T, String[]> keys) {
+		if (items.size() <= size)
+			return new Page<>(items, null);
+
+		var page = items.subList(0, size);
+		return new Page<>(List.copyOf(page), token(keys.apply(page.get(size - 1))));
+	}
+
+	/**
+	 * Pages through a list that is already in memory, for backends without a native way to resume a listing.
+	 *
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public static <T> Page<T> slice(List<T> all, String token, int size) {
+		int from = token == null ? 0 : Integer.parseInt(keys(token, 1)[0]);
+		int to = Math.min(all.size(), from + size);
+		if (from < 0 || from > all.size())
+			throw new IllegalArgumentException("Page token out of range: " + from);
+
+		return new Page<>(List.copyOf(all.subList(from, to)), to < all.size() ? token(String.valueOf(to)) : null);
+	}
+
+	/**
+	 * Pages through the full listing returned by a backend, BAD_REQUEST if the token is malformed.
+	 */
+	public static <T> Result<Page<T>> slice(Result<List<T>> all, String token, int size) {
+		if (!all.isOK())
+			return Result.error(all.error());
+		try {
+			return Result.ok(slice(all.value(), token, size));
+		} catch (IllegalArgumentException e) {
+			return Result.error(Result.ErrorCode.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Encodes the given keys as an opaque token.
+	 */
+	public static String token(String... keys) {
+		var joined = String.join(SEPARATOR, keys);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(joined.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decodes a token built by token(...), checking that it holds the expected number of keys.
+	 *
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public static String[] keys(String token, int count) {
+		var joined = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+		var keys = joined.split(SEPARATOR, -1);
+		if (keys.length != count)
+			throw new IllegalArgumentException("Malformed page token: " + Arrays.toString(keys));
+		return keys;
+	}
+}
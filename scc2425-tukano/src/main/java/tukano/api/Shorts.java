@@ -51,6 +51,15 @@ public interface Shorts {
 	 * 	NOT_FOUND if shortId does not match an existing short
 	 */
 	Result<Short> getShort(String shortId);
+
+	/**
+	 * Retrieves several Shorts at once, e.g. of the identifiers returned by getShorts or getFeed.
+	 * 
+	 * @param shortIds the unique identifiers of the shorts
+	 * @return (OK, List<Short>) with the shorts that exist, in the order of shortIds and without duplicates;
+	 * 	BAD_REQUEST if shortIds is null
+	 */
+	Result<List<Short>> getShorts(List<String> shortIds);
 	
 	
 	/**
@@ -60,6 +69,18 @@ public interface Shorts {
 	 * @return (OK, List<String>|empty list) or NOT_FOUND if the user does not exist
 	 */
 	Result<List<String>> getShorts( String userId );
+
+	/**
+	 * Retrieves one page of the shorts of a user, continuing from a token returned with the previous page.
+	 * The default implementation pages through the full list of getShorts(userId).
+	 *
+	 * @param token the token of the previous page, or null for the first page
+	 * @param size the max number of shorts of the page
+	 * @return (OK, Page<String>) or NOT_FOUND if the user does not exist, BAD_REQUEST if the token is malformed
+	 */
+	default Result<Page<String>> getShorts(String userId, String token, int size) {
+		return Page.slice(getShorts(userId), token, size);
+	}
 	
 	/**
 	 * Causes a user to follow the shorts of another user.
@@ -85,6 +106,14 @@ public interface Shorts {
 	 * FORBIDDEN if the password is incorrect
 	 */
 	Result<List<String>> followers(String userId, String password);
+
+	/**
+	 * Retrieves one page of the followers of a user, see followers(userId, password) and getShorts(userId, token, size).
+	 */
+	default Result<Page<String>> followers(String userId, String password, String token, int size) {
+		return Page.slice(followers(userId, password), token, size);
+	}
+
 	/**
 	 * Adds or removes a like to a short
 	 * 
@@ -111,6 +140,13 @@ public interface Shorts {
 	 */
 	Result<List<String>> likes(String shortId, String password);
 
+	/**
+	 * Returns one page of the likes of a short, see likes(shortId, password) and getShorts(userId, token, size).
+	 */
+	default Result<Page<String>> likes(String shortId, String password, String token, int size) {
+		return Page.slice(likes(shortId, password), token, size);
+	}
+
 
 	/**
 	 * Returns the feed of the user, sorted by age. The feed is the list of shorts made by
@@ -124,5 +160,12 @@ public interface Shorts {
 	 */
 	Result<List<String>> getFeed(String userId, String password);
 
+	/**
+	 * Returns one page of the feed of the user, see getFeed(userId, password) and getShorts(userId, token, size).
+	 */
+	default Result<Page<String>> getFeed(String userId, String password, String token, int size) {
+		return Page.slice(getFeed(userId, password), token, size);
+	}
+
 	Result<Void> deleteAllShorts(String userId, String password, Cookie cookie);
 }
@@ -34,6 +34,15 @@ public interface Users {
 	 *         NOT_FOUND - if no user exists with the provided userId
 	 */
 	Result<User> getUser(String userId, String pwd, boolean useCache);
+
+	/**
+	 * Obtains the public information of several users at once, e.g. of the ids returned by followers or likes.
+	 * The password of the users returned must be set to the empty string "".
+	 * @param userIds - the userIds of the users
+	 * @return OK and the users that exist, in the order of userIds and without duplicates;
+	 *         BAD_REQUEST - if userIds is null
+	 */
+	Result<List<User>> getUsers(List<String> userIds);
 	
 	/**
 	 * Modifies the information of a user. Value of null, in any field of the user argument, means the field will remain as unchanged 
@@ -68,5 +77,17 @@ public interface Users {
 	 * @return OK when the search was successful, regardless of the number of hits (including 0 hits). 
 	 *         BAD_REQUEST - otherwise.
 	 */
-	Result<List<User>> searchUsers(String pattern);	
+	Result<List<User>> searchUsers(String pattern);
+
+	/**
+	 * Returns one page of the users matching the pattern, continuing from a token returned with the previous page.
+	 * The default implementation pages through the full list of searchUsers(pattern).
+	 *
+	 * @param token the token of the previous page, or null for the first page
+	 * @param size the max number of users of the page
+	 * @return OK when the search was successful, BAD_REQUEST if the token is malformed
+	 */
+	default Result<Page<User>> searchUsers(String pattern, String token, int size) {
+		return Page.slice(searchUsers(pattern), token, size);
+	}	
 }
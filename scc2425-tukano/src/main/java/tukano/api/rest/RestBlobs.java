@@ -3,7 +3,11 @@ package tukano.api.rest;
 
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import java.io.InputStream;
 
 import static tukano.impl.rest.RestLoginResource.COOKIE_KEY;
 
@@ -15,16 +19,20 @@ public interface RestBlobs {
     String TOKEN = "token";
     String BLOBS = "blobs";
     String USER_ID = "userId";
+    String RANGE = "Range";
+    String IF_RANGE = "If-Range";
 
     @POST
     @Path("/{" + BLOB_ID + "}")
     @Consumes(MediaType.APPLICATION_OCTET_STREAM)
-    void upload(@PathParam(BLOB_ID) String blobId, byte[] bytes, @CookieParam(COOKIE_KEY) Cookie cookie);
+    void upload(@PathParam(BLOB_ID) String blobId, InputStream in, @CookieParam(COOKIE_KEY) Cookie cookie);
 
     @GET
     @Path("/{" + BLOB_ID + "}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    byte[] download(@PathParam(BLOB_ID) String blobId, @CookieParam(COOKIE_KEY) Cookie cookie);
+    Response download(@PathParam(BLOB_ID) String blobId, @CookieParam(COOKIE_KEY) Cookie cookie,
+                      @HeaderParam(RANGE) String range, @HeaderParam(IF_RANGE) String ifRange,
+                      @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch);
 
     @DELETE
     @Path("/{" + BLOB_ID + "}")
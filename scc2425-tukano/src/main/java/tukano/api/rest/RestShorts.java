@@ -17,6 +17,7 @@ public interface RestShorts {
 	String USER_ID1 = "userId1";
 	String USER_ID2 = "userId2";
 	String SHORT_ID = "shortId";
+	String ID = "id";
 	
 	String PWD = "pwd";
 	String FEED = "/feed";
@@ -24,6 +25,8 @@ public interface RestShorts {
 	String LIKES = "/likes";
 	String SHORTS = "/shorts";
 	String FOLLOWERS = "/followers";
+	String PAGE_TOKEN = "pageToken";
+	String PAGE_SIZE = "pageSize";
 	
 	@POST
 	@Path("/{" + USER_ID + "}")
@@ -39,10 +42,17 @@ public interface RestShorts {
 	@Produces(MediaType.APPLICATION_JSON)
 	Short getShort(@PathParam(SHORT_ID) String shortId);
 
+	/**
+	 * Batch lookup of the shorts of the repeated id query parameter, e.g. /shorts?id=a&id=b
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	List<Short> getShorts(@QueryParam(ID) List<String> shortIds);
+
 	@GET
 	@Path("/{" + USER_ID + "}" + SHORTS )
 	@Produces(MediaType.APPLICATION_JSON)
-	List<String> getShorts(@PathParam(USER_ID) String userId);
+	List<String> getShorts(@PathParam(USER_ID) String userId, @QueryParam(PAGE_TOKEN) String pageToken, @QueryParam(PAGE_SIZE) Integer pageSize);
 
 	@POST
 	@Path("/{" + USER_ID1 + "}/{" + USER_ID2 + "}" + FOLLOWERS )
@@ -52,7 +62,7 @@ public interface RestShorts {
 	@GET
 	@Path("/{" + USER_ID + "}" + FOLLOWERS )
 	@Produces(MediaType.APPLICATION_JSON)
-	List<String> followers(@PathParam(USER_ID) String userId, @QueryParam(PWD) String password);
+	List<String> followers(@PathParam(USER_ID) String userId, @QueryParam(PWD) String password, @QueryParam(PAGE_TOKEN) String pageToken, @QueryParam(PAGE_SIZE) Integer pageSize);
 
 	@POST
 	@Path("/{" + SHORT_ID + "}/{" + USER_ID + "}" + LIKES )
@@ -62,12 +72,12 @@ public interface RestShorts {
 	@GET
 	@Path("/{" + SHORT_ID + "}" + LIKES )
 	@Produces(MediaType.APPLICATION_JSON)
-	List<String> likes(@PathParam(SHORT_ID) String shortId, @QueryParam(PWD) String password);
+	List<String> likes(@PathParam(SHORT_ID) String shortId, @QueryParam(PWD) String password, @QueryParam(PAGE_TOKEN) String pageToken, @QueryParam(PAGE_SIZE) Integer pageSize);
 
 	@GET
 	@Path("/{" + USER_ID + "}" + FEED )
 	@Produces(MediaType.APPLICATION_JSON)
-	List<String> getFeed( @PathParam(USER_ID) String userId, @QueryParam(PWD) String password);
+	List<String> getFeed( @PathParam(USER_ID) String userId, @QueryParam(PWD) String password, @QueryParam(PAGE_TOKEN) String pageToken, @QueryParam(PAGE_SIZE) Integer pageSize);
 	
 	@DELETE
 	@Path("/{" + USER_ID + "}" + SHORTS)
@@ -21,7 +21,10 @@ public interface RestUsers {
 
 	String PWD = "pwd";
 	String QUERY = "query";
+	String PAGE_TOKEN = "pageToken";
+	String PAGE_SIZE = "pageSize";
 	String USER_ID = "userId";
+	String ID = "id";
 	
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
@@ -48,7 +51,11 @@ public interface RestUsers {
 	User deleteUser(@PathParam(USER_ID) String userId, @QueryParam(PWD) String pwd);
 	
 	
+	/**
+	 * Searches the users matching the query, or, given a repeated id query parameter (e.g. /users?id=a&id=b),
+	 * looks up those users in a single batch.
+	 */
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	List<User> searchUsers(@QueryParam(QUERY) String pattern);	
+	List<User> searchUsers(@QueryParam(QUERY) String pattern, @QueryParam(PAGE_TOKEN) String pageToken, @QueryParam(PAGE_SIZE) Integer pageSize, @QueryParam(ID) List<String> userIds);	
 }
@@ -0,0 +1,125 @@
+package tukano.impl;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosBulkExecutionOptions;
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.CosmosItemOperationType;
+import utils.Sleep;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Runs large sets of item operations, such as the cascades deleting the data of a user, with the bulk executor.
+ * <p>
+ * The operations are sent in chunks of at most batchSize, and the SDK groups each chunk by partition and sends the
+ * groups concurrently, up to maxConcurrency requests per partition range. Operations throttled (429), timed out
+ * or refused while the service is busy are retried after the delay asked by the service, up to maxAttempts times;
+ * progress is logged after each chunk. The operations run in the background throughput control group
+ * (see {@link CosmosClientContainer}), so they do not throttle the requests of users.
+ * Deleting a missing item is not a failure, so a cascade can be run again.
+ */
+public class CosmosBulk {
+
+    private static final Logger Log = Logger.getLogger(CosmosBulk.class.getName());
+
+    private static final Set<Integer> RETRYABLE = Set.of(408, 429, 449, 503);
+
+    // wait before retrying when the service does not ask for one
+    private static final long DEFAULT_RETRY_WAIT = 100;
+
+    /**
+     * The outcome of a set of operations: the applied ones, those that were no-ops (deletes of missing items)
+     * and the number of those that failed.
+     */
+    public record Outcome(List<CosmosItemOperation> applied, int missing, int failed) {
+        public boolean isOK() {
+            return failed == 0;
+        }
+    }
+
+    private final int batchSize;
+    private final int maxConcurrency;
+    private final int maxAttempts;
+    private final long maxRetryWait;
+    // throughput control group of the operations, null for none
+    private final String throughputControlGroup;
+
+    public CosmosBulk(int batchSize, int maxConcurrency, int maxAttempts, long maxRetryWait,
+                      String throughputControlGroup) {
+        this.batchSize = batchSize;
+        this.maxConcurrency = maxConcurrency;
+        this.maxAttempts = maxAttempts;
+        this.maxRetryWait = maxRetryWait;
+        this.throughputControlGroup = throughputControlGroup;
+    }
+
+    public static CosmosBulk fromProperties(Properties props) {
+        return new CosmosBulk(
+                Integer.parseInt(props.getProperty("bulkBatchSize", "1000")),
+                // the SDK accepts 1 to 5 concurrent requests per partition range
+                Math.max(1, Math.min(5, Integer.parseInt(props.getProperty("bulkMaxConcurrency", "2")))),
+                Integer.parseInt(props.getProperty("bulkMaxAttempts", "5")),
+                Long.parseLong(props.getProperty("bulkMaxRetryWait", "5000")),
+                CosmosClientContainer.backgroundGroup(props));
+    }
+
+    /**
+     * Runs the operations on the container, describing them as what in the progress logged.
+     */
+    public Outcome execute(CosmosContainer container, List<CosmosItemOperation> operations, String what) {
+        var options = new CosmosBulkExecutionOptions().setMaxMicroBatchConcurrency(maxConcurrency);
+        if (throughputControlGroup != null)
+            options.setThroughputControlGroupName(throughputControlGroup);
+        List<CosmosItemOperation> applied = new ArrayList<>();
+        int missing = 0, failed = 0;
+
+        for (int from = 0; from < operations.size(); from += batchSize) {
+            List<CosmosItemOperation> pending = operations.subList(from, Math.min(operations.size(), from + batchSize));
+            for (int attempt = 1; !pending.isEmpty(); attempt++) {
+                List<CosmosItemOperation> retry = new ArrayList<>();
+                long wait = 0;
+                for (var r : container.executeBulkOperations(pending, options)) {
+                    var response = r.getResponse();
+                    int status = response != null ? response.getStatusCode()
+                            : r.getException() instanceof CosmosException e ? e.getStatusCode() : -1;
+                    if (response != null && response.isSuccessStatusCode())
+                        applied.add(r.getOperation());
+                    else if (status == 404 && r.getOperation().getOperationType() == CosmosItemOperationType.DELETE)
+                        missing++;
+                    else if (RETRYABLE.contains(status) && attempt < maxAttempts) {
+                        retry.add(r.getOperation());
+                        wait = Math.max(wait, retryAfter(r.getResponse() != null ? r.getResponse().getRetryAfterDuration()
+                                : ((CosmosException) r.getException()).getRetryAfterDuration()));
+                    } else {
+                        failed++;
+                        Log.warning(() -> String.format("Bulk operation on %s of %s failed: %s\n",
+                                r.getOperation().getId(), what, response != null ? status : r.getException()));
+                    }
+                }
+                if (!retry.isEmpty()) {
+                    int n = retry.size(), next = attempt + 1;
+                    long delay = wait;
+                    Log.info(() -> String.format("%s: retrying %d throttled operations in %d ms (attempt %d)\n",
+                            what, n, delay, next));
+                    Sleep.ms((int) delay);
+                }
+                pending = retry;
+            }
+
+            int done = Math.min(operations.size(), from + batchSize), total = operations.size();
+            Log.info(() -> String.format("%s: %d of %d operations done\n", what, done, total));
+        }
+        return new Outcome(applied, missing, failed);
+    }
+
+    private long retryAfter(Duration asked) {
+        long ms = asked == null || asked.isZero() ? DEFAULT_RETRY_WAIT : asked.toMillis();
+        return Math.min(ms, maxRetryWait);
+    }
+}
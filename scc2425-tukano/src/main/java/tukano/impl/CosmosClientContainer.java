@@ -1,16 +1,50 @@
 package tukano.impl;
 
 import com.azure.cosmos.*;
+import com.azure.cosmos.models.CompositePath;
+import com.azure.cosmos.models.CosmosContainerProperties;
+import com.azure.cosmos.models.CosmosItemRequestOptions;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.IncludedPath;
+import com.azure.cosmos.models.IndexingPolicy;
 import utils.ResourceUtils;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
 
+/**
+ * The Cosmos DB client shared by the Cosmos backends, configured from db.properties.
+ * <p>
+ * By default the client connects in direct mode, to the replicas over TCP, so point reads skip the gateway hop.
+ * Background work (cascade deletes, migrations, like reconciliation) runs in a local throughput control group
+ * capped to a fraction of the throughput of each container, so it does not throttle requests of users.
+ * Point reads and queries can be given their own end-to-end latency policies, failing fast instead of waiting
+ * for the retries of the SDK.
+ */
 public class CosmosClientContainer {
 
+    private static final Logger Log = Logger.getLogger(CosmosClientContainer.class.getName());
+
+    public static final String BACKGROUND_GROUP = "background";
+
     private static CosmosClientContainer instance;
     private final CosmosClient client;
     private final CosmosDatabase database;
 
+    // end-to-end latency policies of point reads and queries, null for the policy of the client
+    private final CosmosEndToEndOperationLatencyPolicyConfig pointReadPolicy;
+    private final CosmosEndToEndOperationLatencyPolicyConfig queryPolicy;
+
+    // throughput control group of background work, null if disabled
+    private final ThroughputControlGroupConfig backgroundGroup;
+    private final Set<String> controlledContainers = new HashSet<>();
+
     private CosmosClientContainer() {
         Properties props = new Properties();
         ResourceUtils.loadPropertiesFromResources(props, "db.properties");
@@ -18,15 +52,49 @@ public class CosmosClientContainer {
         String DB_KEY = props.getProperty("dbKey");
         String DATABASE_NAME = props.getProperty("dbName");
 
-        client = new CosmosClientBuilder()
+        var builder = new CosmosClientBuilder()
                 .endpoint(CONNECTION_URL)
                 .key(DB_KEY)
-                .gatewayMode()
                 .consistencyLevel(ConsistencyLevel.SESSION)
                 .connectionSharingAcrossClientsEnabled(true)
                 .contentResponseOnWriteEnabled(true)
-                .buildClient();
+                .endpointDiscoveryEnabled(Boolean.parseBoolean(props.getProperty("cosmosEndpointDiscovery", "true")));
+
+        var gateway = new GatewayConnectionConfig()
+                .setMaxConnectionPoolSize(Integer.parseInt(props.getProperty("cosmosGatewayMaxConnections", "1000")))
+                .setIdleConnectionTimeout(millis(props, "cosmosGatewayIdleTimeout", "60000"));
+        if ("gateway".equalsIgnoreCase(props.getProperty("cosmosConnectionMode", "direct"))) {
+            builder.gatewayMode(gateway);
+        } else {
+            var direct = new DirectConnectionConfig()
+                    .setMaxConnectionsPerEndpoint(Integer.parseInt(props.getProperty("cosmosMaxConnectionsPerEndpoint", "130")))
+                    .setMaxRequestsPerConnection(Integer.parseInt(props.getProperty("cosmosMaxRequestsPerConnection", "30")))
+                    .setConnectTimeout(millis(props, "cosmosConnectTimeout", "5000"))
+                    .setIdleConnectionTimeout(millis(props, "cosmosIdleConnectionTimeout", "0"))
+                    .setIdleEndpointTimeout(millis(props, "cosmosIdleEndpointTimeout", "3600000"));
+            // the gateway is still used for metadata and query plans
+            builder.directMode(direct, gateway);
+        }
+
+        String regions = props.getProperty("cosmosPreferredRegions", "");
+        if (!regions.isBlank())
+            builder.preferredRegions(Arrays.stream(regions.split(",")).map(String::trim).toList());
+
+        var operationPolicy = latencyPolicy(props, "cosmosOperationTimeout");
+        if (operationPolicy != null)
+            builder.endToEndOperationLatencyPolicyConfig(operationPolicy);
+        pointReadPolicy = latencyPolicy(props, "cosmosPointReadTimeout");
+        queryPolicy = latencyPolicy(props, "cosmosQueryTimeout");
+
+        double threshold = backgroundThroughput(props);
+        backgroundGroup = threshold <= 0 ? null : new ThroughputControlGroupConfigBuilder()
+                .groupName(BACKGROUND_GROUP)
+                .targetThroughputThreshold(threshold)
+                // serverless accounts have no provisioned throughput to take a fraction of
+                .continueOnInitError(true)
+                .build();
 
+        client = builder.buildClient();
         database = client.getDatabase(DATABASE_NAME);
     }
 
@@ -46,6 +114,104 @@ public class CosmosClientContainer {
     }
 
     public static CosmosContainer getContainer(String containerName) {
-        return getDatabase().getContainer(containerName);
+        var container = getDatabase().getContainer(containerName);
+        getInstance().controlThroughput(container);
+        return container;
+    }
+
+    /**
+     * Returns the container of the given name, creating it partitioned by the given path if it does not exist.
+     */
+    public static CosmosContainer getContainer(String containerName, String partitionKeyPath) {
+        getDatabase().createContainerIfNotExists(new CosmosContainerProperties(containerName, partitionKeyPath));
+        return getContainer(containerName);
+    }
+
+    /**
+     * As getContainer(containerName, partitionKeyPath), with the given composite indexes, which queries ordered by
+     * several properties need. Indexes missing from an existing container are added to it, and built by Cosmos
+     * in the background.
+     */
+    public static CosmosContainer getContainer(String containerName, String partitionKeyPath,
+                                               List<List<CompositePath>> compositeIndexes) {
+        var indexing = new IndexingPolicy();
+        indexing.setIncludedPaths(List.of(new IncludedPath("/*")));
+        indexing.setCompositeIndexes(compositeIndexes);
+        var properties = new CosmosContainerProperties(containerName, partitionKeyPath).setIndexingPolicy(indexing);
+        var existing = getDatabase().createContainerIfNotExists(properties).getProperties();
+
+        var policy = existing.getIndexingPolicy();
+        var indexes = new ArrayList<>(policy.getCompositeIndexes());
+        var present = indexes.stream().map(CosmosClientContainer::describe).toList();
+        var missing = compositeIndexes.stream().filter(index -> !present.contains(describe(index))).toList();
+        if (!missing.isEmpty()) {
+            Log.info(() -> String.format("Adding %d composite indexes to container %s\n", missing.size(), containerName));
+            indexes.addAll(missing);
+            policy.setCompositeIndexes(indexes);
+            getDatabase().getContainer(containerName).replace(existing.setIndexingPolicy(policy));
+        }
+        return getContainer(containerName);
+    }
+
+    private static List<String> describe(List<CompositePath> index) {
+        return index.stream().map(path -> path.getPath() + " " + path.getOrder()).toList();
+    }
+
+    /**
+     * Options of a point read, with the latency policy of point reads.
+     */
+    public static CosmosItemRequestOptions pointReadOptions() {
+        var options = new CosmosItemRequestOptions();
+        var policy = getInstance().pointReadPolicy;
+        return policy == null ? options : options.setCosmosEndToEndOperationLatencyPolicyConfig(policy);
+    }
+
+    /**
+     * Options of a query, with the latency policy of queries.
+     */
+    public static CosmosQueryRequestOptions queryOptions() {
+        var options = new CosmosQueryRequestOptions();
+        var policy = getInstance().queryPolicy;
+        return policy == null ? options : options.setCosmosEndToEndOperationLatencyPolicyConfig(policy);
+    }
+
+    /**
+     * Options of a query run in the background, in the background throughput control group if enabled.
+     */
+    public static CosmosQueryRequestOptions backgroundQueryOptions() {
+        var group = getInstance().backgroundGroup;
+        return group == null ? queryOptions() : queryOptions().setThroughputControlGroupName(BACKGROUND_GROUP);
+    }
+
+    /**
+     * Returns the throughput control group of the background work configured by the given properties,
+     * null if disabled.
+     */
+    public static String backgroundGroup(Properties props) {
+        return backgroundThroughput(props) > 0 ? BACKGROUND_GROUP : null;
+    }
+
+    private synchronized void controlThroughput(CosmosContainer container) {
+        if (backgroundGroup == null || !controlledContainers.add(container.getId()))
+            return;
+        try {
+            container.enableLocalThroughputControlGroup(backgroundGroup);
+        } catch (IllegalArgumentException e) {
+            Log.warning(() -> String.format("Could not control the throughput of %s: %s\n", container.getId(), e.getMessage()));
+        }
+    }
+
+    private static double backgroundThroughput(Properties props) {
+        return Double.parseDouble(props.getProperty("cosmosBackgroundThroughput", "0.2"));
+    }
+
+    private static CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy(Properties props, String key) {
+        long timeout = Long.parseLong(props.getProperty(key, "0"));
+        return timeout <= 0 ? null
+                : new CosmosEndToEndOperationLatencyPolicyConfigBuilder(Duration.ofMillis(timeout)).enable(true).build();
+    }
+
+    private static Duration millis(Properties props, String key, String defaultValue) {
+        return Duration.ofMillis(Long.parseLong(props.getProperty(key, defaultValue)));
     }
 }
@@ -0,0 +1,193 @@
+package tukano.impl;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.azure.cosmos.util.CosmosPagedIterable;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A named, parameterized query of the Cosmos DB backends.
+ * <p>
+ * Values are only ever bound to the {@code @parameters} of the template, never spliced into its text, so the
+ * text of a query is the same whatever the values. The SDK caches query plans by query text, so a template
+ * fetches its plan from the gateway once instead of once per distinct value (plans are cached for simple
+ * queries within a partition, the ones of the list endpoints). A collection bound to a parameter of an
+ * {@code IN (@parameter)} list is expanded to one parameter per element, padded to a power of two by repeating
+ * the last one, which bounds the number of distinct texts, and plans, of the template.
+ * <p>
+ * The request charge of every page read is added up per template and exposed through JMX.
+ */
+public final class CosmosQuery {
+
+    private static final Logger Log = Logger.getLogger(CosmosQuery.class.getName());
+
+    private static final Pattern PARAMETER = Pattern.compile("@\\w+");
+
+    // name -> template, kept sorted for JMX
+    private static final Map<String, CosmosQuery> templates = new ConcurrentSkipListMap<>();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new Stats(), new ObjectName("tukano:type=CosmosQueries"));
+        } catch (Exception e) {
+            Log.warning(() -> "Could not register Cosmos query MBean: " + e.getMessage());
+        }
+    }
+
+    private final String name;
+    private final String sql;
+    private final List<String> parameters;
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final DoubleAdder requestCharge = new DoubleAdder();
+
+    private CosmosQuery(String name, String sql) {
+        this.name = name;
+        this.sql = sql;
+        Set<String> names = new LinkedHashSet<>();
+        Matcher m = PARAMETER.matcher(sql);
+        while (m.find())
+            names.add(m.group());
+        this.parameters = List.copyOf(names);
+    }
+
+    /**
+     * Returns the template of the given name, defining it with the given text if it is new.
+     *
+     * @throws IllegalArgumentException if a template of the same name has another text
+     */
+    public static CosmosQuery of(String name, String sql) {
+        CosmosQuery query = templates.computeIfAbsent(name, n -> new CosmosQuery(n, sql));
+        if (!query.sql.equals(sql))
+            throw new IllegalArgumentException("Cosmos query " + name + " is already defined with another text");
+        return query;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Binds the given values to the parameters, in the order they first appear in the template.
+     *
+     * @throws IllegalArgumentException if the number of values does not match, or a collection is empty
+     */
+    public SqlQuerySpec bind(Object... values) {
+        if (values.length != parameters.size())
+            throw new IllegalArgumentException(String.format("Cosmos query %s takes %d parameters, %d given",
+                    name, parameters.size(), values.length));
+
+        String text = sql;
+        List<SqlParameter> params = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            String parameter = parameters.get(i);
+            if (!(values[i] instanceof Collection<?> elements)) {
+                params.add(new SqlParameter(parameter, values[i]));
+                continue;
+            }
+            if (elements.isEmpty())
+                throw new IllegalArgumentException("Empty list bound to " + parameter + " of Cosmos query " + name);
+
+            List<Object> list = new ArrayList<>(elements);
+            int padded = Integer.highestOneBit(list.size() - 1) << 1;
+            while (list.size() < padded)
+                list.add(list.get(list.size() - 1));
+
+            List<String> names = new ArrayList<>();
+            for (int j = 0; j < list.size(); j++) {
+                names.add(parameter + "_" + j);
+                params.add(new SqlParameter(parameter + "_" + j, list.get(j)));
+            }
+            text = text.replaceAll(Pattern.quote(parameter) + "(?!\\w)", String.join(", ", names));
+        }
+        return new SqlQuerySpec(text, params);
+    }
+
+    /**
+     * Runs the query within a single partition.
+     */
+    public <T> CosmosPagedIterable<T> in(CosmosContainer container, String partition, Class<T> clazz, Object... values) {
+        return execute(container, CosmosClientContainer.queryOptions().setPartitionKey(new PartitionKey(partition)), clazz, values);
+    }
+
+    /**
+     * Runs the query over all the partitions of the container.
+     */
+    public <T> CosmosPagedIterable<T> across(CosmosContainer container, Class<T> clazz, Object... values) {
+        return execute(container, CosmosClientContainer.queryOptions(), clazz, values);
+    }
+
+    public <T> CosmosPagedIterable<T> execute(CosmosContainer container, CosmosQueryRequestOptions options,
+                                              Class<T> clazz, Object... values) {
+        executions.increment();
+        return container.queryItems(bind(values), options, clazz).handle(page -> {
+            pages.increment();
+            requestCharge.add(page.getRequestCharge());
+        });
+    }
+
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    public double getRequestCharge() {
+        return requestCharge.sum();
+    }
+
+    public interface StatsMXBean {
+        Map<String, Long> getExecutions();
+
+        Map<String, Long> getPages();
+
+        Map<String, Double> getRequestCharges();
+
+        Map<String, Double> getAverageRequestCharges();
+    }
+
+    static class Stats implements StatsMXBean {
+        @Override
+        public Map<String, Long> getExecutions() {
+            Map<String, Long> stats = new TreeMap<>();
+            templates.forEach((name, q) -> stats.put(name, q.executions.sum()));
+            return stats;
+        }
+
+        @Override
+        public Map<String, Long> getPages() {
+            Map<String, Long> stats = new TreeMap<>();
+            templates.forEach((name, q) -> stats.put(name, q.pages.sum()));
+            return stats;
+        }
+
+        @Override
+        public Map<String, Double> getRequestCharges() {
+            Map<String, Double> stats = new TreeMap<>();
+            templates.forEach((name, q) -> stats.put(name, q.requestCharge.sum()));
+            return stats;
+        }
+
+        @Override
+        public Map<String, Double> getAverageRequestCharges() {
+            Map<String, Double> stats = new TreeMap<>();
+            templates.forEach((name, q) -> {
+                long n = q.executions.sum();
+                stats.put(name, n == 0 ? 0.0 : q.requestCharge.sum() / n);
+            });
+            return stats;
+        }
+    }
+}
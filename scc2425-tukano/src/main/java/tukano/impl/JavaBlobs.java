@@ -2,6 +2,7 @@ package tukano.impl;
 
 import jakarta.ws.rs.NotAuthorizedException;
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.StreamingOutput;
 import tukano.api.Blobs;
 import tukano.api.Result;
 import tukano.impl.rest.TukanoRestServer;
@@ -13,6 +14,8 @@ import utils.AuthUtils;
 import utils.Hash;
 import utils.Hex;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Logger;
 
 import static java.lang.String.format;
@@ -51,6 +54,19 @@ public class JavaBlobs implements Blobs {
         return storage.write(toPath(blobId), bytes);
     }
 
+    @Override
+    public Result<Void> upload(String blobId, InputStream in, Cookie cookie) {
+        Log.info(() -> format("upload : blobId = %s, cookie = %s\n", blobId, cookie));
+
+        try {
+            AuthUtils.validateSession(cookie);
+        } catch (NotAuthorizedException e) {
+            return Result.error(Result.ErrorCode.UNAUTHORIZED);
+        }
+
+        return storage.write(toPath(blobId), in);
+    }
+
     @Override
     public Result<byte[]> download(String blobId, Cookie cookie) {
         Log.info(() -> format("download : blobId = %s, token=%s\n", blobId, cookie));
@@ -64,6 +80,40 @@ public class JavaBlobs implements Blobs {
         return storage.read(toPath(blobId));
     }
 
+    @Override
+    public Result<Download> downloadStream(String blobId, Cookie cookie) {
+        Log.info(() -> format("downloadStream : blobId = %s, token=%s\n", blobId, cookie));
+
+        try {
+            AuthUtils.validateSession(cookie);
+        } catch (NotAuthorizedException e) {
+            return Result.error(Result.ErrorCode.UNAUTHORIZED);
+        }
+
+        // Check the blob exists before the response is committed, the contents are copied while it is sent
+        var path = toPath(blobId);
+        return errorOrResult(storage.stat(path), info -> Result.ok(new Download() {
+            @Override
+            public long size() {
+                return info.size();
+            }
+
+            @Override
+            public String sha256() {
+                return info.sha256();
+            }
+
+            @Override
+            public StreamingOutput range(long offset, long length) {
+                return out -> {
+                    var res = storage.read(path, offset, length, out);
+                    if (!res.isOK())
+                        throw new IOException(format("Error streaming blob %s: %s", blobId, res.error()));
+                };
+            }
+        }));
+    }
+
     @Override
     public Result<Void> delete(String blobId, Cookie cookie) {
         Log.info(() -> format("delete : blobId = %s, token=%s\n", blobId, cookie));
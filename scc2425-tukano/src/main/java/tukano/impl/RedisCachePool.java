@@ -1,42 +1,147 @@
 package tukano.impl;
 
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.ConnectionPoolConfig;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.UnifiedJedis;
 import utils.ResourceUtils;
 
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+/**
+ * The Redis clients of the server, configured in redis.properties.
+ * <p>
+ * The cache is either a single node, or a cluster when redisClusterNodes is set. getCache() returns a client
+ * that works the same in both cases: in a cluster each command is sent to the node of the hash slot of its key,
+ * and pipelines are split by node. Commands on several keys need all of them in one slot, see hashTag.
+ * <p>
+ * A read replica (redisReplicaHostName) is only used with a single node. In a cluster every read, including those
+ * of getReadCache(), goes to the primary of the slot of its key, as the cluster client of Jedis does not read from
+ * replicas; the reads of hot keys are spread over the pods by their local replicas instead (see CacheUtils).
+ */
 public class RedisCachePool {
 
-    private static JedisPool instance;
+    // Created on first use; volatile, so reads need no lock once they are set.
+    // A failed creation, e.g. without redis.properties, is retried by the next call.
+    private static volatile Clients clients;
+    // Read on first use. Without redis.properties the keys are named as on a single node, e.g. in tests without Redis.
+    private static volatile Boolean cluster;
 
-    // Synchronized method to get the Redis client pool (JedisPool)
-    public synchronized static JedisPool getCachePool() {
-        if (instance != null) {
-            return instance;
+    private record Clients(UnifiedJedis cache, UnifiedJedis replica) {
+    }
+
+    /**
+     * Returns the client of the cache, of a single node or of a cluster.
+     */
+    public static UnifiedJedis getCache() {
+        return clients().cache();
+    }
+
+    /**
+     * Returns the client of a read replica of a single node when redisReplicaHostName is set, otherwise the client
+     * of the cache, which in a cluster reads from the primaries. A replica lags behind the writes by the replication delay, so it only serves hints that may
+     * be stale, such as whether a user is a celebrity; never values returned to clients or kept in near caches.
+     */
+    public static UnifiedJedis getReadCache() {
+        return clients().replica();
+    }
+
+    /**
+     * Whether the cache is a cluster, as configured by redisClusterNodes.
+     */
+    public static boolean isCluster() {
+        var res = cluster;
+        if (res == null) {
+            Properties props = new Properties();
+            try {
+                props = properties();
+            } catch (RuntimeException e) {
+                // no configuration, no cluster
+            }
+            cluster = res = isCluster(props);
         }
-        Properties propsRedis = new Properties();
-        ResourceUtils.loadPropertiesFromResources(propsRedis, "redis.properties");
+        return res;
+    }
 
-        String RedisHostname = propsRedis.getProperty("redisHostName");
-        String RedisKeyB64 = propsRedis.getProperty("redisKey");
-        String RedisKey = new String(Base64.getDecoder().decode(RedisKeyB64));
-        int REDIS_PORT = Integer.parseInt(propsRedis.getProperty("redisPort", "6380"));
-        int REDIS_TIMEOUT = Integer.parseInt(propsRedis.getProperty("redisTimeout", "1000"));
-        boolean REDIS_USE_TLS = Boolean.parseBoolean(propsRedis.getProperty("redisUseTls", "true"));
+    private static boolean isCluster(Properties props) {
+        return !props.getProperty("redisClusterNodes", "").isBlank();
+    }
 
-        // Create the Jedis pool configuration
-        JedisPoolConfig poolConfig = new JedisPoolConfig();
-        poolConfig.setMaxTotal(128); // Max number of total connections
-        poolConfig.setMaxIdle(128);  // Max number of idle connections
-        poolConfig.setMinIdle(16);   // Min number of idle connections
-        poolConfig.setBlockWhenExhausted(true); // Block when the pool is exhausted
+    private static Clients clients() {
+        var res = clients;
+        if (res == null) {
+            synchronized (RedisCachePool.class) {
+                res = clients;
+                if (res == null)
+                    clients = res = create(properties());
+            }
+        }
+        return res;
+    }
 
-        // Create the JedisPool with TLS and authentication
-        instance = new JedisPool(poolConfig, RedisHostname, REDIS_PORT, REDIS_TIMEOUT, RedisKey, REDIS_USE_TLS);
+    private static Clients create(Properties props) {
+        boolean cluster = isCluster(props);
+        UnifiedJedis cache = cluster ? cluster(props) : client(props, props.getProperty("redisHostName"));
+        String replica = props.getProperty("redisReplicaHostName", "");
+        return new Clients(cache, cluster || replica.isBlank() ? cache : client(props, replica));
+    }
 
-        return instance;
+    private static UnifiedJedis cluster(Properties props) {
+        int port = Integer.parseInt(props.getProperty("redisPort", "6380"));
+        Set<HostAndPort> nodes = Arrays.stream(props.getProperty("redisClusterNodes").split(","))
+                .map(String::trim)
+                .filter(node -> !node.isEmpty())
+                .map(node -> node.contains(":") ? HostAndPort.from(node) : new HostAndPort(node, port))
+                .collect(Collectors.toSet());
+        int maxAttempts = Integer.parseInt(props.getProperty("redisClusterMaxAttempts", "5"));
+        return new JedisCluster(nodes, clientConfig(props), maxAttempts, poolConfig());
     }
-}
 
+    /**
+     * Returns the id as the hash tag of a key in a cluster, so all the keys tagged with the same id
+     * are kept in one hash slot, and can be used by one command. On a single node keys are not tagged.
+     */
+    public static String hashTag(String id) {
+        return isCluster() ? "{" + id + "}" : id;
+    }
+
+    private static UnifiedJedis client(Properties props, String host) {
+        int port = Integer.parseInt(props.getProperty("redisPort", "6380"));
+        return new JedisPooled(new HostAndPort(host, port), clientConfig(props), poolConfig());
+    }
+
+    private static JedisClientConfig clientConfig(Properties props) {
+        return DefaultJedisClientConfig.builder()
+                .password(password(props))
+                .timeoutMillis(Integer.parseInt(props.getProperty("redisTimeout", "1000")))
+                .ssl(Boolean.parseBoolean(props.getProperty("redisUseTls", "true")))
+                .build();
+    }
+
+    // per node in a cluster
+    private static ConnectionPoolConfig poolConfig() {
+        var poolConfig = new ConnectionPoolConfig();
+        poolConfig.setMaxTotal(128);
+        poolConfig.setMaxIdle(128);
+        poolConfig.setMinIdle(16);
+        poolConfig.setBlockWhenExhausted(true);
+        return poolConfig;
+    }
+
+    private static String password(Properties props) {
+        return new String(Base64.getDecoder().decode(props.getProperty("redisKey")));
+    }
+
+    private static Properties properties() {
+        Properties props = new Properties();
+        ResourceUtils.loadPropertiesFromResources(props, "redis.properties");
+        return props;
+    }
+}
@@ -0,0 +1,73 @@
+package tukano.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import utils.ResourceUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Bounded JDBC connection pool shared by the PostgreSQL backends (SQLUsers and SQLShorts).
+ * Every operation borrows its own connection, so transactions of concurrent requests never interleave.
+ */
+public class SQLConnectionPool {
+
+    private static final Logger Log = Logger.getLogger(SQLConnectionPool.class.getName());
+
+    private static HikariDataSource instance;
+
+    // Synchronized method to get the shared data source
+    public synchronized static DataSource getDataSource() {
+        if (instance != null) {
+            return instance;
+        }
+        Properties props = new Properties();
+        ResourceUtils.loadPropertiesFromResources(props, "db.properties");
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("tukano-sql");
+        config.setDriverClassName("org.postgresql.Driver");
+        config.setJdbcUrl(props.getProperty("connectionString"));
+        config.setUsername(props.getProperty("username"));
+        config.setPassword(props.getProperty("password"));
+
+        config.setMinimumIdle(Integer.parseInt(props.getProperty("poolMinIdle", "4")));
+        config.setMaximumPoolSize(Integer.parseInt(props.getProperty("poolMaxSize", "32")));
+        // Max time (ms) a request waits for a free connection before failing
+        config.setConnectionTimeout(Long.parseLong(props.getProperty("poolAcquireTimeout", "5000")));
+        // Max time (ms) spent checking that a connection is still alive before handing it out
+        config.setValidationTimeout(Long.parseLong(props.getProperty("poolValidationTimeout", "1000")));
+        config.setIdleTimeout(Long.parseLong(props.getProperty("poolIdleTimeout", "600000")));
+        config.setMaxLifetime(Long.parseLong(props.getProperty("poolMaxLifetime", "1800000")));
+        // Log a stack trace for connections held longer than this (ms), 0 disables leak detection
+        config.setLeakDetectionThreshold(Long.parseLong(props.getProperty("poolLeakDetectionThreshold", "30000")));
+        String testQuery = props.getProperty("poolConnectionTestQuery");
+        if (testQuery != null && !testQuery.isBlank()) {
+            config.setConnectionTestQuery(testQuery);
+        }
+
+        // Server side prepared statements, cached per physical connection by the driver (see SQLStatementCache)
+        int cachedStatements = Integer.parseInt(props.getProperty("statementCacheSize", "256"));
+        config.addDataSourceProperty("prepareThreshold", props.getProperty("statementPrepareThreshold", "1"));
+        config.addDataSourceProperty("preparedStatementCacheQueries", String.valueOf(cachedStatements));
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", props.getProperty("statementCacheSizeMiB", "5"));
+        SQLStatementCache.setMaxStatementsPerConnection(cachedStatements);
+
+        instance = new HikariDataSource(config);
+        Log.info(() -> String.format("SQL connection pool started: minIdle = %d, maxSize = %d\n",
+                config.getMinimumIdle(), config.getMaximumPoolSize()));
+
+        return instance;
+    }
+
+    /**
+     * Borrows a connection from the pool. The caller must close it to give it back.
+     */
+    public static Connection getConnection() throws SQLException {
+        return getDataSource().getConnection();
+    }
+}
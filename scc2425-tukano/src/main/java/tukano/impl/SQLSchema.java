@@ -0,0 +1,173 @@
+package tukano.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Versioned schema of the PostgreSQL backends (SQLUsers and SQLShorts).
+ * <p>
+ * The schema is changed by an ordered list of migrations, each applied once, in its own transaction, and recorded
+ * with its version in the schema_version table. Pods starting together take a PostgreSQL advisory lock while
+ * migrating, so a migration is never run by two of them. New migrations go at the end of the list; applied
+ * ones must never change, as they are not run again.
+ */
+public class SQLSchema {
+
+    private static final Logger Log = Logger.getLogger(SQLSchema.class.getName());
+
+    // arbitrary key of the advisory lock held while migrating
+    private static final long MIGRATION_LOCK = 0x7475_6b61_6e6fL;
+
+    record Migration(int version, String description, String... statements) {
+    }
+
+    static final List<Migration> MIGRATIONS = List.of(
+            // the tables as created before migrations were versioned, for both new and existing databases
+            new Migration(1, "initial tables",
+                    """
+                    CREATE TABLE IF NOT EXISTS Users (
+                        id VARCHAR(255) PRIMARY KEY,
+                        pwd VARCHAR(255) NOT NULL,
+                        displayName VARCHAR(255) NOT NULL,
+                        email VARCHAR(255) NOT NULL
+                    )
+                    """,
+                    """
+                    CREATE TABLE IF NOT EXISTS Shorts (
+                        id VARCHAR(255) PRIMARY KEY,
+                        ownerId VARCHAR(255) NOT NULL,
+                        blobUrl TEXT NOT NULL,
+                        totalLikes INTEGER NOT NULL DEFAULT 0,
+                        timestamp BIGINT NOT NULL DEFAULT 0,
+                        FOREIGN KEY (ownerId) REFERENCES Users(id)
+                    )
+                    """,
+                    // tables created before the like counter was denormalized
+                    "ALTER TABLE Shorts ADD COLUMN IF NOT EXISTS totalLikes INTEGER NOT NULL DEFAULT 0",
+                    // tables created before shorts were timestamped, their feeds are ordered by id
+                    "ALTER TABLE Shorts ADD COLUMN IF NOT EXISTS timestamp BIGINT NOT NULL DEFAULT 0",
+                    """
+                    CREATE TABLE IF NOT EXISTS Follows (
+                        id VARCHAR(255) PRIMARY KEY,
+                        follower VARCHAR(255) NOT NULL,
+                        followee VARCHAR(255) NOT NULL,
+                        FOREIGN KEY (follower) REFERENCES Users(id),
+                        FOREIGN KEY (followee) REFERENCES Users(id)
+                    )
+                    """,
+                    """
+                    CREATE TABLE IF NOT EXISTS Likes (
+                        id VARCHAR(255) PRIMARY KEY,
+                        userId VARCHAR(255) NOT NULL,
+                        shortId VARCHAR(255) NOT NULL,
+                        ownerId VARCHAR(255) NOT NULL,
+                        FOREIGN KEY (userId) REFERENCES Users(id),
+                        FOREIGN KEY (shortId) REFERENCES Shorts(id),
+                        FOREIGN KEY (ownerId) REFERENCES Users(id)
+                    )
+                    """),
+            // the concatenated ids ("follower-followee", "userId-shortId") become composite keys, ordered
+            // as the lists read by the key prefix: the followers of a user, and the likes of a short
+            new Migration(2, "composite primary keys of follows and likes",
+                    "ALTER TABLE Follows DROP COLUMN IF EXISTS id",
+                    "ALTER TABLE Follows ADD PRIMARY KEY (followee, follower)",
+                    "ALTER TABLE Likes DROP COLUMN IF EXISTS id",
+                    "ALTER TABLE Likes ADD PRIMARY KEY (shortId, userId)"),
+            new Migration(3, "indexes of the lookups by owner, follower and liking user",
+                    // pages of the shorts of a user, and the cascades deleting them
+                    "CREATE INDEX IF NOT EXISTS shorts_owner_id ON Shorts (ownerId, id)",
+                    // feeds, newest first, answered from the index alone
+                    "CREATE INDEX IF NOT EXISTS shorts_owner_timestamp ON Shorts (ownerId, timestamp DESC, id DESC) INCLUDE (blobUrl)",
+                    // the followees of a user, read by feeds and by the cascades deleting the user
+                    "CREATE INDEX IF NOT EXISTS follows_follower ON Follows (follower, followee)",
+                    // the likes of a user, uncounted and deleted with the user
+                    "CREATE INDEX IF NOT EXISTS likes_user ON Likes (userId, shortId)")
+    );
+
+    private static boolean migrated;
+
+    /**
+     * Brings the schema up to date, once per server.
+     */
+    public static synchronized void migrate() throws SQLException {
+        if (migrated)
+            return;
+        try (Connection connection = SQLConnectionPool.getConnection()) {
+            lock(connection, true);
+            try {
+                migrate(connection);
+            } finally {
+                lock(connection, false);
+            }
+        }
+        migrated = true;
+    }
+
+    /**
+     * Applies the migrations past the latest recorded version, and returns how many were applied.
+     */
+    static int migrate(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS schema_version (
+                        version INTEGER PRIMARY KEY,
+                        description TEXT NOT NULL,
+                        appliedAt TIMESTAMPTZ NOT NULL DEFAULT now()
+                    )
+                    """);
+        }
+
+        int current;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            rs.next();
+            current = rs.getInt(1);
+        }
+
+        int applied = 0;
+        for (var migration : MIGRATIONS) {
+            if (migration.version() <= current)
+                continue;
+            apply(connection, migration);
+            applied++;
+        }
+        return applied;
+    }
+
+    private static void apply(Connection connection, Migration migration) throws SQLException {
+        Log.info(() -> String.format("Applying schema migration %d: %s\n", migration.version(), migration.description()));
+        connection.setAutoCommit(false);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                for (String sql : migration.statements())
+                    stmt.execute(sql);
+            }
+            String record = "INSERT INTO schema_version (version, description) VALUES (?, ?)";
+            try (PreparedStatement pstmt = connection.prepareStatement(record)) {
+                pstmt.setInt(1, migration.version());
+                pstmt.setString(2, migration.description());
+                pstmt.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    // Session level lock, released before the connection goes back to the pool
+    private static void lock(Connection connection, boolean acquire) throws SQLException {
+        String sql = acquire ? "SELECT pg_advisory_lock(?)" : "SELECT pg_advisory_unlock(?)";
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setLong(1, MIGRATION_LOCK);
+            pstmt.execute();
+        }
+    }
+}
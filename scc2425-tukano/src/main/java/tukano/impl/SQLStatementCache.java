@@ -0,0 +1,111 @@
+package tukano.impl;
+
+import org.postgresql.PGConnection;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Prepares the fixed SQL statements of the PostgreSQL backends on pooled connections.
+ * <p>
+ * The parsed and planned statements are kept by the PostgreSQL driver itself: with a prepare threshold of 1
+ * (see {@link SQLConnectionPool}) every statement is prepared server side on first use and stays cached
+ * on its physical connection after close, so later prepares of the same SQL skip the parse/plan phase.
+ * This class keeps track of which SQL strings were already prepared on each physical connection,
+ * and exposes the resulting hit/miss counters through JMX.
+ */
+public class SQLStatementCache {
+
+    private static final Logger Log = Logger.getLogger(SQLStatementCache.class.getName());
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    // physical connection -> SQL strings prepared on it, weak so retired connections disappear
+    private static final Map<Object, Set<String>> prepared = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static int maxStatementsPerConnection = 256;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new Stats(), new ObjectName("tukano:type=SQLStatementCache"));
+        } catch (Exception e) {
+            Log.warning(() -> "Could not register statement cache MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Must match the preparedStatementCacheQueries setting of the driver.
+     */
+    static void setMaxStatementsPerConnection(int max) {
+        maxStatementsPerConnection = max;
+    }
+
+    /**
+     * Prepares the given SQL on a borrowed connection, reusing the server side statement when
+     * the physical connection has already prepared it.
+     */
+    public static PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        Set<String> statements = prepared.computeIfAbsent(physical(connection), k -> lruSet());
+        boolean hit;
+        synchronized (statements) {
+            hit = !statements.add(sql);
+        }
+        (hit ? hits : misses).incrementAndGet();
+        return connection.prepareStatement(sql);
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    private static Object physical(Connection connection) throws SQLException {
+        return connection.isWrapperFor(PGConnection.class) ? connection.unwrap(PGConnection.class) : connection;
+    }
+
+    private static Set<String> lruSet() {
+        return Collections.newSetFromMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxStatementsPerConnection;
+            }
+        });
+    }
+
+    public interface StatsMXBean {
+        long getHits();
+
+        long getMisses();
+
+        double getHitRatio();
+    }
+
+    static class Stats implements StatsMXBean {
+        @Override
+        public long getHits() {
+            return hits.get();
+        }
+
+        @Override
+        public long getMisses() {
+            return misses.get();
+        }
+
+        @Override
+        public double getHitRatio() {
+            long h = hits.get(), total = h + misses.get();
+            return total == 0 ? 0.0 : (double) h / total;
+        }
+    }
+}
@@ -2,15 +2,25 @@ package tukano.impl.rest;
 
 import jakarta.inject.Singleton;
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
 import tukano.api.Blobs;
 import tukano.api.rest.RestBlobs;
 import tukano.impl.JavaBlobs;
+import tukano.impl.rest.utils.ByteRange;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 @Singleton
 public class RestBlobsResource extends RestResource implements RestBlobs {
 
+	private static final String ACCEPT_RANGES = "Accept-Ranges";
+	private static final String CONTENT_RANGE = "Content-Range";
+	private static final String BYTES = "bytes";
+
 	final Blobs impl;
 	
 	public RestBlobsResource() {
@@ -18,13 +28,50 @@ public class RestBlobsResource extends RestResource implements RestBlobs {
 	}
 	
 	@Override
-	public void upload(String blobId, byte[] bytes, Cookie cookie) {
-		super.resultOrThrow(impl.upload(blobId, bytes, cookie));
+	public void upload(String blobId, InputStream in, Cookie cookie) {
+		super.resultOrThrow(impl.upload(blobId, in, cookie));
 	}
 
 	@Override
-	public byte[] download(String blobId, Cookie cookie) {
-		return super.resultOrThrow(impl.download( blobId, cookie));
+	public Response download(String blobId, Cookie cookie, String range, String ifRange, String ifNoneMatch) {
+		var download = super.resultOrThrow(impl.downloadStream( blobId, cookie));
+		var etag = new EntityTag(download.sha256());
+		long size = download.size();
+
+		// Clients and caches holding the same contents skip the transfer
+		if (ifNoneMatch != null && matches(ifNoneMatch, etag))
+			return Response.notModified(etag).build();
+
+		// A range only applies to the version of the blob the client already has
+		var byteRange = ifRange == null || matches(ifRange, etag) ? ByteRange.parse(range, size) : null;
+		if (byteRange == null)
+			return Response.ok(download.range(0, size))
+					.tag(etag)
+					.header(ACCEPT_RANGES, BYTES)
+					.header(HttpHeaders.CONTENT_LENGTH, size)
+					.build();
+
+		if (!byteRange.isSatisfiable())
+			return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+					.header(CONTENT_RANGE, byteRange.contentRange(size))
+					.build();
+
+		return Response.status(Status.PARTIAL_CONTENT)
+				.entity(download.range(byteRange.offset(), byteRange.length()))
+				.tag(etag)
+				.header(ACCEPT_RANGES, BYTES)
+				.header(CONTENT_RANGE, byteRange.contentRange(size))
+				.header(HttpHeaders.CONTENT_LENGTH, byteRange.length())
+				.build();
+	}
+
+	// Strong comparison of an If-None-Match / If-Range value against the ETag of the blob
+	private static boolean matches(String header, EntityTag etag) {
+		var quoted = "\"" + etag.getValue() + "\"";
+		for (var candidate : header.split(","))
+			if (candidate.trim().equals("*") || candidate.trim().equals(quoted))
+				return true;
+		return false;
 	}
 
 	@Override
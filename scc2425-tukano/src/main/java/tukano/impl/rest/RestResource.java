@@ -2,7 +2,11 @@ package tukano.impl.rest;
 
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response.Status;
+import tukano.api.Page;
 import tukano.api.Result;
+import tukano.impl.rest.utils.pages.NextPageToken;
+
+import java.util.List;
 
 public class RestResource {
 
@@ -17,6 +21,25 @@ public class RestResource {
 			throw new WebApplicationException(statusCodeFrom(result));
 	}
 
+	/**
+	 * Given a Result<Page<T>>, either returns the items of the page, passing the token of the
+	 * next page in a response header, or throws the JAX-WS Exception matching the error code...
+	 */
+	protected <T> List<T> pageOrThrow(Result<Page<T>> result) {
+		var page = resultOrThrow(result);
+		NextPageToken.set(page.next());
+		return page.items();
+	}
+
+	/**
+	 * Returns the ids of a batch lookup, or throws BAD_REQUEST if there are more than the size of a page.
+	 */
+	protected List<String> batchOrThrow(List<String> ids) {
+		if (ids.size() > Page.MAX_SIZE)
+			throw new WebApplicationException(Status.BAD_REQUEST);
+		return ids;
+	}
+
 	/**
 	 * Translates a Result<T> to a HTTP Status code
 	 */
@@ -28,6 +51,7 @@ public class RestResource {
 			case BAD_REQUEST -> Status.BAD_REQUEST;
 			case INTERNAL_ERROR -> Status.INTERNAL_SERVER_ERROR;
 			case NOT_IMPLEMENTED -> Status.NOT_IMPLEMENTED;
+			case TIMEOUT -> Status.SERVICE_UNAVAILABLE;
 			case OK -> result.value() == null ? Status.NO_CONTENT : Status.OK;
 			default -> Status.INTERNAL_SERVER_ERROR;
 		};
@@ -2,6 +2,7 @@ package tukano.impl.rest;
 
 import jakarta.inject.Singleton;
 import jakarta.ws.rs.core.Cookie;
+import tukano.api.Page;
 import tukano.api.Short;
 import tukano.api.Shorts;
 import tukano.api.rest.RestShorts;
@@ -34,8 +35,13 @@ public class RestShortsResource extends RestResource implements RestShorts {
     }
 
     @Override
-    public List<String> getShorts(String userId) {
-        return super.resultOrThrow(impl.getShorts(userId));
+    public List<Short> getShorts(List<String> shortIds) {
+        return super.resultOrThrow(impl.getShorts(super.batchOrThrow(shortIds)));
+    }
+
+    @Override
+    public List<String> getShorts(String userId, String pageToken, Integer pageSize) {
+        return super.pageOrThrow(impl.getShorts(userId, pageToken, Page.size(pageSize)));
     }
 
     @Override
@@ -44,8 +50,8 @@ public class RestShortsResource extends RestResource implements RestShorts {
     }
 
     @Override
-    public List<String> followers(String userId, String password) {
-        return super.resultOrThrow(impl.followers(userId, password));
+    public List<String> followers(String userId, String password, String pageToken, Integer pageSize) {
+        return super.pageOrThrow(impl.followers(userId, password, pageToken, Page.size(pageSize)));
     }
 
     @Override
@@ -54,13 +60,13 @@ public class RestShortsResource extends RestResource implements RestShorts {
     }
 
     @Override
-    public List<String> likes(String shortId, String password) {
-        return super.resultOrThrow(impl.likes(shortId, password));
+    public List<String> likes(String shortId, String password, String pageToken, Integer pageSize) {
+        return super.pageOrThrow(impl.likes(shortId, password, pageToken, Page.size(pageSize)));
     }
 
     @Override
-    public List<String> getFeed(String userId, String password) {
-        return super.resultOrThrow(impl.getFeed(userId, password));
+    public List<String> getFeed(String userId, String password, String pageToken, Integer pageSize) {
+        return super.pageOrThrow(impl.getFeed(userId, password, pageToken, Page.size(pageSize)));
     }
 
     @Override
@@ -1,6 +1,7 @@
 package tukano.impl.rest;
 
 import jakarta.inject.Singleton;
+import tukano.api.Page;
 import tukano.api.User;
 import tukano.api.Users;
 import tukano.api.rest.RestUsers;
@@ -38,7 +39,9 @@ public class RestUsersResource extends RestResource implements RestUsers {
     }
 
     @Override
-    public List<User> searchUsers(String pattern) {
-        return super.resultOrThrow(impl.searchUsers(pattern));
+    public List<User> searchUsers(String pattern, String pageToken, Integer pageSize, List<String> userIds) {
+        if (!userIds.isEmpty())
+            return super.resultOrThrow(impl.getUsers(super.batchOrThrow(userIds)));
+        return super.pageOrThrow(impl.searchUsers(pattern, pageToken, Page.size(pageSize)));
     }
 }
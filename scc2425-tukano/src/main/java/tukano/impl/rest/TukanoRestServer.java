@@ -11,8 +11,11 @@ import jakarta.ws.rs.core.Application;
 import tukano.impl.Token;
 import utils.Args;
 import utils.IP;
+import tukano.impl.rest.utils.cache.RedisBatchFilter;
+import tukano.impl.rest.utils.cache.RedisBatchFlushFilter;
 import tukano.impl.rest.utils.cookies.RequestCookiesCleanupFilter;
 import tukano.impl.rest.utils.cookies.RequestCookiesFilter;
+import tukano.impl.rest.utils.pages.NextPageTokenFilter;
 
 
 public class TukanoRestServer extends Application {
@@ -40,6 +43,9 @@ public class TukanoRestServer extends Application {
 		resources.add(RestLoginResource.class);
 		resources.add(RequestCookiesFilter.class);
 		resources.add(RequestCookiesCleanupFilter.class);
+		resources.add(NextPageTokenFilter.class);
+		resources.add(RedisBatchFilter.class);
+		resources.add(RedisBatchFlushFilter.class);
 	}
 
 
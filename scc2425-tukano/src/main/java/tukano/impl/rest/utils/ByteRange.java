@@ -0,0 +1,63 @@
+package tukano.impl.rest.utils;
+
+/**
+ * A single byte range of a Range request header (RFC 9110), resolved against the size of the resource.
+ */
+public record ByteRange(long offset, long length) {
+
+    private static final String UNIT = "bytes=";
+
+    /**
+     * Marks a syntactically valid range that does not overlap the resource, answered with 416.
+     */
+    public static final ByteRange UNSATISFIABLE = new ByteRange(-1, 0);
+
+    /**
+     * Parses a Range header for a resource of the given size.
+     *
+     * @return the requested range, UNSATISFIABLE, or null when the header is absent, malformed or asks
+     * for several ranges; the whole resource is sent in that case, which the RFC allows
+     */
+    public static ByteRange parse(String header, long size) {
+        if (header == null || !header.startsWith(UNIT) || header.indexOf(',') >= 0)
+            return null;
+
+        String spec = header.substring(UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+
+        try {
+            String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range: the last n bytes
+                long n = Long.parseLong(last);
+                if (n <= 0 || size == 0)
+                    return UNSATISFIABLE;
+                long offset = Math.max(0, size - n);
+                return new ByteRange(offset, size - offset);
+            }
+
+            long offset = Long.parseLong(first);
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            if (offset < 0 || (!last.isEmpty() && Long.parseLong(last) < offset))
+                return null;
+            if (offset >= size)
+                return UNSATISFIABLE;
+            return new ByteRange(offset, end - offset + 1);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public boolean isSatisfiable() {
+        return offset >= 0;
+    }
+
+    /**
+     * Value of the Content-Range header of the response.
+     */
+    public String contentRange(long size) {
+        return isSatisfiable() ? String.format("bytes %d-%d/%d", offset, offset + length - 1, size) : "bytes */" + size;
+    }
+}
@@ -0,0 +1,17 @@
+package tukano.impl.rest.utils.cache;
+
+import java.io.IOException;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.ext.Provider;
+import utils.RedisBatch;
+
+@Provider
+public class RedisBatchFilter implements ContainerRequestFilter {
+
+    @Override
+    public void filter(ContainerRequestContext reqCtx) throws IOException {
+        RedisBatch.begin();
+    }
+}
@@ -0,0 +1,18 @@
+package tukano.impl.rest.utils.cache;
+
+import java.io.IOException;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.ext.Provider;
+import utils.RedisBatch;
+
+@Provider
+public class RedisBatchFlushFilter implements ContainerResponseFilter {
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        RedisBatch.end();
+    }
+}
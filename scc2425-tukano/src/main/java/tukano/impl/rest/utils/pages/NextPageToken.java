@@ -0,0 +1,24 @@
+package tukano.impl.rest.utils.pages;
+
+/**
+ * Token of the next page of the listing returned by the current request, sent back in the
+ * {@link #HEADER} response header by {@link NextPageTokenFilter}.
+ */
+public class NextPageToken {
+
+    public static final String HEADER = "X-Next-Page-Token";
+
+    private static final ThreadLocal<String> nextPageTokenThreadLocal = new ThreadLocal<>();
+
+    public static void set(String token) {
+        nextPageTokenThreadLocal.set(token);
+    }
+
+    public static String get() {
+        return nextPageTokenThreadLocal.get();
+    }
+
+    public static void clear() {
+        nextPageTokenThreadLocal.remove();
+    }
+}
@@ -0,0 +1,20 @@
+package tukano.impl.rest.utils.pages;
+
+import java.io.IOException;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.ext.Provider;
+
+@Provider
+public class NextPageTokenFilter implements ContainerResponseFilter {
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        String token = NextPageToken.get();
+        if (token != null)
+            responseContext.getHeaders().putSingle(NextPageToken.HEADER, token);
+        NextPageToken.clear();
+    }
+}
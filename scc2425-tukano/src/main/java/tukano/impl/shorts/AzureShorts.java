@@ -1,23 +1,42 @@
 package tukano.impl.shorts;
 
 import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.azure.cosmos.models.CosmosItemOperation;
 import com.azure.cosmos.models.CosmosItemRequestOptions;
-import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.CosmosPatchItemRequestOptions;
+import com.azure.cosmos.models.CosmosPatchOperations;
 import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.util.CosmosPagedIterable;
+import com.fasterxml.jackson.databind.JsonNode;
 import jakarta.ws.rs.core.Cookie;
 import tukano.api.Short;
 import tukano.api.*;
+import tukano.impl.CosmosBulk;
 import tukano.impl.CosmosClientContainer;
+import tukano.impl.CosmosQuery;
 import tukano.impl.JavaBlobs;
 import tukano.impl.data.Following;
 import tukano.impl.data.Likes;
 import tukano.impl.rest.TukanoRestServer;
 import tukano.impl.users.UsersImpl;
 import utils.ResourceUtils;
+import utils.Threads;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -26,21 +45,82 @@ import static tukano.api.Result.ErrorCode.*;
 import static tukano.api.Result.*;
 import static utils.AuthUtils.createCookie;
 
+/**
+ * Shorts backend on Cosmos DB. Shorts, follows and likes are kept in containers partitioned by the key of their
+ * lookups (see {@link ShortsContainers}), so listing the shorts of a user, its followers or the likes of a short
+ * reads a single partition. Follows are written twice, by followee and by follower; the followee copy is the one
+ * listing followers, the follower copy the one feeds are built from.
+ */
 public class AzureShorts implements Shorts {
 
     private static final Logger Log = Logger.getLogger(AzureShorts.class.getName());
 
-    private final CosmosContainer container;
+    private static final CosmosQuery SHORTS_OF = CosmosQuery.of("shortsOf", "SELECT * FROM c WHERE c.ownerId = @userId");
+    private static final CosmosQuery FOLLOWERS_OF = CosmosQuery.of("followersOf", "SELECT * FROM c WHERE c.followee = @userId");
+    private static final CosmosQuery FOLLOWEES_OF = CosmosQuery.of("followeesOf", "SELECT * FROM c WHERE c.follower = @userId");
+    private static final CosmosQuery LIKES_OF = CosmosQuery.of("likesOf", "SELECT * FROM c WHERE c.shortId = @shortId");
+    private static final CosmosQuery LIKES_BY = CosmosQuery.of("likesBy", "SELECT * FROM c WHERE c.userId = @userId");
+    private static final CosmosQuery LIKES_ON = CosmosQuery.of("likesOn", "SELECT * FROM c WHERE c.ownerId = @userId");
+    // the owners are listed with IN, so only their partitions are read. Ties on timestamp are ordered by id, as the
+    // pages continue after the (timestamp, id) of the last short read.
+    private static final CosmosQuery FEED = CosmosQuery.of("feed", """
+            SELECT *
+            FROM c
+            WHERE c.ownerId IN (@owners) AND (
+                c.timestamp < @beforeTimestamp OR
+                (c.timestamp = @beforeTimestamp AND c.id < @beforeId)
+            )
+            ORDER BY c.timestamp DESC, c.id DESC
+            OFFSET 0 LIMIT @limit
+            """);
+    private static final CosmosQuery LIKES_COUNT = CosmosQuery.of("likesCount",
+            "SELECT c.shortId, COUNT(1) AS likes FROM c GROUP BY c.shortId");
+    private static final CosmosQuery LIKES_TOTAL = CosmosQuery.of("likesTotal", "SELECT c.id, c.totalLikes, c._etag FROM c");
+    private static final CosmosQuery LIKES_COUNT_OF = CosmosQuery.of("likesCountOf",
+            "SELECT VALUE COUNT(1) FROM c WHERE c.shortId = @shortId");
+
+    private final CosmosContainer shorts;
+    private final CosmosContainer followers;
+    private final CosmosContainer followees;
+    private final CosmosContainer likes;
 
     private static AzureShorts instance;
 
+    // write-behind buffer of like toggles, null if likes are written synchronously
+    private final LikesBuffer likesBuffer;
+
+    // materialized home feeds, null if feeds are read from the database
+    private final FeedCache feedCache;
+
+    // runs the cascades deleting shorts and users
+    private final CosmosBulk bulk;
+
+    // shorts whose like counter could not be updated, recounted by the next reconciliation
+    private final Set<String> driftedCounters = ConcurrentHashMap.newKeySet();
+
     private AzureShorts() {
 
         Properties cosmosDBProps = new Properties();
         ResourceUtils.loadPropertiesFromResources(cosmosDBProps, "db.properties");
-        String shortContainerName = cosmosDBProps.getProperty("shortContainerName");
-
-        this.container = CosmosClientContainer.getContainer(shortContainerName);
+        var containers = ShortsContainers.fromProperties(cosmosDBProps);
+        this.shorts = containers.shorts();
+        this.followers = containers.followers();
+        this.followees = containers.followees();
+        this.likes = containers.likes();
+
+        long period = Long.parseLong(cosmosDBProps.getProperty("likesReconcilePeriod", "300"));
+        long fullPeriod = Long.parseLong(cosmosDBProps.getProperty("likesFullReconcilePeriod", "86400"));
+        if (period > 0 || fullPeriod > 0) {
+            var reconciler = Threads.daemonScheduler("cosmos-likes-reconciler");
+            if (period > 0)
+                reconciler.scheduleWithFixedDelay(this::reconcileDriftedLikes, period, period, TimeUnit.SECONDS);
+            // the full recount also runs at startup, since pods may not live for a whole period
+            if (fullPeriod > 0)
+                reconciler.scheduleWithFixedDelay(this::reconcileLikes, 0, fullPeriod, TimeUnit.SECONDS);
+        }
+        likesBuffer = LikesBuffer.fromProperties(cosmosDBProps, this::flushLikes, this::isLiked);
+        feedCache = FeedCache.fromProperties();
+        bulk = CosmosBulk.fromProperties(cosmosDBProps);
     }
 
     public static AzureShorts getInstance() {
@@ -60,7 +140,12 @@ public class AzureShorts implements Shorts {
             var shrt = new Short(shortId, userId, blobUrl);
 
             try {
-                container.createItem(shrt);
+                shorts.createItem(shrt, new PartitionKey(userId), new CosmosItemRequestOptions());
+
+                // Push the short to the feeds of the followers
+                if (feedCache != null)
+                    feedCache.publish(shrt, feedCache.isCelebrity(userId) ? List.of() : followersOf(userId));
+
                 return ok(shrt.copyWithLikes(0));
             } catch (Exception e) {
                 Log.severe("Error creating short: " + e.getMessage());
@@ -77,19 +162,41 @@ public class AzureShorts implements Shorts {
             return error(BAD_REQUEST);
 
         try {
-            // Get the short
-            var short_response = container.readItem(shortId, new PartitionKey(shortId), Short.class);
-            var shrt = short_response.getItem();
+            // The like counter is kept up to date on the short itself
+            var shrt = shorts.readItem(shortId, ShortsContainers.shortKey(shortId),
+                    CosmosClientContainer.pointReadOptions(), Short.class).getItem();
+            if (likesBuffer != null)
+                shrt = shrt.copyWithLikes(shrt.getTotalLikes() + likesBuffer.pendingDelta(shortId));
+            return ok(shrt);
+        } catch (CosmosException e) {
+            // only a missing short is a NOT_FOUND, which is cached as a tombstone
+            Log.severe("Error getting short: " + e.getMessage());
+            return error(e.getStatusCode() == 404 ? NOT_FOUND : INTERNAL_ERROR);
+        }
+    }
 
-            // Count likes using a query
-            String query = "SELECT VALUE COUNT(1) FROM c WHERE c.type = 'LIKE' AND c.shortId = '" + shortId + "'";
-            var likes_response = container.queryItems(query, new CosmosQueryRequestOptions(), Long.class);
-            long likesCount = likes_response.iterator().next();
+    @Override
+    public Result<List<Short>> getShorts(List<String> shortIds) {
+        Log.info(() -> format("getShorts : shortIds = %s\n", shortIds));
 
-            return ok(shrt.copyWithLikes(likesCount));
-        } catch (Exception e) {
-            Log.severe("Error getting short: " + e.getMessage());
-            return error(NOT_FOUND);
+        if (shortIds == null)
+            return error(BAD_REQUEST);
+        if (shortIds.isEmpty())
+            return ok(List.of());
+
+        var ids = shortIds.stream().distinct().toList();
+        try {
+            Map<String, Short> found = new HashMap<>();
+            var items = ids.stream().map(id -> new CosmosItemIdentity(ShortsContainers.shortKey(id), id)).toList();
+            for (var shrt : shorts.readMany(items, Short.class).getResults()) {
+                if (likesBuffer != null)
+                    shrt = shrt.copyWithLikes(shrt.getTotalLikes() + likesBuffer.pendingDelta(shrt.getId()));
+                found.put(shrt.getId(), shrt);
+            }
+            return ok(ids.stream().map(found::get).filter(Objects::nonNull).toList());
+        } catch (CosmosException e) {
+            Log.severe("Error getting shorts: " + e.getMessage());
+            return error(INTERNAL_ERROR);
         }
     }
 
@@ -104,18 +211,26 @@ public class AzureShorts implements Shorts {
 
         return errorOrResult(getShort(shortId), shrt ->
                 errorOrResult(okUser(shrt.getOwnerId(), password), user -> {
-                    try {
-                        // Delete the short
-                        container.deleteItem(shortId, new PartitionKey(shortId), new CosmosItemRequestOptions());
+                    // Write buffered likes first, so none of them is left behind
+                    if (likesBuffer != null)
+                        likesBuffer.flush();
 
+                    // The short is deleted last, so a failed delete can be run again while it can still be found
+                    try {
                         // Delete associated likes
-                        String query = "SELECT * FROM c WHERE c.type = 'LIKE' AND c.shortId = '" + shortId + "'";
-                        container.queryItems(query, new CosmosQueryRequestOptions(), Likes.class)
-                                .forEach(like -> container.deleteItem(like.getId(), new PartitionKey(like.getId()), new CosmosItemRequestOptions()));
+                        var likeDeletes = LIKES_OF.in(likes, shortId, Likes.class, shortId).stream()
+                                .map(l -> delete(l.getId(), shortId)).toList();
+                        if (!bulk.execute(likes, likeDeletes, "likes of short " + shortId).isOK())
+                            return error(INTERNAL_ERROR);
+
+                        if (feedCache != null)
+                            feedCache.remove(shrt, followersOf(shrt.getOwnerId()));
 
-                        // Delete the blob
-                        String blobName = shrt.getBlobUrl().substring(shrt.getBlobUrl().lastIndexOf('/') + 1, shrt.getBlobUrl().lastIndexOf('?'));
-                        JavaBlobs.getInstance().delete(blobName, cookie);
+                        // Delete the blob, named after the short
+                        JavaBlobs.getInstance().delete(shortId, cookie);
+
+                        // Delete the short
+                        shorts.deleteItem(shortId, ShortsContainers.shortKey(shortId), new CosmosItemRequestOptions());
 
                         return ok();
                     } catch (Exception e) {
@@ -130,9 +245,8 @@ public class AzureShorts implements Shorts {
     public Result<List<String>> getShorts(String userId) {
         Log.info(() -> format("getShorts : userId = %s\n", userId));
 
-        String query = "SELECT * FROM c WHERE c.type = 'SHORT' AND c.ownerId = '" + userId + "'";
         try {
-            var response = container.queryItems(query, new CosmosQueryRequestOptions(), Short.class);
+            var response = SHORTS_OF.in(shorts, userId, Short.class, userId);
             List<String> ids = response.stream().map(Short::getId).toList();
             return ok(ids);
         } catch (Exception e) {
@@ -141,6 +255,14 @@ public class AzureShorts implements Shorts {
         }
     }
 
+    @Override
+    public Result<Page<String>> getShorts(String userId, String token, int size) {
+        Log.info(() -> format("getShorts : userId = %s, token = %s, size = %d\n", userId, token, size));
+
+        return queryPage(SHORTS_OF.in(shorts, userId, Short.class, userId), Short::getId,
+                token, size, "Error getting shorts: ");
+    }
+
     @Override
     public Result<Void> follow(String userId1, String userId2, boolean isFollowing, String password) {
         Log.info(() -> format("follow : userId1 = %s, userId2 = %s, isFollowing = %s, pwd = %s\n",
@@ -148,13 +270,19 @@ public class AzureShorts implements Shorts {
 
         return errorOrResult(okUser(userId1, password), user -> {
             try {
-                String followId = format("%s-%s", userId1, userId2);
+                // the follower copy first, so a follow listed as a follower is always in the feeds
                 if (isFollowing) {
-                    var following = new Following(followId, userId1, userId2);
-                    container.createItem(following);
+                    followees.upsertItem(new Following(userId2, userId1, userId2), new PartitionKey(userId1),
+                            new CosmosItemRequestOptions());
+                    followers.upsertItem(new Following(userId1, userId1, userId2), new PartitionKey(userId2),
+                            new CosmosItemRequestOptions());
                 } else {
-                    container.deleteItem(followId, new PartitionKey(followId), new CosmosItemRequestOptions());
+                    deleteIfExists(followers, userId1, new PartitionKey(userId2));
+                    deleteIfExists(followees, userId2, new PartitionKey(userId1));
                 }
+
+                if (feedCache != null)
+                    feedCache.follow(userId1, userId2, isFollowing);
                 return ok();
             } catch (Exception e) {
                 Log.severe("Error managing follow: " + e.getMessage());
@@ -168,11 +296,8 @@ public class AzureShorts implements Shorts {
         Log.info(() -> format("followers : userId = %s, pwd = %s\n", userId, password));
 
         return errorOrResult(okUser(userId, password), user -> {
-            String query = "SELECT * FROM c WHERE c.type = 'FOLLOWING' AND c.followee = '" + userId + "'";
             try {
-                var response = container.queryItems(query, new CosmosQueryRequestOptions(), Following.class);
-                List<String> ids = response.stream().map(Following::getFollower).toList();
-                return ok(ids);
+                return ok(followersOf(userId));
             } catch (Exception e) {
                 Log.severe("Error getting followers: " + e.getMessage());
                 return error(INTERNAL_ERROR);
@@ -180,26 +305,45 @@ public class AzureShorts implements Shorts {
         });
     }
 
+    @Override
+    public Result<Page<String>> followers(String userId, String password, String token, int size) {
+        Log.info(() -> format("followers : userId = %s, pwd = %s, token = %s, size = %d\n", userId, password, token, size));
+
+        return errorOrResult(okUser(userId, password), user -> {
+            return queryPage(FOLLOWERS_OF.in(followers, userId, Following.class, userId),
+                    Following::getFollower, token, size, "Error getting followers: ");
+        });
+    }
+
     @Override
     public Result<Void> like(String shortId, String userId, boolean isLiked, String password) {
         Log.info(() -> format("like : shortId = %s, userId = %s, isLiked = %s, pwd = %s\n",
                 shortId, userId, isLiked, password));
 
-        return errorOrResult(getShort(shortId), shrt -> {
+        return errorOrResult(getShort(shortId), shrt -> errorOrResult(okUser(userId, password), user -> {
+            if (likesBuffer != null)
+                return likesBuffer.add(userId, shortId, shrt.getOwnerId(), isLiked);
+
             try {
-                String likeId = format("%s-%s", userId, shortId);
+                // within the partition of the short, the like of a user is identified by the user
                 if (isLiked) {
-                    var like = new Likes(likeId, userId, shortId, shrt.getOwnerId());
-                    container.createItem(like);
+                    var like = new Likes(userId, userId, shortId, shrt.getOwnerId());
+                    likes.createItem(like, new PartitionKey(shortId), new CosmosItemRequestOptions());
                 } else {
-                    container.deleteItem(likeId, new PartitionKey(likeId), new CosmosItemRequestOptions());
+                    likes.deleteItem(userId, new PartitionKey(shortId), new CosmosItemRequestOptions());
                 }
+                incrementLikes(shortId, isLiked ? 1 : -1);
                 return ok();
+            } catch (CosmosException e) {
+                if (e.getStatusCode() == (isLiked ? 409 : 404))
+                    return error(isLiked ? CONFLICT : NOT_FOUND);
+                Log.severe("Error managing like: " + e.getMessage());
+                return error(INTERNAL_ERROR);
             } catch (Exception e) {
                 Log.severe("Error managing like: " + e.getMessage());
                 return error(INTERNAL_ERROR);
             }
-        });
+        }));
     }
 
     @Override
@@ -208,11 +352,10 @@ public class AzureShorts implements Shorts {
 
         return errorOrResult(getShort(shortId), shrt ->
                 errorOrResult(okUser(shrt.getOwnerId(), password), user -> {
-                    String query = "SELECT * FROM c WHERE c.type = 'LIKE' AND c.shortId = '" + shortId + "'";
                     try {
-                        var response = container.queryItems(query, new CosmosQueryRequestOptions(), Likes.class);
+                        var response = LIKES_OF.in(likes, shortId, Likes.class, shortId);
                         List<String> ids = response.stream().map(Likes::getUserId).toList();
-                        return ok(ids);
+                        return ok(likesBuffer == null ? ids : likesBuffer.applyTo(shortId, ids));
                     } catch (Exception e) {
                         Log.severe("Error getting likes: " + e.getMessage());
                         return error(INTERNAL_ERROR);
@@ -221,28 +364,83 @@ public class AzureShorts implements Shorts {
         );
     }
 
+    @Override
+    public Result<Page<String>> likes(String shortId, String password, String token, int size) {
+        Log.info(() -> format("likes : shortId = %s, pwd = %s, token = %s, size = %d\n", shortId, password, token, size));
+
+        return errorOrResult(getShort(shortId), shrt ->
+                errorOrResult(okUser(shrt.getOwnerId(), password), user -> {
+                    var res = queryPage(LIKES_OF.in(likes, shortId, Likes.class, shortId),
+                            Likes::getUserId, token, size, "Error getting likes: ");
+                    if (!res.isOK() || likesBuffer == null)
+                        return res;
+
+                    // Buffered likes are listed on the first page
+                    var page = res.value();
+                    return ok(new Page<>(likesBuffer.applyTo(shortId, page.items(), token == null), page.next()));
+                })
+        );
+    }
+
     @Override
     public Result<List<String>> getFeed(String userId, String password) {
-        Log.info(() -> format("getFeed : userId = %s, pwd = %s\n", userId, password));
+        // The whole feed, page by page: the pages past the shorts kept in the materialized feed come from the database
+        int size = feedCache == null ? Page.MAX_SIZE : feedCache.getMaxSize();
+        List<String> feed = new ArrayList<>();
+        String token = null;
+        do {
+            var res = getFeed(userId, password, token, size);
+            if (!res.isOK())
+                return error(res.error());
+            feed.addAll(res.value().items());
+            token = res.value().next();
+        } while (token != null);
+        return ok(feed);
+    }
+
+    @Override
+    public Result<Page<String>> getFeed(String userId, String password, String token, int size) {
+        Log.info(() -> format("getFeed : userId = %s, pwd = %s, token = %s, size = %d\n", userId, password, token, size));
 
         return errorOrResult(okUser(userId, password), user -> {
-            String queryFollowees = "SELECT * FROM f WHERE f.type = 'FOLLOWING' AND f.follower = '%s'".formatted(userId);
-            String queryFeedBase = """
-                    SELECT *
-                    FROM c
-                    WHERE c.type = 'SHORT' AND (
-                        c.ownerId = '%s' OR
-                        c.ownerId IN (%s)
-                    )
-                    ORDER BY c._ts DESC
-                    """;
+            // Pages resume after the (timestamp, id) of the last short of the previous page
+            long beforeTimestamp = Long.MAX_VALUE;
+            String beforeId = "";
+            if (token != null) {
+                try {
+                    String[] keys = Page.keys(token, 2);
+                    beforeTimestamp = Long.parseLong(keys[0]);
+                    beforeId = keys[1];
+                } catch (IllegalArgumentException e) {
+                    return error(BAD_REQUEST);
+                }
+            }
+
+            if (feedCache != null) {
+                Page<String> page = feedCache.getFeed(userId, beforeTimestamp, beforeId, size);
+                if (page != null)
+                    return ok(page);
+            }
+
+            // The first page also rebuilds the materialized feed, which needs more shorts than a page
+            boolean rebuild = feedCache != null && token == null;
             try {
-                var followeeResponse = container.queryItems(queryFollowees, new CosmosQueryRequestOptions(), Following.class);
-                String followeeIds = followeeResponse.stream().map(f -> "'" + f.getFollowee() + "'").collect(Collectors.joining(", "));
-                String queryFeed = queryFeedBase.formatted(userId, followeeIds);
-                var feedResponse = container.queryItems(queryFeed, new CosmosQueryRequestOptions(), Short.class);
-                List<String> shortIds = feedResponse.stream().map(Short::getId).toList();
-                return ok(shortIds);
+                List<String> owners = new ArrayList<>(followeesOf(userId));
+                owners.add(userId);
+
+                int limit = rebuild ? Math.max(size + 1, feedCache.getMaxSize()) : size + 1;
+                var feedResponse = FEED.across(shorts, Short.class, owners, beforeTimestamp, beforeId, limit);
+                // ties on the timestamp are not ordered by the query
+                List<Short> shorts = feedResponse.stream()
+                        .sorted(Comparator.comparingLong(Short::getTimestamp).thenComparing(Short::getId).reversed())
+                        .toList();
+
+                if (rebuild)
+                    feedCache.rebuild(userId, shorts);
+
+                var page = Page.of(shorts.subList(0, Math.min(shorts.size(), size + 1)), size,
+                        s -> new String[]{String.valueOf(s.getTimestamp()), s.getId()});
+                return ok(new Page<>(page.items().stream().map(Short::getId).toList(), page.next()));
             } catch (Exception e) {
                 Log.severe("Error getting feed: " + e.getMessage());
                 return error(INTERNAL_ERROR);
@@ -255,25 +453,77 @@ public class AzureShorts implements Shorts {
         Log.info(() -> format("deleteAllShorts : userId = %s, password = %s, token = %s\n",
                 userId, password, cookie));
 
+        // Write buffered likes first, so none of them is left behind
+        if (likesBuffer != null)
+            likesBuffer.flush();
+
         try {
-            // Delete all shorts
-            String shortsQuery = "SELECT * FROM c WHERE c.type = 'SHORT' AND c.ownerId = '" + userId + "'";
-            container.queryItems(shortsQuery, new CosmosQueryRequestOptions(), Short.class)
-                    .forEach(s -> container.deleteItem(s.getId(), new PartitionKey(s.getId()), new CosmosItemRequestOptions()));
+            // Also used after the follows are deleted, to drop the feeds of the followers
+            List<String> userFollowers = followersOf(userId);
 
-            // Delete all follows
-            String followsQuery = "SELECT * FROM c WHERE c.type = 'FOLLOWING' AND (c.follower = '" + userId + "' OR c.followee = '" + userId + "')";
-            container.queryItems(followsQuery, new CosmosQueryRequestOptions(), Following.class)
-                    .forEach(f -> container.deleteItem(f.getId(), new PartitionKey(f.getId()), new CosmosItemRequestOptions()));
+            // Each step is a bulk of deletes of the items listed by one query, missing items are skipped,
+            // so a failed cascade can be run again
+            int failed = 0;
 
-            // Delete all blobs
-            JavaBlobs.getInstance().deleteAllBlobs(userId, cookie);
+            // Delete the likes of the shorts of the user, listed by owner across the partitions of the likes
+            var likeDeletes = LIKES_ON.across(likes, Likes.class, userId).stream()
+                    .map(l -> delete(l.getId(), l.getShortId())).toList();
+            failed += bulk.execute(likes, likeDeletes, "likes of the shorts of " + userId).failed();
 
-            // Delete all likes
-            String likesQuery = "SELECT * FROM c WHERE c.type = 'LIKE' AND (c.userId = '" + userId + "' OR c.ownerId = '" + userId + "')";
-            container.queryItems(likesQuery, new CosmosQueryRequestOptions(), Likes.class)
-                    .forEach(l -> container.deleteItem(l.getId(), new PartitionKey(l.getId()), new CosmosItemRequestOptions()));
+            // Delete all shorts
+            var shortDeletes = SHORTS_OF.in(shorts, userId, Short.class, userId).stream()
+                    .map(s -> delete(s.getId(), userId)).toList();
+            var deletedShorts = bulk.execute(shorts, shortDeletes, "shorts of " + userId);
+            failed += deletedShorts.failed();
+
+            // Delete all follows, both copies of each
+            List<CosmosItemOperation> followerDeletes = new ArrayList<>();
+            List<CosmosItemOperation> followeeDeletes = new ArrayList<>();
+            for (String follower : userFollowers) {
+                followerDeletes.add(delete(follower, userId));
+                followeeDeletes.add(delete(userId, follower));
+            }
+            for (String followee : followeesOf(userId)) {
+                followeeDeletes.add(delete(followee, userId));
+                followerDeletes.add(delete(userId, followee));
+            }
+            failed += bulk.execute(followers, followerDeletes, "followers of " + userId).failed();
+            failed += bulk.execute(followees, followeeDeletes, "followees of " + userId).failed();
+
+            // Delete the blobs of the deleted shorts, named after them; those of the others go with a retry
+            for (var op : deletedShorts.applied()) {
+                var res = JavaBlobs.getInstance().delete(op.getId(), cookie);
+                if (!res.isOK())
+                    Log.warning(() -> format("Error deleting blob %s: %s\n", op.getId(), res.error()));
+            }
 
+            // Delete the likes of the user, the only query over all the partitions of the likes
+            var userLikeDeletes = LIKES_BY.across(likes, Likes.class, userId).stream()
+                    .filter(l -> !userId.equals(l.getOwnerId()))
+                    .map(l -> CosmosBulkOperations.getDeleteItemOperation(l.getId(), new PartitionKey(l.getShortId()), l))
+                    .toList();
+            var outcome = bulk.execute(likes, userLikeDeletes, "likes of " + userId);
+            failed += outcome.failed();
+
+            // The likes of the user disappear from the counters of the shorts of other users
+            var decrements = outcome.applied().stream()
+                    .map(op -> op.<Likes>getContext().getShortId())
+                    .map(shortId -> CosmosBulkOperations.getPatchItemOperation(shortId, ShortsContainers.shortKey(shortId),
+                            CosmosPatchOperations.create().increment("/totalLikes", -1)))
+                    .toList();
+            // the reconciliation will fix the counters that could not be updated
+            var decremented = bulk.execute(shorts, decrements, "like counters of the shorts liked by " + userId).applied()
+                    .stream().map(CosmosItemOperation::getId).collect(Collectors.toSet());
+            decrements.stream().map(CosmosItemOperation::getId).filter(id -> !decremented.contains(id))
+                    .forEach(driftedCounters::add);
+
+            if (feedCache != null)
+                feedCache.deleteUser(userId, userFollowers);
+            if (failed > 0) {
+                int count = failed;
+                Log.severe(() -> format("deleteAllShorts : %d deletes failed for user %s\n", count, userId));
+                return error(INTERNAL_ERROR);
+            }
             return ok();
         } catch (Exception e) {
             Log.severe("Error deleting all shorts: " + e.getMessage());
@@ -281,6 +531,187 @@ public class AzureShorts implements Shorts {
         }
     }
 
+    /**
+     * Reads one page of a query, resuming from the continuation token of the previous page.
+     */
+    private <T> Result<Page<String>> queryPage(CosmosPagedIterable<T> results, Function<T, String> id,
+                                               String token, int size, String errorMessage) {
+        String continuation;
+        try {
+            continuation = token == null ? null : Page.keys(token, 1)[0];
+        } catch (IllegalArgumentException e) {
+            return error(BAD_REQUEST);
+        }
+
+        try {
+            var pages = results.iterableByPage(continuation, size).iterator();
+            if (!pages.hasNext())
+                return ok(new Page<>(List.of(), null));
+
+            var page = pages.next();
+            String next = page.getContinuationToken();
+            return ok(new Page<>(page.getResults().stream().map(id).toList(), next == null ? null : Page.token(next)));
+        } catch (CosmosException e) {
+            Log.severe(errorMessage + e.getMessage());
+            return error(e.getStatusCode() == 400 ? BAD_REQUEST : INTERNAL_ERROR);
+        }
+    }
+
+    private List<String> followersOf(String userId) {
+        return FOLLOWERS_OF.in(followers, userId, Following.class, userId)
+                .stream().map(Following::getFollower).toList();
+    }
+
+    private List<String> followeesOf(String userId) {
+        return FOLLOWEES_OF.in(followees, userId, Following.class, userId)
+                .stream().map(Following::getFollowee).toList();
+    }
+
+    private static CosmosItemOperation delete(String id, String partition) {
+        return CosmosBulkOperations.getDeleteItemOperation(id, new PartitionKey(partition));
+    }
+
+    // Deletes an item, unless it is already gone
+    private static void deleteIfExists(CosmosContainer container, String id, PartitionKey key) {
+        try {
+            container.deleteItem(id, key, new CosmosItemRequestOptions());
+        } catch (CosmosException e) {
+            if (e.getStatusCode() != 404)
+                throw e;
+        }
+    }
+
+    private void incrementLikes(String shortId, int delta) {
+        try {
+            shorts.patchItem(shortId, ShortsContainers.shortKey(shortId),
+                    CosmosPatchOperations.create().increment("/totalLikes", delta), Short.class);
+        } catch (CosmosException e) {
+            // the reconciliation will fix the counter later on
+            driftedCounters.add(shortId);
+            Log.warning(() -> format("Error updating like counter of short %s: %s\n", shortId, e.getMessage()));
+        }
+    }
+
+    private boolean isLiked(String shortId, String userId) {
+        try {
+            likes.readItem(userId, new PartitionKey(shortId), CosmosClientContainer.pointReadOptions(), Likes.class);
+            return true;
+        } catch (CosmosException e) {
+            if (e.getStatusCode() == 404)
+                return false;
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a batch of buffered like toggles with the bulk executor, followed by one counter patch per short.
+     * Creating an existing like or deleting a missing one leaves the counter untouched, so a batch can be
+     * retried safely.
+     */
+    private void flushLikes(List<LikesBuffer.PendingLike> pending) {
+        List<CosmosItemOperation> ops = new ArrayList<>();
+        for (var l : pending) {
+            if (l.liked())
+                ops.add(CosmosBulkOperations.getCreateItemOperation(
+                        new Likes(l.userId(), l.userId(), l.shortId(), l.ownerId()), new PartitionKey(l.shortId()), l));
+            else
+                ops.add(CosmosBulkOperations.getDeleteItemOperation(l.userId(), new PartitionKey(l.shortId()), l));
+        }
+
+        Map<String, Integer> deltas = new HashMap<>();
+        int failed = 0;
+        for (var r : likes.<LikesBuffer.PendingLike>executeBulkOperations(ops)) {
+            LikesBuffer.PendingLike l = r.getOperation().getContext();
+            var response = r.getResponse();
+            if (response != null && response.isSuccessStatusCode())
+                deltas.merge(l.shortId(), l.liked() ? 1 : -1, Integer::sum);
+            else if (response == null || (response.getStatusCode() != 409 && response.getStatusCode() != 404))
+                failed++;
+        }
+
+        List<CosmosItemOperation> patches = new ArrayList<>();
+        deltas.forEach((shortId, delta) -> {
+            if (delta != 0)
+                patches.add(CosmosBulkOperations.getPatchItemOperation(shortId, ShortsContainers.shortKey(shortId),
+                        CosmosPatchOperations.create().increment("/totalLikes", delta)));
+        });
+        for (var r : shorts.executeBulkOperations(patches)) {
+            if (r.getResponse() == null || !r.getResponse().isSuccessStatusCode()) {
+                // the reconciliation will fix the counter later on
+                driftedCounters.add(r.getOperation().getId());
+                Log.warning(() -> format("Error updating like counter of short %s\n", r.getOperation().getId()));
+            }
+        }
+
+        if (failed > 0)
+            throw new IllegalStateException(format("%d of %d like operations failed", failed, ops.size()));
+    }
+
+    /**
+     * Recounts the likes of the shorts whose counter could not be updated, one partition of the likes each.
+     * Runs every likesReconcilePeriod seconds.
+     */
+    void reconcileDriftedLikes() {
+        for (String shortId : List.copyOf(driftedCounters)) {
+            driftedCounters.remove(shortId);
+            try {
+                // the counter is read before the likes are counted, so its etag changes if it is updated meanwhile
+                var stored = shorts.readItem(shortId, ShortsContainers.shortKey(shortId), Short.class);
+                var options = CosmosClientContainer.backgroundQueryOptions().setPartitionKey(new PartitionKey(shortId));
+                long count = LIKES_COUNT_OF.execute(likes, options, Long.class, shortId).stream().findFirst().orElse(0L);
+                setLikes(shortId, stored.getETag(), stored.getItem().getTotalLikes(), count);
+            } catch (CosmosException e) {
+                if (e.getStatusCode() == 404)
+                    continue;
+                driftedCounters.add(shortId);
+                Log.severe("Error reconciling likes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Recomputes all the like counters from the like documents, e.g. after a pod stopped between writing a like
+     * and its counter. Runs at startup and every likesFullReconcilePeriod seconds, in the background throughput control
+     * group.
+     */
+    void reconcileLikes() {
+        try {
+            // the counters are read before the likes are counted, so their etags change if they are updated meanwhile
+            Map<String, JsonNode> stored = new HashMap<>();
+            LIKES_TOTAL.execute(shorts, CosmosClientContainer.backgroundQueryOptions(), JsonNode.class)
+                    .forEach(n -> stored.put(n.get("id").asText(), n));
+
+            Map<String, Long> counted = new HashMap<>();
+            LIKES_COUNT.execute(likes, CosmosClientContainer.backgroundQueryOptions(), JsonNode.class)
+                    .forEach(n -> counted.put(n.get("shortId").asText(), n.get("likes").asLong()));
+
+            stored.forEach((shortId, n) -> setLikes(shortId, n.path("_etag").asText(),
+                    n.path("totalLikes").asLong(), counted.getOrDefault(shortId, 0L)));
+        } catch (CosmosException e) {
+            Log.severe("Error reconciling likes: " + e.getMessage());
+        }
+    }
+
+    // Sets the like counter of a short to the count of its likes, only if the short still has the etag read with
+    // the counter: a concurrent increment is not overwritten, the short is recounted by the next reconciliation
+    private void setLikes(String shortId, String etag, long stored, long count) {
+        if (stored == count)
+            return;
+        Log.warning(() -> format("reconcileLikes : short %s has %d likes, not %d\n", shortId, count, stored));
+        var options = new CosmosPatchItemRequestOptions();
+        options.setIfMatchETag(etag);
+        try {
+            shorts.patchItem(shortId, ShortsContainers.shortKey(shortId),
+                    CosmosPatchOperations.create().set("/totalLikes", count), options, Short.class);
+        } catch (CosmosException e) {
+            if (e.getStatusCode() == 404)
+                return;
+            driftedCounters.add(shortId);
+            if (e.getStatusCode() != 412)
+                Log.warning(() -> format("Error reconciling the likes of short %s: %s\n", shortId, e.getMessage()));
+        }
+    }
+
     protected Result<User> okUser(String userId, String pwd) {
         return UsersImpl.getInstance().getUser(userId, pwd);
     }
@@ -0,0 +1,110 @@
+package tukano.impl.shorts;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.databind.JsonNode;
+import tukano.api.Short;
+import tukano.impl.CosmosBulk;
+import tukano.impl.CosmosClientContainer;
+import tukano.impl.CosmosQuery;
+import tukano.impl.data.Following;
+import tukano.impl.data.Likes;
+import tukano.impl.data.ShortContainerType;
+import utils.ResourceUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Copies the shorts, follows and likes kept by earlier releases in a single container (shortContainerName),
+ * told apart by their type and partitioned by id, to the partitioned containers of {@link AzureShorts}.
+ * <p>
+ * The like counters of the shorts are set to the number of their likes copied.
+ * <p>
+ * Items are upserted with {@link CosmosBulk}; nothing is ever deleted from the target. The migration is a one-shot
+ * run, after the pods of the earlier release are stopped and before the pods of this release start: deletes made
+ * by older pods after it ran would not be carried over, and running it again once the new pods serve requests
+ * brings back what they deleted. A failed run can be run again before the new pods start. The source container
+ * is left as is.
+ * <p>
+ * Usage: java -cp tukano.jar tukano.impl.shorts.AzureShortsMigration
+ */
+public class AzureShortsMigration {
+
+    private static final Logger Log = Logger.getLogger(AzureShortsMigration.class.getName());
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final CosmosQuery LEGACY_ITEMS = CosmosQuery.of("legacyItems", "SELECT * FROM c WHERE c.type = @type");
+    private static final CosmosQuery LEGACY_LIKES_COUNT = CosmosQuery.of("legacyLikesCount",
+            "SELECT c.shortId, COUNT(1) AS likes FROM c WHERE c.type = @type GROUP BY c.shortId");
+
+    public static void main(String[] args) {
+        Properties props = new Properties();
+        ResourceUtils.loadPropertiesFromResources(props, "db.properties");
+        var source = CosmosClientContainer.getContainer(props.getProperty("shortContainerName"));
+        var target = ShortsContainers.fromProperties(props);
+        var bulk = CosmosBulk.fromProperties(props);
+
+        // the like counters were not kept by the earlier releases, so the likes are counted here
+        Map<String, Integer> likes = new HashMap<>();
+        LEGACY_LIKES_COUNT.across(source, JsonNode.class, ShortContainerType.LIKE.name())
+                .forEach(n -> likes.put(n.get("shortId").asText(), n.get("likes").asInt()));
+        Log.info(() -> String.format("%d liked shorts counted\n", likes.size()));
+
+        int failed = copy(bulk, source, ShortContainerType.SHORT, Short.class, target.shorts(),
+                s -> upsert(s.copyWithLikes(likes.getOrDefault(s.getId(), 0)), s.getOwnerId()))
+                + copy(bulk, source, ShortContainerType.FOLLOWING, Following.class, target.followers(),
+                f -> upsert(new Following(f.getFollower(), f.getFollower(), f.getFollowee()), f.getFollowee()))
+                + copy(bulk, source, ShortContainerType.FOLLOWING, Following.class, target.followees(),
+                f -> upsert(new Following(f.getFollowee(), f.getFollower(), f.getFollowee()), f.getFollower()))
+                + copy(bulk, source, ShortContainerType.LIKE, Likes.class, target.likes(),
+                l -> upsert(new Likes(l.getUserId(), l.getUserId(), l.getShortId(), l.getOwnerId()), l.getShortId()));
+
+        CosmosClientContainer.getClient().close();
+        if (failed > 0) {
+            Log.severe(() -> String.format("Migration incomplete, %d items failed, run it again\n", failed));
+            System.exit(1);
+        }
+        Log.info("Migration complete");
+    }
+
+    /**
+     * Copies the items of a type of the source container to the target container, as mapped by the given function.
+     *
+     * @return the number of items that could not be written
+     */
+    static <T> int copy(CosmosBulk bulk, CosmosContainer source, ShortContainerType type, Class<T> clazz,
+                        CosmosContainer target, Function<T, CosmosItemOperation> mapping) {
+        List<CosmosItemOperation> batch = new ArrayList<>();
+        long copied = 0;
+        int failed = 0;
+        for (T item : LEGACY_ITEMS.across(source, clazz, type.name())) {
+            batch.add(mapping.apply(item));
+            if (batch.size() >= BATCH_SIZE) {
+                failed += bulk.execute(target, batch, type + " items").failed();
+                copied += batch.size();
+                batch.clear();
+                long progress = copied;
+                Log.info(() -> String.format("%s: %d items copied to %s\n", type, progress, target.getId()));
+            }
+        }
+        failed += bulk.execute(target, batch, type + " items").failed();
+        copied += batch.size();
+
+        long total = copied;
+        Log.info(() -> String.format("%s: %d items copied to %s\n", type, total, target.getId()));
+        return failed;
+    }
+
+    private static CosmosItemOperation upsert(Object item, String partition) {
+        return CosmosBulkOperations.getUpsertItemOperation(item, new PartitionKey(partition));
+    }
+}
@@ -0,0 +1,357 @@
+package tukano.impl.shorts;
+
+import jakarta.ws.rs.core.Cookie;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.Response;
+import tukano.api.Page;
+import tukano.api.Result;
+import tukano.api.Short;
+import tukano.api.Shorts;
+import tukano.api.User;
+import tukano.impl.RedisCachePool;
+import tukano.impl.users.UsersImpl;
+import utils.CachePolicy;
+import utils.CacheUtils;
+import utils.RedisBatch;
+import utils.ResourceUtils;
+import utils.Threads;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static tukano.api.Result.errorOrResult;
+import static tukano.api.Result.ok;
+
+/**
+ * Decorator of a Shorts backend that caches shorts, and the lists of shorts, followers and likes, in Redis.
+ * <p>
+ * Each list is kept in one Redis hash, with a field per page (or for the full list), so a change to the list
+ * drops all of its pages at once. The users named in cached follower and like lists are tracked in a set per user,
+ * so the entries that mention a deleted user are dropped along with it. Like toggles may be buffered by the backend,
+ * in which case the entries of the liked short are dropped again once the buffer was flushed.
+ * Feeds are not cached here, they are materialized by the backends.
+ * <p>
+ * Every list has a generation, incremented when the list is dropped. A list loaded from the backend is only
+ * cached if its generation did not change since before the load, so a load that read the list before a
+ * concurrent change does not bring back the dropped list.
+ * <p>
+ * In a Redis cluster the keys of a user's lists share the hash tag of the user, so they are kept on one node.
+ */
+public class CachingShorts implements Shorts {
+
+    private static final Logger Log = Logger.getLogger(CachingShorts.class.getName());
+
+    private static final String SHORT_PREFIX = "short:";
+    private static final String SHORTS_PREFIX = "shorts:";
+    private static final String FOLLOWERS_PREFIX = "followers:";
+    private static final String LIKES_PREFIX = "likes:";
+    private static final String REFS_PREFIX = "refs:";
+    private static final String GENERATION_PREFIX = "gen:";
+    private static final String ALL = "all";
+
+    // Sets a field of a list, with the expiry of the list, only if the generation of the list is the one read
+    // before the field was loaded. KEYS are the list and its generation, ARGV the generation, field, value and expiry.
+    private static final byte[] FILL_SCRIPT = bytes("""
+            if (redis.call('get', KEYS[2]) or '0') == ARGV[1] then
+                redis.call('hset', KEYS[1], ARGV[2], ARGV[3])
+                redis.call('expire', KEYS[1], ARGV[4])
+            end
+            """);
+
+    private final Shorts impl;
+    private final CachePolicy policy;
+    // milliseconds after which buffered likes are written, 0 if the backend writes them synchronously
+    private final long likesFlushDelay;
+    private final ScheduledExecutorService invalidator;
+
+    public CachingShorts(Shorts impl, CachePolicy policy, long likesFlushDelay) {
+        this.impl = impl;
+        this.policy = policy;
+        this.likesFlushDelay = likesFlushDelay;
+        this.invalidator = likesFlushDelay > 0 ? Threads.daemonScheduler("shorts-cache-invalidator") : null;
+        for (var prefix : new String[]{SHORT_PREFIX, SHORTS_PREFIX, FOLLOWERS_PREFIX, LIKES_PREFIX})
+            CacheUtils.setPolicy(prefix, policy);
+    }
+
+    /**
+     * Wraps the given backend in the cache configured in redis.properties, or returns it as is if the cache is disabled.
+     */
+    public static Shorts wrap(Shorts impl) {
+        Properties props = new Properties();
+        ResourceUtils.loadPropertiesFromResources(props, "redis.properties");
+        if (!Boolean.parseBoolean(props.getProperty("shortsCacheEnabled", "true")))
+            return impl;
+
+        // buffered likes reach the database within a flush interval, give them as much again to be written
+        Properties dbProps = new Properties();
+        ResourceUtils.loadPropertiesFromResources(dbProps, "db.properties");
+        boolean buffered = !(impl instanceof JavaShorts)
+                && Boolean.parseBoolean(dbProps.getProperty("likesBufferEnabled", "true"));
+        long flushDelay = buffered ? 2 * Long.parseLong(dbProps.getProperty("likesFlushInterval", "200")) : 0;
+
+        double jitter = Double.parseDouble(props.getProperty("cacheTtlJitter", "0.1"));
+        var policy = CachePolicy.fromProperties(props, "shorts", new CachePolicy(600, 0, 0.1, jitter));
+        return new CachingShorts(impl, policy, flushDelay);
+    }
+
+    @Override
+    public Result<Short> createShort(String userId, String password) {
+        var res = impl.createShort(userId, password);
+        if (res.isOK()) {
+            invalidate(userKey(SHORTS_PREFIX, userId));
+            // also replaces the tombstone of the id, if it was looked up before
+            store(SHORT_PREFIX + res.value().getId(), res.value());
+        }
+        return res;
+    }
+
+    @Override
+    public Result<Void> deleteShort(String shortId, String password) {
+        var shrt = getShort(shortId);
+        var res = impl.deleteShort(shortId, password);
+        if (res.isOK() && shrt.isOK())
+            invalidate(SHORT_PREFIX + shortId, LIKES_PREFIX + shortId, userKey(SHORTS_PREFIX, shrt.value().getOwnerId()));
+        return res;
+    }
+
+    @Override
+    public Result<Short> getShort(String shortId) {
+        if (shortId == null)
+            return impl.getShort(null);
+
+        return CacheUtils.getOrLoad(SHORT_PREFIX + shortId, Short.class, () -> impl.getShort(shortId));
+    }
+
+    @Override
+    public Result<List<Short>> getShorts(List<String> shortIds) {
+        if (shortIds == null)
+            return impl.getShorts((List<String>) null);
+
+        // One MGET for the cached shorts, one backend call for the others
+        return CacheUtils.getAllOrLoad(SHORT_PREFIX, shortIds, Short.class, Short::getId, impl::getShorts);
+    }
+
+    @Override
+    public Result<List<String>> getShorts(String userId) {
+        return cached(userKey(SHORTS_PREFIX, userId), ALL, List.class, () -> impl.getShorts(userId), null);
+    }
+
+    @Override
+    public Result<Page<String>> getShorts(String userId, String token, int size) {
+        return cached(userKey(SHORTS_PREFIX, userId), field(token, size), Page.class, () -> impl.getShorts(userId, token, size), null);
+    }
+
+    @Override
+    public Result<Void> follow(String userId1, String userId2, boolean isFollowing, String password) {
+        var res = impl.follow(userId1, userId2, isFollowing, password);
+        if (res.isOK())
+            invalidate(userKey(FOLLOWERS_PREFIX, userId2));
+        return res;
+    }
+
+    @Override
+    public Result<List<String>> followers(String userId, String password) {
+        return errorOrResult(okUser(userId, password), user ->
+                cached(userKey(FOLLOWERS_PREFIX, userId), ALL, List.class, () -> impl.followers(userId, password), list -> list));
+    }
+
+    @Override
+    public Result<Page<String>> followers(String userId, String password, String token, int size) {
+        return errorOrResult(okUser(userId, password), user ->
+                cached(userKey(FOLLOWERS_PREFIX, userId), field(token, size), Page.class,
+                        () -> impl.followers(userId, password, token, size), Page::items));
+    }
+
+    @Override
+    public Result<Void> like(String shortId, String userId, boolean isLiked, String password) {
+        var res = impl.like(shortId, userId, isLiked, password);
+        if (res.isOK()) {
+            invalidate(SHORT_PREFIX + shortId, LIKES_PREFIX + shortId);
+            // readers may cache the counter and likes from the database before the buffered like is written
+            if (invalidator != null)
+                invalidator.schedule(() -> invalidate(SHORT_PREFIX + shortId, LIKES_PREFIX + shortId),
+                        likesFlushDelay, TimeUnit.MILLISECONDS);
+        }
+        return res;
+    }
+
+    @Override
+    public Result<List<String>> likes(String shortId, String password) {
+        return errorOrResult(getShort(shortId), shrt -> errorOrResult(okUser(shrt.getOwnerId(), password), user ->
+                cached(LIKES_PREFIX + shortId, ALL, List.class, () -> impl.likes(shortId, password), list -> list)));
+    }
+
+    @Override
+    public Result<Page<String>> likes(String shortId, String password, String token, int size) {
+        return errorOrResult(getShort(shortId), shrt -> errorOrResult(okUser(shrt.getOwnerId(), password), user ->
+                cached(LIKES_PREFIX + shortId, field(token, size), Page.class,
+                        () -> impl.likes(shortId, password, token, size), Page::items)));
+    }
+
+    @Override
+    public Result<List<String>> getFeed(String userId, String password) {
+        return impl.getFeed(userId, password);
+    }
+
+    @Override
+    public Result<Page<String>> getFeed(String userId, String password, String token, int size) {
+        return impl.getFeed(userId, password, token, size);
+    }
+
+    @Override
+    public Result<Void> deleteAllShorts(String userId, String password, Cookie cookie) {
+        // read before they are deleted, to drop them and their likes afterwards
+        var shorts = impl.getShorts(userId);
+        var res = impl.deleteAllShorts(userId, password, cookie);
+        if (!res.isOK())
+            return res;
+
+        List<String> keys = new ArrayList<>(List.of(
+                userKey(SHORTS_PREFIX, userId), userKey(FOLLOWERS_PREFIX, userId), userKey(REFS_PREFIX, userId)));
+        for (var shortId : shorts.isOK() ? shorts.value() : List.<String>of()) {
+            keys.add(SHORT_PREFIX + shortId);
+            keys.add(LIKES_PREFIX + shortId);
+        }
+        try {
+            // the follower and like lists of other users and shorts that name the user
+            keys.addAll(RedisCachePool.getCache().smembers(userKey(REFS_PREFIX, userId)));
+        } catch (Exception e) {
+            Log.warning(() -> "Shorts cache read error: " + e.getMessage());
+        }
+        invalidate(keys.toArray(String[]::new));
+        return res;
+    }
+
+    /**
+     * Returns the field of the cached list, or loads it from the backend and caches it.
+     * As in CacheUtils.getOrLoad, concurrent misses share one load, and lists still read near their expiry are reloaded.
+     *
+     * @param refs the users named by the loaded value, or null if it names none
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Result<T> cached(String key, String field, Class<?> clazz, Supplier<Result<T>> loader,
+                                 Function<T, List<?>> refs) {
+        // read along with the list, so before any load of the list
+        String generation = null;
+        try {
+            Response<byte[]> data;
+            Response<Long> remaining;
+            Response<String> current;
+            try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+                data = p.hget(bytes(key), bytes(field));
+                remaining = p.pttl(key);
+                current = p.get(generationKey(key));
+            }
+            generation = Objects.requireNonNullElse(current.get(), "0");
+            String loaded = generation;
+            T value = data.get() == null ? null : (T) CacheUtils.decode(data.get(), clazz);
+            if (value != null && !CacheUtils.refreshAhead(key + " " + field, policy, remaining.get(),
+                    () -> load(key, field, loaded, loader, refs)))
+                return ok(value);
+        } catch (Exception e) {
+            Log.warning(() -> "Shorts cache read error: " + e.getMessage());
+        }
+
+        String loaded = generation;
+        return CacheUtils.loadOnce(key + " " + field, () -> load(key, field, loaded, loader, refs));
+    }
+
+    // Loads a field of a list, and caches it if the list is still of the given generation, read before the load
+    // (null if it could not be read, in which case it is not cached)
+    private <T> Result<T> load(String key, String field, String generation, Supplier<Result<T>> loader,
+                               Function<T, List<?>> refs) {
+        var res = loader.get();
+        if (!res.isOK() || generation == null)
+            return res;
+
+        byte[] data = CacheUtils.encode(res.value());
+        if (data == null)
+            return res;
+        long expiry = policy.expiry();
+        List<?> users = refs == null ? List.of() : refs.apply(res.value());
+        Consumer<AbstractPipeline> fill = p -> {
+            p.eval(FILL_SCRIPT, List.of(bytes(key), bytes(generationKey(key))),
+                    List.of(bytes(generation), bytes(field), data, bytes(String.valueOf(expiry))));
+            for (var userId : users) {
+                String refsKey = userKey(REFS_PREFIX, String.valueOf(userId));
+                p.sadd(refsKey, key);
+                p.expire(refsKey, policy.ttl());
+            }
+        };
+        // sent with the other cache fills of the request, once it was answered
+        if (RedisBatch.queue(key, fill))
+            return res;
+
+        try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+            fill.accept(p);
+            p.sync();
+        } catch (Exception e) {
+            Log.warning(() -> "Shorts cache write error: " + e.getMessage());
+        }
+        return res;
+    }
+
+    private void store(String key, Object value) {
+        RedisBatch.cancel(key);
+        byte[] data = CacheUtils.encode(value);
+        if (data == null)
+            return;
+        try {
+            RedisCachePool.getCache().setex(bytes(key), policy.expiry(), data);
+        } catch (Exception e) {
+            Log.warning(() -> "Shorts cache write error: " + e.getMessage());
+        }
+    }
+
+    // One DEL per key, as in a cluster the keys may be on different nodes. The generation of the lists is
+    // incremented, so the loads of the lists already running do not cache them. Shorts are loaded by CacheUtils,
+    // which removes them so that the loads already running do not cache them either.
+    private void invalidate(String... keys) {
+        // the fills queued by the request, e.g. of the short read by deleteShort, would bring the keys back
+        RedisBatch.cancel(keys);
+        try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+            for (var key : keys) {
+                if (key.startsWith(SHORT_PREFIX)) {
+                    CacheUtils.removeFromCache(p, key);
+                    continue;
+                }
+                p.del(key);
+                p.incr(generationKey(key));
+                p.expire(generationKey(key), policy.ttl());
+            }
+            p.sync();
+        } catch (Exception e) {
+            Log.warning(() -> "Shorts cache invalidation error: " + e.getMessage());
+        }
+        // hot shorts are also kept in memory by the pods reading them
+        CacheUtils.invalidateHotKeys(keys);
+    }
+
+    // Key of a list of the user, tagged with the user
+    private static String userKey(String prefix, String userId) {
+        return prefix + RedisCachePool.hashTag(userId);
+    }
+
+    // Key of the generation of a list, in the hash slot of the list: tagged like the list, or with the whole key
+    private static String generationKey(String key) {
+        return key.indexOf('{') >= 0 ? GENERATION_PREFIX + key : GENERATION_PREFIX + "{" + key + "}";
+    }
+
+    private static String field(String token, int size) {
+        return size + ":" + (token == null ? "" : token);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Result<User> okUser(String userId, String pwd) {
+        return UsersImpl.getInstance().getUser(userId, pwd);
+    }
+}
@@ -0,0 +1,273 @@
+package tukano.impl.shorts;
+
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.resps.Tuple;
+import tukano.api.Page;
+import tukano.api.Short;
+import tukano.impl.RedisCachePool;
+import utils.ResourceUtils;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Materialized home feeds, kept in Redis sorted sets scored by the creation time of the shorts.
+ * <p>
+ * New shorts are pushed to the feeds of the followers of their owner (fan-out on write), so reading
+ * a page of a feed is a bounded range read. Owners with more than celebrityFollowers followers are not
+ * fanned out: their followers pull the recent shorts of these celebrities from the owners' own timelines
+ * when reading the feed. Feeds are only written once they exist; a missing feed is rebuilt by the backend
+ * from the database on the next read, and follow changes simply drop the feed of the follower.
+ * <p>
+ * In a Redis cluster the keys of a user share the hash tag of the user, so they are kept on one node.
+ */
+public class FeedCache {
+
+    private static final Logger Log = Logger.getLogger(FeedCache.class.getName());
+
+    private static final String FEED_PREFIX = "feed:home:";
+    private static final String POSTS_PREFIX = "feed:posts:";
+    private static final String CELEBRITY_FOLLOWEES_PREFIX = "feed:celebs:";
+    private static final String CELEBRITIES = "feed:celebrities";
+
+    // Marks a materialized feed, so empty feeds are not rebuilt on every read. Its score keeps it at rank 0.
+    private static final String MARKER = "";
+
+    // Adds a short to a feed only if the feed is materialized, and trims it to the max size
+    private static final String PUSH_SCRIPT = """
+            if redis.call('exists', KEYS[1]) == 1 then
+                redis.call('zadd', KEYS[1], ARGV[1], ARGV[2])
+                redis.call('zremrangebyrank', KEYS[1], 1, -tonumber(ARGV[3]) - 2)
+            end
+            """;
+
+    // Merges the given entries, the marker first, into a feed and trims it to the max size, ARGV being the TTL and
+    // the max size followed by the score and id of each entry. Shorts pushed since the entries were read from the
+    // database are kept. A script rather than a transaction, which a cluster client cannot send to the node of the key.
+    private static final String REBUILD_SCRIPT = """
+            for i = 3, #ARGV, 2 do
+                redis.call('zadd', KEYS[1], ARGV[i], ARGV[i + 1])
+            end
+            redis.call('zremrangebyrank', KEYS[1], 1, -tonumber(ARGV[2]) - 2)
+            redis.call('expire', KEYS[1], ARGV[1])
+            """;
+
+    // same order as the database: newest first, ties broken by descending id
+    private static final Comparator<Tuple> NEWEST_FIRST =
+            Comparator.comparingDouble(Tuple::getScore).thenComparing(Tuple::getElement).reversed();
+
+    private final int maxSize;
+    private final int celebrityFollowers;
+    private final long ttl;
+
+    public FeedCache(int maxSize, int celebrityFollowers, long ttl) {
+        this.maxSize = maxSize;
+        this.celebrityFollowers = celebrityFollowers;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Creates the feed cache configured in redis.properties, or returns null if materialized feeds are disabled.
+     */
+    public static FeedCache fromProperties() {
+        Properties props = new Properties();
+        ResourceUtils.loadPropertiesFromResources(props, "redis.properties");
+        if (!Boolean.parseBoolean(props.getProperty("feedEnabled", "true")))
+            return null;
+
+        return new FeedCache(
+                Integer.parseInt(props.getProperty("feedMaxSize", "500")),
+                Integer.parseInt(props.getProperty("feedCelebrityFollowers", "10000")),
+                Long.parseLong(props.getProperty("feedTtl", "604800")));
+    }
+
+    /**
+     * The max number of shorts kept per feed; rebuilds only need that many.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns one page of the feed of the given user, made of the shorts older than (beforeTimestamp, beforeId).
+     * Returns null if the feed is not materialized, or if the page reaches past the shorts kept in the feed.
+     */
+    public Page<String> getFeed(String userId, long beforeTimestamp, String beforeId, int size) {
+        try {
+            UnifiedJedis cache = RedisCachePool.getCache();
+            String key = feedKey(userId);
+            List<Tuple> entries = range(cache, key, beforeTimestamp, beforeId, size + 1);
+            if (entries.isEmpty() && !cache.exists(key))
+                return null;
+            // a full feed was trimmed, so older shorts may only be in the database
+            if (entries.size() <= size && cache.zcard(key) > maxSize)
+                return null;
+
+            // pull the recent shorts of the celebrities the user follows
+            for (String celebrity : cache.smembers(celebsKey(userId)))
+                entries.addAll(range(cache, postsKey(celebrity), beforeTimestamp, beforeId, size + 1));
+
+            cache.expire(key, ttl);
+            var merged = entries.stream()
+                    .sorted(NEWEST_FIRST)
+                    .map(t -> Map.entry((long) t.getScore(), t.getElement()))
+                    .distinct()
+                    .limit(size + 1)
+                    .toList();
+            var page = Page.of(merged, size, e -> new String[]{String.valueOf(e.getKey()), e.getValue()});
+            return new Page<>(page.items().stream().map(Map.Entry::getValue).toList(), page.next());
+        } catch (Exception e) {
+            Log.warning(() -> "Feed read error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Materializes the feed of a user from the shorts read from the database, keeping the shorts pushed to the
+     * feed since they were read.
+     */
+    public void rebuild(String userId, List<Short> shorts) {
+        List<String> args = new ArrayList<>(List.of(String.valueOf(ttl), String.valueOf(maxSize), "-inf", MARKER));
+        shorts.stream().limit(maxSize).forEach(s -> {
+            args.add(String.valueOf(s.getTimestamp()));
+            args.add(s.getId());
+        });
+
+        try {
+            RedisCachePool.getCache().eval(REBUILD_SCRIPT, List.of(feedKey(userId)), args);
+        } catch (Exception e) {
+            Log.warning(() -> "Feed rebuild error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Whether the shorts of the user are pulled by its followers instead of being pushed to their feeds, so
+     * publishing them does not need the followers. Read from the replica: a user promoted a moment ago may be
+     * fanned out once more.
+     */
+    public boolean isCelebrity(String userId) {
+        try {
+            return RedisCachePool.getReadCache().sismember(CELEBRITIES, userId);
+        } catch (Exception e) {
+            Log.warning(() -> "Feed read error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Pushes a new short to the timeline of its owner and to the feeds of the given followers, which are
+     * not needed if the owner is a celebrity.
+     * Owners past the celebrity threshold become celebrities, whose shorts are pulled by their followers.
+     */
+    public void publish(Short shrt, List<String> followers) {
+        String owner = shrt.getOwnerId();
+        String score = String.valueOf(shrt.getTimestamp());
+        try {
+            UnifiedJedis cache = RedisCachePool.getCache();
+            boolean celebrity = cache.sismember(CELEBRITIES, owner);
+            boolean promote = !celebrity && followers.size() > celebrityFollowers;
+
+            try (AbstractPipeline p = cache.pipelined()) {
+                p.zadd(postsKey(owner), shrt.getTimestamp(), shrt.getId());
+                p.zremrangeByRank(postsKey(owner), 0, -maxSize - 1);
+                push(p, owner, shrt.getId(), score);
+
+                if (promote) {
+                    Log.info(() -> String.format("User %s has %d followers, no longer fanning out its shorts\n",
+                            owner, followers.size()));
+                    p.sadd(CELEBRITIES, owner);
+                    for (String follower : followers)
+                        p.sadd(celebsKey(follower), owner);
+                } else if (!celebrity) {
+                    for (String follower : followers)
+                        push(p, follower, shrt.getId(), score);
+                }
+                p.sync();
+            }
+        } catch (Exception e) {
+            Log.warning(() -> "Feed publish error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes a deleted short from the timeline of its owner and from the feeds of the given followers.
+     */
+    public void remove(Short shrt, List<String> followers) {
+        String owner = shrt.getOwnerId();
+        try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+            p.zrem(postsKey(owner), shrt.getId());
+            p.zrem(feedKey(owner), shrt.getId());
+            for (String follower : followers)
+                p.zrem(feedKey(follower), shrt.getId());
+            p.sync();
+        } catch (Exception e) {
+            Log.warning(() -> "Feed remove error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops the feed of a follower after a follow or unfollow, so it is rebuilt on the next read.
+     */
+    public void follow(String follower, String followee, boolean isFollowing) {
+        try {
+            UnifiedJedis cache = RedisCachePool.getCache();
+            if (!isFollowing)
+                cache.srem(celebsKey(follower), followee);
+            else if (cache.sismember(CELEBRITIES, followee))
+                cache.sadd(celebsKey(follower), followee);
+            cache.del(feedKey(follower));
+        } catch (Exception e) {
+            Log.warning(() -> "Feed follow error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes everything kept for a deleted user, and drops the feeds of its followers.
+     */
+    public void deleteUser(String userId, List<String> followers) {
+        try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+            // the keys of a user share its hash tag, so they can be deleted together in a cluster too
+            p.del(feedKey(userId), postsKey(userId), celebsKey(userId));
+            p.srem(CELEBRITIES, userId);
+            for (String follower : followers) {
+                p.del(feedKey(follower));
+                p.srem(celebsKey(follower), userId);
+            }
+            p.sync();
+        } catch (Exception e) {
+            Log.warning(() -> "Feed delete error: " + e.getMessage());
+        }
+    }
+
+    // Reads up to count entries older than (beforeTimestamp, beforeId), newest first
+    private List<Tuple> range(UnifiedJedis cache, String key, long beforeTimestamp, String beforeId, int count) {
+        List<Tuple> res = new ArrayList<>();
+        for (int offset = 0; ; offset += count) {
+            var batch = cache.zrevrangeByScoreWithScores(key, beforeTimestamp, Double.NEGATIVE_INFINITY, offset, count);
+            for (Tuple t : batch) {
+                boolean older = t.getScore() < beforeTimestamp || t.getElement().compareTo(beforeId) < 0;
+                if (older && !MARKER.equals(t.getElement()) && res.size() < count)
+                    res.add(t);
+            }
+            if (batch.size() < count || res.size() == count)
+                return res;
+        }
+    }
+
+    private void push(AbstractPipeline p, String userId, String shortId, String score) {
+        p.eval(PUSH_SCRIPT, List.of(feedKey(userId)), List.of(score, shortId, String.valueOf(maxSize)));
+    }
+
+    private static String feedKey(String userId) {
+        return FEED_PREFIX + RedisCachePool.hashTag(userId);
+    }
+
+    private static String postsKey(String userId) {
+        return POSTS_PREFIX + RedisCachePool.hashTag(userId);
+    }
+
+    private static String celebsKey(String userId) {
+        return CELEBRITY_FOLLOWEES_PREFIX + RedisCachePool.hashTag(userId);
+    }
+}
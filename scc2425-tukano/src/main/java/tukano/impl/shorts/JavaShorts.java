@@ -10,8 +10,13 @@ import static tukano.api.Result.ErrorCode.BAD_REQUEST;
 import static tukano.api.Result.ErrorCode.FORBIDDEN;
 import static utils.DB.getOne;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import jakarta.ws.rs.core.Cookie;
@@ -27,6 +32,8 @@ import tukano.impl.rest.TukanoRestServer;
 import tukano.impl.users.JavaUsers;
 import utils.AuthUtils;
 import utils.DB;
+import utils.ResourceUtils;
+import utils.Threads;
 
 public class JavaShorts implements Shorts {
 
@@ -40,7 +47,14 @@ public class JavaShorts implements Shorts {
 		return instance;
 	}
 	
-	private JavaShorts() {}
+	private JavaShorts() {
+		Properties props = new Properties();
+		ResourceUtils.loadPropertiesFromResources(props, "db.properties");
+		long period = Long.parseLong(props.getProperty("likesReconcilePeriod", "300"));
+		if( period > 0 )
+			Threads.daemonScheduler("likes-reconciler")
+				.scheduleWithFixedDelay(this::reconcileLikes, period, period, TimeUnit.SECONDS);
+	}
 	
 	
 	@Override
@@ -64,9 +78,20 @@ public class JavaShorts implements Shorts {
 		if( shortId == null )
 			return error(BAD_REQUEST);
 
-		var query = format("SELECT count(*) FROM Likes l WHERE l.shortId = '%s'", shortId);
-		var likes = DB.sql(query, Long.class);
-		return errorOrValue( getOne(shortId, Short.class), shrt -> shrt.copyWithLikes( likes.get(0)));
+		return getOne(shortId, Short.class);
+	}
+
+	@Override
+	public Result<List<Short>> getShorts(List<String> shortIds) {
+		Log.info(() -> format("getShorts : shortIds = %s\n", shortIds));
+
+		if( shortIds == null )
+			return error(BAD_REQUEST);
+
+		return DB.transaction( hibernate -> {
+			var shorts = hibernate.byMultipleIds(Short.class).multiLoad(new ArrayList<>(new LinkedHashSet<>(shortIds)));
+			return ok(shorts.stream().filter(Objects::nonNull).toList());
+		});
 	}
 
 	
@@ -124,8 +149,22 @@ public class JavaShorts implements Shorts {
 		
 		return errorOrResult( getShort(shortId), shrt -> {
 			String likeId = format("%s+%s", userId, shortId);
-			var l = new Likes(likeId, userId, shortId, shrt.getOwnerId());
-			return errorOrVoid( okUser( userId, password), isLiked ? DB.insertOne( l ) : DB.deleteOne( l ));	
+			return errorOrResult( okUser( userId, password), user -> DB.transaction( hibernate -> {
+				int changed;
+				if( isLiked ) {
+					hibernate.persist( new Likes(likeId, userId, shortId, shrt.getOwnerId()));
+					changed = 1;
+				} else
+					changed = hibernate.createMutationQuery("DELETE Likes l WHERE l.id = :id")
+							.setParameter("id", likeId)
+							.executeUpdate();
+
+				// keep the like counter of the short in the same transaction
+				hibernate.createMutationQuery("UPDATE Short s SET s.totalLikes = s.totalLikes + :delta WHERE s.id = :id")
+						.setParameter("delta", isLiked ? changed : -changed)
+						.setParameter("id", shortId)
+						.executeUpdate();
+			}));
 		});
 	}
 
@@ -182,11 +221,29 @@ public class JavaShorts implements Shorts {
 			var query2 = format("DELETE Following f WHERE f.follower = '%s' OR f.followee = '%s'", userId, userId);		
 			hibernate.createQuery(query2, Following.class).executeUpdate();
 			
+			//the likes of the user disappear from the counters of the shorts of other users
+			hibernate.createMutationQuery("UPDATE Short s SET s.totalLikes = s.totalLikes - 1 WHERE s.ownerId <> :userId AND s.id IN (SELECT l.shortId FROM Likes l WHERE l.userId = :userId)")
+					.setParameter("userId", userId)
+					.executeUpdate();
+
 			//delete likes
 			var query3 = format("DELETE Likes l WHERE l.ownerId = '%s' OR l.userId = '%s'", userId, userId);		
 			hibernate.createQuery(query3, Likes.class).executeUpdate();
 			
 		});
 	}
-	
+
+	/**
+	 * Recomputes the like counters that drifted from the Likes table. Runs periodically in the background.
+	 */
+	void reconcileLikes() {
+		DB.transaction( hibernate -> {
+			// only the drifted rows are written
+			int fixed = hibernate.createMutationQuery("UPDATE Short s SET s.totalLikes = (SELECT count(l) FROM Likes l WHERE l.shortId = s.id) "
+							+ "WHERE s.totalLikes <> (SELECT count(l) FROM Likes l WHERE l.shortId = s.id)")
+					.executeUpdate();
+			if (fixed > 0)
+				Log.warning(() -> format("reconcileLikes : fixed %d like counters\n", fixed));
+		});
+	}
 }
\ No newline at end of file
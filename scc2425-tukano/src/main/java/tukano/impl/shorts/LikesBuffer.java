@@ -0,0 +1,283 @@
+package tukano.impl.shorts;
+
+import tukano.api.Result;
+import utils.Threads;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import static tukano.api.Result.ErrorCode.*;
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+
+/**
+ * In-process write-behind buffer for like/unlike toggles.
+ * <p>
+ * Toggles of the same (user, short) pair are merged while they wait, and are handed to the backend
+ * in batches, either every flush interval or as soon as half of the buffer is used. The buffer is
+ * bounded: once full, callers wait for a flush for at most maxWait milliseconds.
+ * Entries stay visible through {@link #pending(String)} and {@link #pendingDelta(String)} until the
+ * backend has written them, so readers see their own writes.
+ * <p>
+ * A toggle is only accepted if it changes the state of the like, as given by the toggles still buffered or
+ * else by the backend, so liking twice or unliking a missing like fail as they would without the buffer.
+ * Toggles of a batch the backend failed to write are put back for the next flush, unless the buffer is full,
+ * up to maxAttempts times; the toggles given up on are logged as dead letters, and the like counters they
+ * leave off are fixed by the reconciliation of the backend.
+ */
+public class LikesBuffer {
+
+    private static final Logger Log = Logger.getLogger(LikesBuffer.class.getName());
+
+    /**
+     * The latest wanted state of a like, and its state in the backend when it was first toggled.
+     * Attempts counts the failed writes of the toggle.
+     */
+    public record PendingLike(String userId, String shortId, String ownerId, boolean liked, boolean stored,
+                              int attempts) {
+        /**
+         * The change of the like counter of the short once the toggle is written.
+         */
+        public int delta() {
+            return (liked ? 1 : 0) - (stored ? 1 : 0);
+        }
+    }
+
+    /**
+     * Writes a batch of likes to the backend.
+     */
+    public interface Sink {
+        void flush(List<PendingLike> likes) throws Exception;
+    }
+
+    /**
+     * Tells whether the backend holds the like of a user on a short.
+     */
+    public interface Lookup {
+        boolean isLiked(String shortId, String userId) throws Exception;
+    }
+
+    private final Sink sink;
+    private final Lookup lookup;
+    private final int capacity;
+    private final long maxWait;
+    private final int maxAttempts;
+    private final ScheduledExecutorService flusher;
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    // shortId -> userId -> toggle, guarded by this
+    private Map<String, Map<String, PendingLike>> pending = new HashMap<>();
+    private Map<String, Map<String, PendingLike>> flushing = new HashMap<>();
+    private int size;
+    // number of completed flushes, telling whether a state read from the backend may be outdated
+    private long flushes;
+    private boolean closed;
+
+    public LikesBuffer(Sink sink, Lookup lookup, int capacity, long flushInterval, long maxWait, int maxAttempts) {
+        this.sink = sink;
+        this.lookup = lookup;
+        this.capacity = capacity;
+        this.maxWait = maxWait;
+        this.maxAttempts = maxAttempts;
+        this.flusher = Threads.daemonScheduler("likes-flusher");
+        if (flushInterval > 0)
+            flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Creates the buffer configured in the given properties, or returns null if write-behind is disabled.
+     */
+    public static LikesBuffer fromProperties(Properties props, Sink sink, Lookup lookup) {
+        if (!Boolean.parseBoolean(props.getProperty("likesBufferEnabled", "true")))
+            return null;
+
+        return new LikesBuffer(sink, lookup,
+                Integer.parseInt(props.getProperty("likesBufferSize", "10000")),
+                Long.parseLong(props.getProperty("likesFlushInterval", "200")),
+                Long.parseLong(props.getProperty("likesBufferMaxWait", "1000")),
+                Integer.parseInt(props.getProperty("likesFlushMaxAttempts", "5")));
+    }
+
+    /**
+     * Records a like or unlike.
+     *
+     * @return CONFLICT if the short is already liked, NOT_FOUND if unliking a short that is not liked,
+     * TIMEOUT if the buffer stayed full for longer than maxWait
+     */
+    public Result<Void> add(String userId, String shortId, String ownerId, boolean liked) {
+        Boolean stored = null;
+        long readAfter = -1;
+        boolean flushNow;
+        for (; ; ) {
+            synchronized (this) {
+                if (!pending.getOrDefault(shortId, Map.of()).containsKey(userId) && !waitForRoom())
+                    return error(TIMEOUT);
+
+                var previous = pending.getOrDefault(shortId, Map.of()).get(userId);
+                var writing = flushing.getOrDefault(shortId, Map.of()).get(userId);
+                // the state of the like before this toggle: the one of the buffered toggles, else the one read
+                // from the backend, if no flush completed since it was read
+                Boolean current = previous != null ? Boolean.valueOf(previous.liked())
+                        : writing != null ? Boolean.valueOf(writing.liked())
+                        : readAfter == flushes ? stored : null;
+                if (current != null) {
+                    if (current == liked)
+                        return error(liked ? CONFLICT : NOT_FOUND);
+                    flushNow = put(new PendingLike(userId, shortId, ownerId, liked,
+                            previous != null ? previous.stored() : current, 0));
+                    break;
+                }
+                readAfter = flushes;
+            }
+            try {
+                stored = lookup.isLiked(shortId, userId);
+            } catch (Exception e) {
+                Log.severe(() -> String.format("Error reading the like of %s on %s: %s\n", userId, shortId, e.getMessage()));
+                return error(INTERNAL_ERROR);
+            }
+        }
+        if (flushNow && !flusher.isShutdown())
+            flusher.execute(this::flush);
+        return ok();
+    }
+
+    /**
+     * Returns the likes of the given short that were not written to the backend yet.
+     */
+    public synchronized Collection<PendingLike> pending(String shortId) {
+        Map<String, PendingLike> res = new HashMap<>(flushing.getOrDefault(shortId, Map.of()));
+        res.putAll(pending.getOrDefault(shortId, Map.of()));
+        return res.values();
+    }
+
+    /**
+     * Returns the expected change of the like counter of the given short once the buffer is flushed.
+     */
+    public synchronized int pendingDelta(String shortId) {
+        int delta = 0;
+        for (var l : flushing.getOrDefault(shortId, Map.of()).values())
+            delta += l.delta();
+        for (var l : pending.getOrDefault(shortId, Map.of()).values())
+            delta += l.delta();
+        return delta;
+    }
+
+    /**
+     * Overlays the pending likes of a short on the list of users read from the backend.
+     */
+    public List<String> applyTo(String shortId, List<String> userIds) {
+        return applyTo(shortId, userIds, true);
+    }
+
+    /**
+     * Overlays the pending likes of a short on one page of the users read from the backend.
+     * Pending unlikes are hidden from every page, pending likes are only added if addLiked is set.
+     */
+    public List<String> applyTo(String shortId, List<String> userIds, boolean addLiked) {
+        var res = new LinkedHashSet<>(userIds);
+        for (var l : pending(shortId)) {
+            if (l.liked() && addLiked)
+                res.add(l.userId());
+            else if (!l.liked())
+                res.remove(l.userId());
+        }
+        return new ArrayList<>(res);
+    }
+
+    /**
+     * Writes all buffered toggles to the backend, returning once they are written.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            List<PendingLike> batch = new ArrayList<>();
+            synchronized (this) {
+                if (size == 0)
+                    return;
+                flushing = pending;
+                pending = new HashMap<>();
+                size = 0;
+                flushing.values().forEach(m -> batch.addAll(m.values()));
+                notifyAll();
+            }
+            try {
+                sink.flush(batch);
+            } catch (Exception e) {
+                Log.severe(() -> String.format("Error flushing %d likes, will retry: %s\n", batch.size(), e.getMessage()));
+                requeue(batch);
+            } finally {
+                synchronized (this) {
+                    flushing = new HashMap<>();
+                    flushes++;
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the periodic flushes and writes what is left.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        flusher.shutdown();
+        flush();
+    }
+
+    // Failed toggles go back to the buffer, up to maxAttempts times and while there is room. A newer toggle of
+    // the same like assumed the failed one was written, so it now starts from the state the failed one started from.
+    private synchronized void requeue(List<PendingLike> batch) {
+        for (var l : batch) {
+            var newer = pending.getOrDefault(l.shortId(), Map.of()).get(l.userId());
+            if (newer != null)
+                put(new PendingLike(newer.userId(), newer.shortId(), newer.ownerId(), newer.liked(), l.stored(),
+                        newer.attempts()));
+            else if (l.attempts() + 1 < maxAttempts && size < capacity)
+                put(new PendingLike(l.userId(), l.shortId(), l.ownerId(), l.liked(), l.stored(), l.attempts() + 1));
+            else
+                Log.severe(() -> String.format("Dead letter, like of %s on %s (liked = %s) dropped after %d attempts\n",
+                        l.userId(), l.shortId(), l.liked(), l.attempts() + 1));
+        }
+    }
+
+    // Buffers a toggle in place of the one of the same like, or drops both if it undoes it.
+    // Returns whether the buffer should be flushed.
+    private boolean put(PendingLike l) {
+        var likes = pending.computeIfAbsent(l.shortId(), k -> new HashMap<>());
+        boolean changes = l.liked() != l.stored();
+        var previous = changes ? likes.put(l.userId(), l) : likes.remove(l.userId());
+        if (changes && previous == null)
+            size++;
+        else if (!changes && previous != null)
+            size--;
+        return size >= capacity / 2;
+    }
+
+    private boolean waitForRoom() {
+        long deadline = System.currentTimeMillis() + maxWait;
+        while (size >= capacity && !closed) {
+            flusher.execute(this::flush);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
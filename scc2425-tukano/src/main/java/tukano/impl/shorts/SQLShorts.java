@@ -4,15 +4,23 @@ import jakarta.ws.rs.core.Cookie;
 import tukano.api.Short;
 import tukano.api.*;
 import tukano.impl.JavaBlobs;
+import tukano.impl.SQLConnectionPool;
+import tukano.impl.SQLSchema;
+import tukano.impl.SQLStatementCache;
 import tukano.impl.rest.TukanoRestServer;
 import tukano.impl.users.UsersImpl;
 import utils.ResourceUtils;
+import utils.Threads;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static tukano.api.Result.*;
@@ -20,70 +28,35 @@ import static utils.AuthUtils.createCookie;
 
 public class SQLShorts implements Shorts {
     private static final Logger Log = Logger.getLogger(SQLShorts.class.getName());
-    private final Connection connection;
     private static SQLShorts instance;
 
-    private SQLShorts() {
-        try {
-            // Explicitly load the PostgreSQL JDBC driver
-            Class.forName("org.postgresql.Driver");
-        } catch (ClassNotFoundException e) {
-            Log.severe("PostgreSQL JDBC Driver not found");
-            throw new RuntimeException("PostgreSQL JDBC Driver missing", e);
-        }
+    // write-behind buffer of like toggles, null if likes are written synchronously
+    private final LikesBuffer likesBuffer;
 
-        Properties props = new Properties();
-        ResourceUtils.loadPropertiesFromResources(props, "db.properties");
-        String connectionString = props.getProperty("connectionString");
-        String user = props.getProperty("username");
-        String pass = props.getProperty("password");
+    // materialized home feeds, null if feeds are read from the database
+    private final FeedCache feedCache;
 
+    private SQLShorts() {
         try {
-            this.connection = DriverManager.getConnection(connectionString, user, pass);
             initializeTables();
         } catch (SQLException e) {
-            Log.severe("Failed to initialize SQL connection: " + e.getMessage());
+            Log.severe("Failed to initialize SQL tables: " + e.getMessage());
             throw new RuntimeException(e);
         }
+
+        Properties props = new Properties();
+        ResourceUtils.loadPropertiesFromResources(props, "db.properties");
+        long period = Long.parseLong(props.getProperty("likesReconcilePeriod", "300"));
+        if (period > 0) {
+            Threads.daemonScheduler("sql-likes-reconciler")
+                    .scheduleWithFixedDelay(this::reconcileLikes, period, period, TimeUnit.SECONDS);
+        }
+        likesBuffer = LikesBuffer.fromProperties(props, this::flushLikes, this::isLiked);
+        feedCache = FeedCache.fromProperties();
     }
 
     private void initializeTables() throws SQLException {
-        String[] createTableStatements = {
-                """
-            CREATE TABLE IF NOT EXISTS Shorts (
-                id VARCHAR(255) PRIMARY KEY,
-                ownerId VARCHAR(255) NOT NULL,
-                blobUrl TEXT NOT NULL,
-                FOREIGN KEY (ownerId) REFERENCES Users(id)
-            )
-            """,
-                """
-            CREATE TABLE IF NOT EXISTS Follows (
-                id VARCHAR(255) PRIMARY KEY,
-                follower VARCHAR(255) NOT NULL,
-                followee VARCHAR(255) NOT NULL,
-                FOREIGN KEY (follower) REFERENCES Users(id),
-                FOREIGN KEY (followee) REFERENCES Users(id)
-            )
-            """,
-                """
-            CREATE TABLE IF NOT EXISTS Likes (
-                id VARCHAR(255) PRIMARY KEY,
-                userId VARCHAR(255) NOT NULL,
-                shortId VARCHAR(255) NOT NULL,
-                ownerId VARCHAR(255) NOT NULL,
-                FOREIGN KEY (userId) REFERENCES Users(id),
-                FOREIGN KEY (shortId) REFERENCES Shorts(id),
-                FOREIGN KEY (ownerId) REFERENCES Users(id)
-            )
-            """
-        };
-
-        try (Statement stmt = connection.createStatement()) {
-            for (String sql : createTableStatements) {
-                stmt.execute(sql);
-            }
-        }
+        SQLSchema.migrate();
     }
 
     public static SQLShorts getInstance() {
@@ -101,14 +74,22 @@ public class SQLShorts implements Shorts {
             String shortId = String.format("%s+%s", userId, UUID.randomUUID());
             String blobUrl = String.format("%s/%s/%s", TukanoRestServer.serverURI, Blobs.NAME, shortId);
 
-            String sql = "INSERT INTO Shorts (id, ownerId, blobUrl) VALUES (?, ?, ?)";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            var shrt = new Short(shortId, userId, blobUrl);
+
+            String sql = "INSERT INTO Shorts (id, ownerId, blobUrl, timestamp) VALUES (?, ?, ?, ?)";
+            try (Connection connection = SQLConnectionPool.getConnection();
+                 PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
                 pstmt.setString(1, shortId);
                 pstmt.setString(2, userId);
                 pstmt.setString(3, blobUrl);
+                pstmt.setLong(4, shrt.getTimestamp());
                 pstmt.executeUpdate();
 
-                return ok(new Short(shortId, userId, blobUrl).copyWithLikes(0));
+                // Push the short to the feeds of the followers
+                if (feedCache != null)
+                    feedCache.publish(shrt, feedCache.isCelebrity(userId) ? List.of() : followersOf(connection, userId));
+
+                return ok(shrt);
             } catch (SQLException e) {
                 Log.severe("Error creating short: " + e.getMessage());
                 return error(Result.ErrorCode.INTERNAL_ERROR);
@@ -123,15 +104,10 @@ public class SQLShorts implements Shorts {
         if (shortId == null)
             return error(ErrorCode.BAD_REQUEST);
 
-        String sql = """
-                    SELECT s.*, COUNT(l.id) as likes_count 
-                    FROM Shorts s 
-                    LEFT JOIN Likes l ON s.id = l.shortId 
-                    WHERE s.id = ? 
-                    GROUP BY s.id, s.ownerId, s.blobUrl
-                """;
+        String sql = "SELECT * FROM Shorts WHERE id = ?";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
             pstmt.setString(1, shortId);
             ResultSet rs = pstmt.executeQuery();
 
@@ -139,19 +115,52 @@ public class SQLShorts implements Shorts {
                 return error(ErrorCode.NOT_FOUND);
             }
 
-            Short shrt = new Short(
-                    rs.getString("id"),
-                    rs.getString("ownerId"),
-                    rs.getString("blobUrl")
-            );
-
-            return ok(shrt.copyWithLikes(rs.getLong("likes_count")));
+            return ok(toShort(rs));
         } catch (SQLException e) {
             Log.severe("Error getting short: " + e.getMessage());
             return error(ErrorCode.INTERNAL_ERROR);
         }
     }
 
+    @Override
+    public Result<List<Short>> getShorts(List<String> shortIds) {
+        Log.info(() -> String.format("getShorts : shortIds = %s\n", shortIds));
+
+        if (shortIds == null)
+            return error(ErrorCode.BAD_REQUEST);
+
+        String sql = "SELECT * FROM Shorts WHERE id = ANY(?)";
+
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            pstmt.setArray(1, connection.createArrayOf("varchar", shortIds.toArray()));
+            ResultSet rs = pstmt.executeQuery();
+
+            Map<String, Short> shorts = new HashMap<>();
+            while (rs.next()) {
+                var shrt = toShort(rs);
+                shorts.put(shrt.getId(), shrt);
+            }
+            return ok(shortIds.stream().distinct().map(shorts::get).filter(Objects::nonNull).toList());
+        } catch (SQLException e) {
+            Log.severe("Error getting shorts: " + e.getMessage());
+            return error(ErrorCode.INTERNAL_ERROR);
+        }
+    }
+
+    // The short of the current row, with the likes still buffered
+    private Short toShort(ResultSet rs) throws SQLException {
+        String shortId = rs.getString("id");
+        long likes = rs.getLong("totalLikes");
+        return new Short(
+                shortId,
+                rs.getString("ownerId"),
+                rs.getString("blobUrl"),
+                rs.getLong("timestamp"),
+                (int) (likesBuffer == null ? likes : likes + likesBuffer.pendingDelta(shortId))
+        );
+    }
+
     @Override
     public Result<Void> deleteShort(String shortId, String password) {
         // for some reason the interface does not have a cookie parameter so we have to create a cookie first
@@ -163,30 +172,34 @@ public class SQLShorts implements Shorts {
 
         return errorOrResult(getShort(shortId), shrt ->
                 errorOrResult(okUser(shrt.getOwnerId(), password), user -> {
-                    try {
+                    // Write buffered likes first, so none of them is left behind
+                    if (likesBuffer != null)
+                        likesBuffer.flush();
+
+                    try (Connection connection = SQLConnectionPool.getConnection()) {
                         connection.setAutoCommit(false);
                         try {
                             // Delete likes first due to foreign key constraint
                             String deleteLikes = "DELETE FROM Likes WHERE shortId = ?";
-                            try (PreparedStatement pstmt = connection.prepareStatement(deleteLikes)) {
+                            try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, deleteLikes)) {
                                 pstmt.setString(1, shortId);
                                 pstmt.executeUpdate();
                             }
 
                             // Delete the short
                             String deleteShort = "DELETE FROM Shorts WHERE id = ?";
-                            try (PreparedStatement pstmt = connection.prepareStatement(deleteShort)) {
+                            try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, deleteShort)) {
                                 pstmt.setString(1, shortId);
                                 pstmt.executeUpdate();
                             }
 
                             connection.commit();
 
-                            // Delete the blob
-                            String blobName = shrt.getBlobUrl().substring(
-                                    shrt.getBlobUrl().lastIndexOf('/') + 1,
-                                    shrt.getBlobUrl().lastIndexOf('?'));
-                            JavaBlobs.getInstance().delete(blobName, cookie);
+                            if (feedCache != null)
+                                feedCache.remove(shrt, followersOf(connection, shrt.getOwnerId()));
+
+                            // Delete the blob, named after the short
+                            JavaBlobs.getInstance().delete(shortId, cookie);
 
                             return ok();
                         } catch (SQLException e) {
@@ -208,7 +221,8 @@ public class SQLShorts implements Shorts {
         Log.info(() -> String.format("getShorts : userId = %s\n", userId));
 
         String sql = "SELECT id FROM Shorts WHERE ownerId = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
             pstmt.setString(1, userId);
             ResultSet rs = pstmt.executeQuery();
 
@@ -223,29 +237,41 @@ public class SQLShorts implements Shorts {
         }
     }
 
+    @Override
+    public Result<Page<String>> getShorts(String userId, String token, int size) {
+        Log.info(() -> String.format("getShorts : userId = %s, token = %s, size = %d\n", userId, token, size));
+
+        String sql = "SELECT id FROM Shorts WHERE ownerId = ? AND id > ? ORDER BY id LIMIT ?";
+        return keysetPage(sql, userId, token, size, "Error getting shorts: ");
+    }
+
     @Override
     public Result<Void> follow(String userId1, String userId2, boolean isFollowing, String password) {
         Log.info(() -> String.format("follow : userId1 = %s, userId2 = %s, isFollowing = %s, pwd = %s\n",
                 userId1, userId2, isFollowing, password));
 
         return errorOrResult(okUser(userId1, password), user -> {
-            String followId = String.format("%s-%s", userId1, userId2);
             try {
                 if (isFollowing) {
-                    String sql = "INSERT INTO Follows (id, follower, followee) VALUES (?, ?, ?)";
-                    try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                        pstmt.setString(1, followId);
-                        pstmt.setString(2, userId1);
-                        pstmt.setString(3, userId2);
+                    String sql = "INSERT INTO Follows (follower, followee) VALUES (?, ?)";
+                    try (Connection connection = SQLConnectionPool.getConnection();
+                         PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+                        pstmt.setString(1, userId1);
+                        pstmt.setString(2, userId2);
                         pstmt.executeUpdate();
                     }
                 } else {
-                    String sql = "DELETE FROM Follows WHERE id = ?";
-                    try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                        pstmt.setString(1, followId);
+                    String sql = "DELETE FROM Follows WHERE followee = ? AND follower = ?";
+                    try (Connection connection = SQLConnectionPool.getConnection();
+                         PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+                        pstmt.setString(1, userId2);
+                        pstmt.setString(2, userId1);
                         pstmt.executeUpdate();
                     }
                 }
+
+                if (feedCache != null)
+                    feedCache.follow(userId1, userId2, isFollowing);
                 return ok();
             } catch (SQLException e) {
                 Log.severe("Error managing follow: " + e.getMessage());
@@ -260,7 +286,8 @@ public class SQLShorts implements Shorts {
 
         return errorOrResult(okUser(userId, password), user -> {
             String sql = "SELECT follower FROM Follows WHERE followee = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            try (Connection connection = SQLConnectionPool.getConnection();
+                 PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
                 pstmt.setString(1, userId);
                 ResultSet rs = pstmt.executeQuery();
 
@@ -276,36 +303,75 @@ public class SQLShorts implements Shorts {
         });
     }
 
+    @Override
+    public Result<Page<String>> followers(String userId, String password, String token, int size) {
+        Log.info(() -> String.format("followers : userId = %s, pwd = %s, token = %s, size = %d\n", userId, password, token, size));
+
+        return errorOrResult(okUser(userId, password), user -> {
+            String sql = "SELECT follower FROM Follows WHERE followee = ? AND follower > ? ORDER BY follower LIMIT ?";
+            return keysetPage(sql, userId, token, size, "Error getting followers: ");
+        });
+    }
+
     @Override
     public Result<Void> like(String shortId, String userId, boolean isLiked, String password) {
         Log.info(() -> String.format("like : shortId = %s, userId = %s, isLiked = %s, pwd = %s\n",
                 shortId, userId, isLiked, password));
 
-        return errorOrResult(getShort(shortId), shrt -> {
-            String likeId = String.format("%s-%s", userId, shortId);
-            try {
-                if (isLiked) {
-                    String sql = "INSERT INTO Likes (id, userId, shortId, ownerId) VALUES (?, ?, ?, ?)";
-                    try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                        pstmt.setString(1, likeId);
-                        pstmt.setString(2, userId);
-                        pstmt.setString(3, shortId);
-                        pstmt.setString(4, shrt.getOwnerId());
-                        pstmt.executeUpdate();
-                    }
-                } else {
-                    String sql = "DELETE FROM Likes WHERE id = ?";
-                    try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                        pstmt.setString(1, likeId);
-                        pstmt.executeUpdate();
+        return errorOrResult(getShort(shortId), shrt ->
+                errorOrResult(okUser(userId, password), user -> {
+                    if (likesBuffer != null)
+                        return likesBuffer.add(userId, shortId, shrt.getOwnerId(), isLiked);
+
+                    try (Connection connection = SQLConnectionPool.getConnection()) {
+                        connection.setAutoCommit(false);
+                        try {
+                            int changed;
+                            if (isLiked) {
+                                String sql = """
+                                        INSERT INTO Likes (shortId, userId, ownerId) VALUES (?, ?, ?)
+                                        ON CONFLICT (shortId, userId) DO NOTHING
+                                        """;
+                                try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+                                    pstmt.setString(1, shortId);
+                                    pstmt.setString(2, userId);
+                                    pstmt.setString(3, shrt.getOwnerId());
+                                    changed = pstmt.executeUpdate();
+                                }
+                            } else {
+                                String sql = "DELETE FROM Likes WHERE shortId = ? AND userId = ?";
+                                try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+                                    pstmt.setString(1, shortId);
+                                    pstmt.setString(2, userId);
+                                    changed = pstmt.executeUpdate();
+                                }
+                            }
+                            if (changed == 0) {
+                                connection.rollback();
+                                return error(isLiked ? ErrorCode.CONFLICT : ErrorCode.NOT_FOUND);
+                            }
+
+                            // Keep the like counter of the short in the same transaction
+                            String updateCounter = "UPDATE Shorts SET totalLikes = totalLikes + ? WHERE id = ?";
+                            try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, updateCounter)) {
+                                pstmt.setInt(1, isLiked ? 1 : -1);
+                                pstmt.setString(2, shortId);
+                                pstmt.executeUpdate();
+                            }
+
+                            connection.commit();
+                            return ok();
+                        } catch (SQLException e) {
+                            connection.rollback();
+                            throw e;
+                        } finally {
+                            connection.setAutoCommit(true);
+                        }
+                    } catch (SQLException e) {
+                        Log.severe("Error managing like: " + e.getMessage());
+                        return error(ErrorCode.INTERNAL_ERROR);
                     }
-                }
-                return ok();
-            } catch (SQLException e) {
-                Log.severe("Error managing like: " + e.getMessage());
-                return error(ErrorCode.INTERNAL_ERROR);
-            }
-        });
+                }));
     }
 
     @Override
@@ -315,7 +381,8 @@ public class SQLShorts implements Shorts {
         return errorOrResult(getShort(shortId), shrt ->
                 errorOrResult(okUser(shrt.getOwnerId(), password), user -> {
                     String sql = "SELECT userId FROM Likes WHERE shortId = ?";
-                    try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    try (Connection connection = SQLConnectionPool.getConnection();
+                         PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
                         pstmt.setString(1, shortId);
                         ResultSet rs = pstmt.executeQuery();
 
@@ -323,7 +390,7 @@ public class SQLShorts implements Shorts {
                         while (rs.next()) {
                             likeUsers.add(rs.getString("userId"));
                         }
-                        return ok(likeUsers);
+                        return ok(likesBuffer == null ? likeUsers : likesBuffer.applyTo(shortId, likeUsers));
                     } catch (SQLException e) {
                         Log.severe("Error getting likes: " + e.getMessage());
                         return error(ErrorCode.INTERNAL_ERROR);
@@ -332,33 +399,101 @@ public class SQLShorts implements Shorts {
         );
     }
 
+    @Override
+    public Result<Page<String>> likes(String shortId, String password, String token, int size) {
+        Log.info(() -> String.format("likes : shortId = %s, pwd = %s, token = %s, size = %d\n", shortId, password, token, size));
+
+        return errorOrResult(getShort(shortId), shrt ->
+                errorOrResult(okUser(shrt.getOwnerId(), password), user -> {
+                    String sql = "SELECT userId FROM Likes WHERE shortId = ? AND userId > ? ORDER BY userId LIMIT ?";
+                    var res = keysetPage(sql, shortId, token, size, "Error getting likes: ");
+                    if (!res.isOK() || likesBuffer == null)
+                        return res;
+
+                    // Buffered likes are listed on the first page
+                    var page = res.value();
+                    return ok(new Page<>(likesBuffer.applyTo(shortId, page.items(), token == null), page.next()));
+                })
+        );
+    }
+
     @Override
     public Result<List<String>> getFeed(String userId, String password) {
-        Log.info(() -> String.format("getFeed : userId = %s, pwd = %s\n", userId, password));
+        // The whole feed, page by page: the pages past the shorts kept in the materialized feed come from the database
+        int size = feedCache == null ? Page.MAX_SIZE : feedCache.getMaxSize();
+        List<String> feed = new ArrayList<>();
+        String token = null;
+        do {
+            var res = getFeed(userId, password, token, size);
+            if (!res.isOK())
+                return error(res.error());
+            feed.addAll(res.value().items());
+            token = res.value().next();
+        } while (token != null);
+        return ok(feed);
+    }
+
+    @Override
+    public Result<Page<String>> getFeed(String userId, String password, String token, int size) {
+        Log.info(() -> String.format("getFeed : userId = %s, pwd = %s, token = %s, size = %d\n", userId, password, token, size));
 
         return errorOrResult(okUser(userId, password), user -> {
+            // Pages resume after the (timestamp, id) of the last short of the previous page
+            long beforeTimestamp = Long.MAX_VALUE;
+            String beforeId = "";
+            if (token != null) {
+                try {
+                    String[] keys = Page.keys(token, 2);
+                    beforeTimestamp = Long.parseLong(keys[0]);
+                    beforeId = keys[1];
+                } catch (IllegalArgumentException e) {
+                    return error(ErrorCode.BAD_REQUEST);
+                }
+            }
+
+            if (feedCache != null) {
+                Page<String> page = feedCache.getFeed(userId, beforeTimestamp, beforeId, size);
+                if (page != null)
+                    return ok(page);
+            }
+
             String sql = """
-                    SELECT DISTINCT s.id 
+                    SELECT s.id, s.ownerId, s.blobUrl, s.timestamp
                     FROM Shorts s
-                    WHERE s.ownerId = ?
+                    WHERE (s.ownerId = ?
                     OR s.ownerId IN (
                         SELECT followee 
                         FROM Follows 
                         WHERE follower = ?
-                    )
-                    ORDER BY s.id DESC
+                    ))
+                    AND (s.timestamp, s.id) < (?, ?)
+                    ORDER BY s.timestamp DESC, s.id DESC
+                    LIMIT ?
                     """;
 
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            // The first page also rebuilds the materialized feed, which needs more shorts than a page
+            boolean rebuild = feedCache != null && token == null;
+            try (Connection connection = SQLConnectionPool.getConnection();
+                 PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
                 pstmt.setString(1, userId);
                 pstmt.setString(2, userId);
+                pstmt.setLong(3, beforeTimestamp);
+                pstmt.setString(4, beforeId);
+                pstmt.setInt(5, rebuild ? Math.max(size + 1, feedCache.getMaxSize()) : size + 1);
                 ResultSet rs = pstmt.executeQuery();
 
-                List<String> shortIds = new ArrayList<>();
+                List<Short> shorts = new ArrayList<>();
                 while (rs.next()) {
-                    shortIds.add(rs.getString("id"));
+                    shorts.add(new Short(rs.getString("id"), rs.getString("ownerId"),
+                            rs.getString("blobUrl"), rs.getLong("timestamp"), 0));
                 }
-                return ok(shortIds);
+
+                if (rebuild)
+                    feedCache.rebuild(userId, shorts);
+
+                var page = Page.of(shorts.subList(0, Math.min(shorts.size(), size + 1)), size,
+                        s -> new String[]{String.valueOf(s.getTimestamp()), s.getId()});
+                return ok(new Page<>(page.items().stream().map(Short::getId).toList(), page.next()));
             } catch (SQLException e) {
                 Log.severe("Error getting feed: " + e.getMessage());
                 return error(ErrorCode.INTERNAL_ERROR);
@@ -371,16 +506,35 @@ public class SQLShorts implements Shorts {
         Log.info(() -> String.format("deleteAllShorts : userId = %s, password = %s, token = %s\n",
                 userId, password, cookie));
 
-        try {
+        // Write buffered likes first, so none of them is left behind
+        if (likesBuffer != null)
+            likesBuffer.flush();
+
+        try (Connection connection = SQLConnectionPool.getConnection()) {
+            // Read before the follows are deleted, to drop the feeds of the followers afterwards
+            List<String> followers = feedCache == null ? List.of() : followersOf(connection, userId);
+
             connection.setAutoCommit(false);
             try {
+                // The likes of the user disappear from the counters of the shorts of other users
+                String uncountLikes = """
+                        UPDATE Shorts SET totalLikes = totalLikes - 1
+                        WHERE ownerId <> ?
+                        AND id IN (SELECT shortId FROM Likes WHERE userId = ?)
+                        """;
+                try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, uncountLikes)) {
+                    pstmt.setString(1, userId);
+                    pstmt.setString(2, userId);
+                    pstmt.executeUpdate();
+                }
+
                 // Delete all likes
                 String deleteLikes = """
                         DELETE FROM Likes 
                         WHERE userId = ? 
                         OR shortId IN (SELECT id FROM Shorts WHERE ownerId = ?)
                         """;
-                try (PreparedStatement pstmt = connection.prepareStatement(deleteLikes)) {
+                try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, deleteLikes)) {
                     pstmt.setString(1, userId);
                     pstmt.setString(2, userId);
                     pstmt.executeUpdate();
@@ -391,23 +545,33 @@ public class SQLShorts implements Shorts {
                         DELETE FROM Follows 
                         WHERE follower = ? OR followee = ?
                         """;
-                try (PreparedStatement pstmt = connection.prepareStatement(deleteFollows)) {
+                try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, deleteFollows)) {
                     pstmt.setString(1, userId);
                     pstmt.setString(2, userId);
                     pstmt.executeUpdate();
                 }
 
-                // Delete all blobs
-                JavaBlobs.getInstance().deleteAllBlobs(userId, cookie);
-
-                // Delete all shorts
-                String deleteShorts = "DELETE FROM Shorts WHERE ownerId = ?";
-                try (PreparedStatement pstmt = connection.prepareStatement(deleteShorts)) {
+                // Delete all shorts, keeping their ids to delete their blobs
+                String deleteShorts = "DELETE FROM Shorts WHERE ownerId = ? RETURNING id";
+                List<String> shortIds = new ArrayList<>();
+                try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, deleteShorts)) {
                     pstmt.setString(1, userId);
-                    pstmt.executeUpdate();
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next())
+                        shortIds.add(rs.getString("id"));
                 }
 
                 connection.commit();
+
+                if (feedCache != null)
+                    feedCache.deleteUser(userId, followers);
+
+                // Delete the blobs once the shorts are gone, so a rollback leaves no short without its blob
+                for (String shortId : shortIds) {
+                    var res = JavaBlobs.getInstance().delete(shortId, cookie);
+                    if (!res.isOK())
+                        Log.warning(() -> String.format("Error deleting blob %s: %s\n", shortId, res.error()));
+                }
                 return ok();
             } catch (SQLException e) {
                 connection.rollback();
@@ -421,6 +585,149 @@ public class SQLShorts implements Shorts {
         }
     }
 
+    /**
+     * Reads one page of a single column listing ordered by that column. The query takes the listed key,
+     * the value to resume after and the number of rows, in that order.
+     */
+    private Result<Page<String>> keysetPage(String sql, String key, String token, int size, String errorMessage) {
+        String after;
+        try {
+            after = token == null ? "" : Page.keys(token, 1)[0];
+        } catch (IllegalArgumentException e) {
+            return error(ErrorCode.BAD_REQUEST);
+        }
+
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            pstmt.setString(1, key);
+            pstmt.setString(2, after);
+            pstmt.setInt(3, size + 1);
+            ResultSet rs = pstmt.executeQuery();
+
+            List<String> values = new ArrayList<>();
+            while (rs.next()) {
+                values.add(rs.getString(1));
+            }
+            return ok(Page.of(values, size, v -> new String[]{v}));
+        } catch (SQLException e) {
+            Log.severe(errorMessage + e.getMessage());
+            return error(ErrorCode.INTERNAL_ERROR);
+        }
+    }
+
+    private List<String> followersOf(Connection connection, String userId) throws SQLException {
+        String sql = "SELECT follower FROM Follows WHERE followee = ?";
+        try (PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            pstmt.setString(1, userId);
+            ResultSet rs = pstmt.executeQuery();
+
+            List<String> followers = new ArrayList<>();
+            while (rs.next()) {
+                followers.add(rs.getString("follower"));
+            }
+            return followers;
+        }
+    }
+
+    private boolean isLiked(String shortId, String userId) throws SQLException {
+        String sql = "SELECT 1 FROM Likes WHERE shortId = ? AND userId = ?";
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            pstmt.setString(1, shortId);
+            pstmt.setString(2, userId);
+            return pstmt.executeQuery().next();
+        }
+    }
+
+    /**
+     * Writes a batch of buffered like toggles in one transaction. Likes of shorts or users that
+     * were deleted in the meantime are skipped, and the like counters only change by the number
+     * of rows actually inserted or deleted.
+     */
+    private void flushLikes(List<LikesBuffer.PendingLike> likes) throws SQLException {
+        String insertLike = """
+                INSERT INTO Likes (shortId, userId, ownerId)
+                SELECT ?, ?, ?
+                WHERE EXISTS (SELECT 1 FROM Shorts WHERE id = ?)
+                AND EXISTS (SELECT 1 FROM Users WHERE id = ?)
+                ON CONFLICT (shortId, userId) DO NOTHING
+                """;
+        String deleteLike = "DELETE FROM Likes WHERE shortId = ? AND userId = ?";
+        String updateCounter = "UPDATE Shorts SET totalLikes = totalLikes + ? WHERE id = ?";
+
+        try (Connection connection = SQLConnectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement inserts = SQLStatementCache.prepare(connection, insertLike);
+                 PreparedStatement deletes = SQLStatementCache.prepare(connection, deleteLike);
+                 PreparedStatement counters = SQLStatementCache.prepare(connection, updateCounter)) {
+                List<LikesBuffer.PendingLike> inserted = new ArrayList<>(), deleted = new ArrayList<>();
+                for (var l : likes) {
+                    if (l.liked()) {
+                        inserts.setString(1, l.shortId());
+                        inserts.setString(2, l.userId());
+                        inserts.setString(3, l.ownerId());
+                        inserts.setString(4, l.shortId());
+                        inserts.setString(5, l.userId());
+                        inserts.addBatch();
+                        inserted.add(l);
+                    } else {
+                        deletes.setString(1, l.shortId());
+                        deletes.setString(2, l.userId());
+                        deletes.addBatch();
+                        deleted.add(l);
+                    }
+                }
+
+                Map<String, Integer> deltas = new HashMap<>();
+                int[] insertCounts = inserts.executeBatch();
+                for (int i = 0; i < insertCounts.length; i++)
+                    deltas.merge(inserted.get(i).shortId(), insertCounts[i], Integer::sum);
+                int[] deleteCounts = deletes.executeBatch();
+                for (int i = 0; i < deleteCounts.length; i++)
+                    deltas.merge(deleted.get(i).shortId(), -deleteCounts[i], Integer::sum);
+
+                for (var e : deltas.entrySet()) {
+                    if (e.getValue() != 0) {
+                        counters.setInt(1, e.getValue());
+                        counters.setString(2, e.getKey());
+                        counters.addBatch();
+                    }
+                }
+                counters.executeBatch();
+
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the like counters that drifted from the Likes table, e.g. after a failed
+     * or manual change. Runs periodically in the background.
+     */
+    void reconcileLikes() {
+        String sql = """
+                UPDATE Shorts s SET totalLikes = c.likes
+                FROM (
+                    SELECT s2.id, COUNT(l.userId) AS likes
+                    FROM Shorts s2
+                    LEFT JOIN Likes l ON l.shortId = s2.id
+                    GROUP BY s2.id
+                ) c
+                WHERE s.id = c.id AND s.totalLikes <> c.likes
+                """;
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            int fixed = pstmt.executeUpdate();
+            if (fixed > 0)
+                Log.warning(() -> String.format("reconcileLikes : fixed %d like counters\n", fixed));
+        } catch (SQLException e) {
+            Log.severe("Error reconciling likes: " + e.getMessage());
+        }
+    }
+
     protected Result<User> okUser(String userId, String pwd) {
         return UsersImpl.getInstance().getUser(userId, pwd);
     }
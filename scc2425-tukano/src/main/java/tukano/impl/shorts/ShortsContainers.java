@@ -0,0 +1,47 @@
+package tukano.impl.shorts;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.models.CompositePath;
+import com.azure.cosmos.models.CompositePathSortOrder;
+import com.azure.cosmos.models.PartitionKey;
+import tukano.impl.CosmosClientContainer;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The Cosmos containers of the shorts backend, each partitioned by the key its hot queries look up,
+ * so that they are read from a single partition:
+ * <ul>
+ *     <li>shorts, by owner: the shorts of a user</li>
+ *     <li>followers, follows by followee: the followers of a user, a document per follower with its id</li>
+ *     <li>followees, the same follows by follower: the users followed by a user, read by feeds</li>
+ *     <li>likes, by short: the likes of a short, a document per liking user with its id</li>
+ * </ul>
+ * Container names are set in db.properties, and missing containers are created. The shorts are indexed by
+ * timestamp and id together, the order in which feeds list them.
+ */
+public record ShortsContainers(CosmosContainer shorts, CosmosContainer followers,
+                               CosmosContainer followees, CosmosContainer likes) {
+
+    private static final List<List<CompositePath>> SHORTS_INDEXES = List.of(List.of(
+            new CompositePath().setPath("/timestamp").setOrder(CompositePathSortOrder.DESCENDING),
+            new CompositePath().setPath("/id").setOrder(CompositePathSortOrder.DESCENDING)));
+
+    public static ShortsContainers fromProperties(Properties props) {
+        return new ShortsContainers(
+                CosmosClientContainer.getContainer(props.getProperty("shortsContainerName", "shorts-by-owner"), "/ownerId",
+                        SHORTS_INDEXES),
+                CosmosClientContainer.getContainer(props.getProperty("followersContainerName", "follows-by-followee"), "/followee"),
+                CosmosClientContainer.getContainer(props.getProperty("followeesContainerName", "follows-by-follower"), "/follower"),
+                CosmosClientContainer.getContainer(props.getProperty("likesContainerName", "likes-by-short"), "/shortId"));
+    }
+
+    /**
+     * Returns the partition key of a short, its owner, which is the prefix of short ids ("ownerId+uuid").
+     */
+    public static PartitionKey shortKey(String shortId) {
+        int separator = shortId.lastIndexOf('+');
+        return new PartitionKey(separator < 0 ? shortId : shortId.substring(0, separator));
+    }
+}
@@ -31,6 +31,7 @@ public class ShortsImpl {
                 default:
                     impl = JavaShorts.getInstance();
             }
+            impl = CachingShorts.wrap(impl);
         }
         return impl;
     }
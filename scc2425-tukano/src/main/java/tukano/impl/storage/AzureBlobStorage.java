@@ -3,9 +3,27 @@ package tukano.impl.storage;
 import com.azure.core.util.BinaryData;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobContainerClientBuilder;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.options.BlobInputStreamOptions;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
 import tukano.api.Result;
+import utils.Hash;
+import utils.Hex;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -15,6 +33,9 @@ import static utils.ResourceUtils.loadPropertiesFromResources;
 public class AzureBlobStorage implements BlobStorage {
     private static final Logger Log = Logger.getLogger(AzureBlobStorage.class.getName());
     private static final String propertiesFile = "azureblob.properties";
+    // Size of the ranged GETs used to stream blobs
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final String SHA256_METADATA = "sha256";
     private final BlobContainerClient containerClient;
 
     private static AzureBlobStorage instance;
@@ -42,11 +63,43 @@ public class AzureBlobStorage implements BlobStorage {
     }
 
     @Override
-    public Result<Void> write(String path, byte[] bytes) {
-        var blob = containerClient.getBlobClient(path);
-        var data = BinaryData.fromBytes(bytes);
-        blob.upload(data);
-        return Result.ok();
+    public Result<Void> write(String path, InputStream in) {
+        var blob = containerClient.getBlobClient(path).getBlockBlobClient();
+        // Block ids are scoped to the blob, so concurrent uploads of the same blob must not share them
+        var uploadId = UUID.randomUUID().toString();
+        List<String> blocks = new ArrayList<>();
+        try {
+            var digest = Hash.newSha256();
+            int n;
+            var chunk = new byte[CHUNK_SIZE];
+            while ((n = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+                digest.update(chunk, 0, n);
+                var blockId = Base64.getEncoder().encodeToString(format("%s-%06d", uploadId, blocks.size()).getBytes());
+                blob.stageBlock(blockId, new ByteArrayInputStream(chunk, 0, n), n);
+                blocks.add(blockId);
+            }
+            var sha256 = Hex.of(digest.digest());
+
+            // The blob only appears once its block list is committed, and only if it does not exist yet.
+            // The content hash is kept as metadata, it is the ETag of downloads
+            var options = new BlockBlobCommitBlockListOptions(blocks)
+                    .setMetadata(Map.of(SHA256_METADATA, sha256))
+                    .setRequestConditions(new BlobRequestConditions().setIfNoneMatch("*"));
+            try {
+                blob.commitBlockListWithResponse(options, null, Context.NONE);
+                return Result.ok();
+            } catch (BlobStorageException e) {
+                if (e.getStatusCode() != 409 && e.getStatusCode() != 412)
+                    throw e;
+                var info = stat(path);
+                if (!info.isOK())
+                    return Result.error(info.error());
+                return info.value().sha256().equals(sha256) ? Result.ok() : Result.error(Result.ErrorCode.CONFLICT);
+            }
+        } catch (BlobStorageException | IOException e) {
+            Log.severe(() -> format("Error writing blob %s\n%s", path, e.getMessage()));
+            return Result.error(Result.ErrorCode.INTERNAL_ERROR);
+        }
     }
 
     @Override
@@ -72,11 +125,55 @@ public class AzureBlobStorage implements BlobStorage {
 
     @Override
     public Result<Void> read(String path, Consumer<byte[]> sink) {
-        var result = read(path);
-        if (!result.isOK()) {
-            return Result.error(result.error());
+        var blob = containerClient.getBlobClient(path);
+        try (InputStream in = blob.openInputStream(new BlobInputStreamOptions().setBlockSize(CHUNK_SIZE))) {
+            int n;
+            var chunk = new byte[CHUNK_SIZE];
+            while ((n = in.readNBytes(chunk, 0, chunk.length)) > 0)
+                sink.accept(Arrays.copyOf(chunk, n));
+            return Result.ok();
+        } catch (BlobStorageException e) {
+            return errorFrom(path, e);
+        } catch (IOException e) {
+            Log.severe(() -> format("Error reading blob %s\n%s", path, e.getMessage()));
+            return Result.error(Result.ErrorCode.INTERNAL_ERROR);
+        }
+    }
+
+    @Override
+    public Result<Info> stat(String path) {
+        var blob = containerClient.getBlobClient(path);
+        try {
+            var props = blob.getProperties();
+            // Blobs uploaded without the hash metadata fall back to their (strong) Azure ETag
+            var sha256 = props.getMetadata().getOrDefault(SHA256_METADATA, props.getETag().replace("\"", ""));
+            return Result.ok(new Info(props.getBlobSize(), sha256));
+        } catch (BlobStorageException e) {
+            return errorFrom(path, e);
+        }
+    }
+
+    @Override
+    public Result<Void> read(String path, long offset, long length, OutputStream out) {
+        var blob = containerClient.getBlobClient(path);
+        var range = length == Long.MAX_VALUE ? new BlobRange(offset) : new BlobRange(offset, length);
+        // The range is fetched in ranged GETs of CHUNK_SIZE bytes, so only one chunk is held in memory
+        var options = new BlobInputStreamOptions().setRange(range).setBlockSize(CHUNK_SIZE);
+        try (InputStream in = blob.openInputStream(options)) {
+            in.transferTo(out);
+            return Result.ok();
+        } catch (BlobStorageException e) {
+            return errorFrom(path, e);
+        } catch (IOException e) {
+            Log.severe(() -> format("Error reading blob %s\n%s", path, e.getMessage()));
+            return Result.error(Result.ErrorCode.INTERNAL_ERROR);
         }
-        sink.accept(result.value());
-        return Result.ok();
+    }
+
+    private <T> Result<T> errorFrom(String path, BlobStorageException e) {
+        if (e.getStatusCode() == 404)
+            return Result.error(Result.ErrorCode.NOT_FOUND);
+        Log.severe(() -> format("Error reading blob %s\n%s", path, e.getMessage()));
+        return Result.error(Result.ErrorCode.INTERNAL_ERROR);
     }
 }
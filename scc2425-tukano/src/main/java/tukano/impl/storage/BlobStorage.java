@@ -1,12 +1,23 @@
 package tukano.impl.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.function.Consumer;
 
 import tukano.api.Result;
 
 public interface BlobStorage {
 		
-	public Result<Void> write(String path, byte[] bytes );
+	/**
+	 * Writes a blob from a stream, without holding the whole blob in memory. Writing the same
+	 * contents again succeeds, writing different contents to an existing blob is a CONFLICT.
+	 */
+	public Result<Void> write(String path, InputStream in);
+
+	default Result<Void> write(String path, byte[] bytes ) {
+		return write(path, new ByteArrayInputStream(bytes));
+	}
 		
 	public Result<Void> delete(String path);
 	
@@ -14,4 +25,28 @@ public interface BlobStorage {
 
 	public Result<Void> read(String path, Consumer<byte[]> sink);
 
+	/**
+	 * Size and SHA-256 (hex) of the contents of a blob.
+	 */
+	public record Info(long size, String sha256) {
+	}
+
+	/**
+	 * Returns the size and content hash of a blob, or NOT_FOUND if it does not exist.
+	 */
+	public Result<Info> stat(String path);
+
+	/**
+	 * Copies length bytes of a blob, starting at offset, to the given stream, without holding
+	 * the whole blob in memory. A length past the end of the blob copies up to its end.
+	 */
+	public Result<Void> read(String path, long offset, long length, OutputStream out);
+
+	/**
+	 * Copies the contents of a blob to the given stream, without holding the whole blob in memory.
+	 */
+	default Result<Void> read(String path, OutputStream out) {
+		return read(path, 0, Long.MAX_VALUE, out);
+	}
+
 }
@@ -9,15 +9,24 @@ import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
 import static tukano.api.Result.ErrorCode.NOT_FOUND;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
 import java.util.Comparator;
 import java.util.function.Consumer;
 
 import tukano.api.Result;
 import utils.Hash;
+import utils.Hex;
 import utils.IO;
 
 public class FilesystemStorage implements BlobStorage {
@@ -27,25 +36,45 @@ public class FilesystemStorage implements BlobStorage {
 	private static final String DEFAULT_ROOT_DIR = "/mnt/storage/";
 
 	public FilesystemStorage() {
-		this.rootDir = DEFAULT_ROOT_DIR;
+		this(DEFAULT_ROOT_DIR);
+	}
+
+	public FilesystemStorage(String rootDir) {
+		this.rootDir = rootDir;
 	}
 	
 	@Override
-	public Result<Void> write(String path, byte[] bytes) {
+	public Result<Void> write(String path, InputStream in) {
 		if (path == null)
 			return error(BAD_REQUEST);
 
 		var file = toFile( path );
 
-		if (file.exists()) {
-			if (Arrays.equals(Hash.sha256(bytes), Hash.sha256(IO.read(file))))
-				return ok();
-			else
-				return error(CONFLICT);
+		// Hash while copying to a temp file in the same directory, then link it into place, so readers
+		// never see a partial blob; unlike a rename, the link fails if another upload got there first
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(file.getParentFile().toPath(), ".upload-", ".tmp");
+			var digest = Hash.newSha256();
+			try (var out = new DigestOutputStream(Files.newOutputStream(temp), digest)) {
+				in.transferTo(out);
+			}
+			var sha256 = Hex.of(digest.digest());
 
+			try {
+				Files.createLink(file.toPath(), temp);
+			} catch (FileAlreadyExistsException e) {
+				return sameContents(path, sha256);
+			}
+			IO.write(hashFile(file), sha256.getBytes(StandardCharsets.US_ASCII));
+			return ok();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return error(INTERNAL_ERROR);
+		} finally {
+			if (temp != null)
+				IO.delete(temp.toFile());
 		}
-		IO.write(file, bytes);
-		return ok();
 	}
 
 	@Override
@@ -74,6 +103,56 @@ public class FilesystemStorage implements BlobStorage {
 		return ok();
 	}
 	
+	@Override
+	public Result<Info> stat(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var file = toFile( path );
+		if( ! file.exists() )
+			return error(NOT_FOUND);
+
+		// The hash is kept next to the blob, blobs written before that are hashed once here
+		var hashFile = hashFile(file);
+		try {
+			String sha256;
+			if (hashFile.exists())
+				sha256 = Files.readString(hashFile.toPath(), StandardCharsets.US_ASCII).trim();
+			else {
+				try (var in = new FileInputStream(file)) {
+					sha256 = Hex.of(Hash.sha256(in));
+				}
+				IO.write(hashFile, sha256.getBytes(StandardCharsets.US_ASCII));
+			}
+			return ok( new Info(file.length(), sha256) );
+		} catch (IOException e) {
+			e.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	@Override
+	public Result<Void> read(String path, long offset, long length, OutputStream out) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var file = toFile( path );
+		if( ! file.exists() )
+			return error(NOT_FOUND);
+
+		// positional transferTo lets the kernel copy the range, without staging it in the heap
+		try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			var target = Channels.newChannel(out);
+			long position = offset, end = offset + Math.min(length, channel.size() - offset);
+			while (position < end)
+				position += channel.transferTo(position, end - position, target);
+			return ok();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
 	@Override
 	public Result<Void> delete(String path) {
 		if (path == null)
@@ -81,6 +160,7 @@ public class FilesystemStorage implements BlobStorage {
 
 		try {
 			var file = toFile( path );
+			IO.delete(hashFile(file));
 			Files.walk(file.toPath())
 			.sorted(Comparator.reverseOrder())
 			.map(Path::toFile)
@@ -92,6 +172,17 @@ public class FilesystemStorage implements BlobStorage {
 		return ok();
 	}
 	
+	private Result<Void> sameContents(String path, String sha256) {
+		var info = stat(path);
+		if (!info.isOK())
+			return error(info.error());
+		return info.value().sha256().equals(sha256) ? ok() : error(CONFLICT);
+	}
+
+	private File hashFile(File file) {
+		return new File( file.getPath() + ".sha256" );
+	}
+
 	private File toFile(String path) {
 		var res = new File( rootDir + path );
 		
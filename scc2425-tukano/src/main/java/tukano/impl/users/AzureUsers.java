@@ -2,21 +2,21 @@ package tukano.impl.users;
 
 import com.azure.cosmos.CosmosContainer;
 import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosItemIdentity;
 import com.azure.cosmos.models.CosmosItemRequestOptions;
 import com.azure.cosmos.models.CosmosItemResponse;
-import com.azure.cosmos.models.CosmosQueryRequestOptions;
 import com.azure.cosmos.models.PartitionKey;
 import com.azure.cosmos.util.CosmosPagedIterable;
+import tukano.api.Page;
 import tukano.api.Result;
 import tukano.api.User;
 import tukano.api.Users;
-import tukano.impl.shorts.AzureShorts;
+import tukano.impl.shorts.ShortsImpl;
 import tukano.impl.CosmosClientContainer;
-import tukano.impl.JavaBlobs;
+import tukano.impl.CosmosQuery;
 import tukano.impl.Token;
 import utils.AuthUtils;
 import utils.CacheUtils;
-import utils.CacheUtils.CacheResult;
 import utils.ResourceUtils;
 
 import java.util.ArrayList;
@@ -32,6 +32,8 @@ public class AzureUsers implements Users {
 
     private static final Logger Log = Logger.getLogger(AzureUsers.class.getName());
 
+    private static final CosmosQuery SEARCH = CosmosQuery.of("searchUsers", "SELECT * FROM c WHERE CONTAINS(UPPER(c.id), @pattern)");
+
     private final CosmosContainer container;
 
     private static AzureUsers instance;
@@ -66,6 +68,8 @@ public class AzureUsers implements Users {
                 Log.severe(() -> String.format("Error creating User %s\n", user));
                 return error(Result.ErrorCode.INTERNAL_ERROR);
             }
+            // replaces the tombstone left by earlier lookups of the id
+            CacheUtils.storeUserInCache(item);
             return ok(item.getId());
         } catch (CosmosException e) {
             Log.severe(() -> String.format("Error creating User %s\n%s", user, e.getMessage()));
@@ -76,41 +80,53 @@ public class AzureUsers implements Users {
     public Result<User> getUser(String userId, String pwd, boolean useCache) {
         Log.info(() -> String.format("getUser : userId = %s, pwd = %s, useCache = %b\n", userId, pwd, useCache));
 
-        // Attempt to retrieve the user from the cache if caching is enabled
-        User user = null;
-        if (useCache) {
-            CacheResult<User> cacheResult = CacheUtils.getUserFromCache(userId);
-            if (cacheResult.isCacheHit()) {
-                Log.info(() -> String.format("Cache hit for user with Id %s\n", userId));
-                user = cacheResult.getObject();
+        // Concurrent cache misses of the same user share a single read
+        var user = useCache ? CacheUtils.getUser(userId, () -> readUser(userId)) : readUser(userId);
+        return errorOrResult(user, u -> {
+            if (!authorizationOk(u, pwd)) {
+                Log.severe(() -> String.format("Invalid cookie or password for user with Id %s\n", userId));
+                return error(ErrorCode.UNAUTHORIZED);
             }
-        }
+            return ok(u);
+        });
+    }
 
-        // Cache miss or cache disabled - proceed with database lookup
-        if (user == null){
-            try {
-                user = container.readItem(userId, new PartitionKey(userId), User.class).getItem();
-                if (user == null) {
-                    Log.severe(() -> String.format("Error getting User with Id %s. Null result\n", userId));
-                    return error(ErrorCode.NOT_FOUND);
-                }
-
-                // Store the retrieved user in cache if caching is enabled
-                if (useCache) {
-                    CacheUtils.storeUserInCache(user);
-                }
-
-            } catch (CosmosException e) {
-                Log.severe(() -> String.format("Error getting User with Id %s\n%s", userId, e.getMessage()));
-                return error(Result.ErrorCode.NOT_FOUND);
+    private Result<User> readUser(String userId) {
+        try {
+            User user = container.readItem(userId, new PartitionKey(userId),
+                    CosmosClientContainer.pointReadOptions(), User.class).getItem();
+            if (user == null) {
+                Log.severe(() -> String.format("Error getting User with Id %s. Null result\n", userId));
+                return error(ErrorCode.NOT_FOUND);
             }
+            return ok(user);
+        } catch (CosmosException e) {
+            // only a missing user is a NOT_FOUND, which is cached as a tombstone
+            Log.severe(() -> String.format("Error getting User with Id %s\n%s", userId, e.getMessage()));
+            return error(e.getStatusCode() == 404 ? Result.ErrorCode.NOT_FOUND : Result.ErrorCode.INTERNAL_ERROR);
         }
+    }
+
+    @Override
+    public Result<List<User>> getUsers(List<String> userIds) {
+        Log.info(() -> String.format("getUsers : userIds = %s\n", userIds));
+
+        if (userIds == null)
+            return error(ErrorCode.BAD_REQUEST);
+
+        // One MGET for the cached users, one readMany for the others
+        return errorOrValue(CacheUtils.getUsers(userIds, this::readUsers),
+                users -> users.stream().map(User::copyWithoutPassword).toList());
+    }
 
-        if (!authorizationOk(user, pwd)) {
-            Log.severe(() -> String.format("Invalid cookie or password for user with Id %s\n", userId));
-            return error(ErrorCode.UNAUTHORIZED);
+    private Result<List<User>> readUsers(List<String> userIds) {
+        var items = userIds.stream().map(id -> new CosmosItemIdentity(new PartitionKey(id), id)).toList();
+        try {
+            return ok(container.readMany(items, User.class).getResults());
+        } catch (CosmosException e) {
+            Log.severe(() -> String.format("Error getting Users with Ids %s\n%s", userIds, e.getMessage()));
+            return error(ErrorCode.INTERNAL_ERROR);
         }
-        return ok(user);
     }
 
     // Original getUser method - default behavior with caching enabled
@@ -169,10 +185,11 @@ public class AzureUsers implements Users {
                 return error(ErrorCode.UNAUTHORIZED);
             }
             var cookie = createCookie(userId);
-            // delete associated shorts
-            AzureShorts.getInstance().deleteAllShorts(userId, pwd, cookie);
-            // delete associated blobs
-            JavaBlobs.getInstance().deleteAllBlobs(userId, cookie);
+            // delete associated shorts and their blobs, keeping the user if they are not all deleted,
+            // so the cascade can be run again
+            var deleted = ShortsImpl.getInstance().deleteAllShorts(userId, pwd, cookie);
+            if (!deleted.isOK())
+                return error(deleted.error());
             // delete user
             container.deleteItem(userId, new PartitionKey(userId), new CosmosItemRequestOptions());
             // Remove the user from the cache
@@ -188,12 +205,11 @@ public class AzureUsers implements Users {
     public Result<List<User>> searchUsers(String pattern) {
         Log.info(() -> String.format("searchUsers : pattern = %s\n", pattern));
 
-        String query = String.format("SELECT * FROM c WHERE CONTAINS(UPPER(c.id), '%s')", pattern.toUpperCase());
-        CosmosPagedIterable<User> users = container.queryItems(query, new CosmosQueryRequestOptions(), User.class);
+        CosmosPagedIterable<User> users = SEARCH.across(container, User.class, pattern.toUpperCase());
 
         List<User> userList = new ArrayList<>();
         users.forEach(user -> {
-            CacheUtils.storeUserInCache(user);
+            CacheUtils.cacheLoadedUser(user);
             userList.add(user.copyWithoutPassword());
         });
         Log.info(() -> String.format("query returned %d items\n", userList.size()));
@@ -201,6 +217,39 @@ public class AzureUsers implements Users {
         return ok(userList);
     }
 
+    @Override
+    public Result<Page<User>> searchUsers(String pattern, String token, int size) {
+        Log.info(() -> String.format("searchUsers : pattern = %s, token = %s, size = %d\n", pattern, token, size));
+
+        // Pages resume from the continuation token of the previous query page
+        String continuation;
+        try {
+            continuation = token == null ? null : Page.keys(token, 1)[0];
+        } catch (IllegalArgumentException e) {
+            return error(Result.ErrorCode.BAD_REQUEST);
+        }
+
+        try {
+            var pages = SEARCH.across(container, User.class, pattern.toUpperCase())
+                    .iterableByPage(continuation, size).iterator();
+            if (!pages.hasNext())
+                return ok(new Page<>(List.of(), null));
+
+            var page = pages.next();
+            List<User> userList = new ArrayList<>();
+            page.getResults().forEach(user -> {
+                CacheUtils.cacheLoadedUser(user);
+                userList.add(user.copyWithoutPassword());
+            });
+
+            String next = page.getContinuationToken();
+            return ok(new Page<>(userList, next == null ? null : Page.token(next)));
+        } catch (CosmosException e) {
+            Log.severe("Error searching users: " + e.getMessage());
+            return error(e.getStatusCode() == 400 ? Result.ErrorCode.BAD_REQUEST : Result.ErrorCode.INTERNAL_ERROR);
+        }
+    }
+
     private boolean badUserInfo(User user) {
         return (user.getId() == null || user.getPwd() == null || user.getDisplayName() == null || user.getEmail() == null);
     }
@@ -9,7 +9,10 @@ import static tukano.api.Result.ErrorCode.BAD_REQUEST;
 import static tukano.api.Result.ErrorCode.FORBIDDEN;
 import static utils.AuthUtils.createCookie;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
@@ -17,7 +20,7 @@ import tukano.api.Result;
 import tukano.api.User;
 import tukano.api.Users;
 import tukano.impl.JavaBlobs;
-import tukano.impl.shorts.JavaShorts;
+import tukano.impl.shorts.ShortsImpl;
 import tukano.impl.Token;
 import utils.DB;
 
@@ -59,6 +62,22 @@ public class JavaUsers implements Users {
 		return validatedUserOrError( DB.getOne( userId, User.class), pwd);
 	}
 
+	@Override
+	public Result<List<User>> getUsers(List<String> userIds) {
+		Log.info( () -> format("getUsers : userIds = %s\n", userIds));
+
+		if (userIds == null)
+			return error(BAD_REQUEST);
+
+		return DB.transaction( hibernate -> {
+			var users = hibernate.byMultipleIds(User.class).multiLoad(new ArrayList<>(new LinkedHashSet<>(userIds)));
+			return ok(users.stream()
+					.filter(Objects::nonNull)
+					.map(User::copyWithoutPassword)
+					.toList());
+		});
+	}
+
 	@Override
 	public Result<User> updateUser(String userId, String pwd, User other) {
 		Log.info(() -> format("updateUser : userId = %s, pwd = %s, user: %s\n", userId, pwd, other));
@@ -81,7 +100,7 @@ public class JavaUsers implements Users {
 			var cookie = createCookie(userId);
 			// Delete user shorts and related info asynchronously in a separate thread
 			Executors.defaultThreadFactory().newThread( () -> {
-				JavaShorts.getInstance().deleteAllShorts(userId, pwd, cookie);
+				ShortsImpl.getInstance().deleteAllShorts(userId, pwd, cookie);
 				JavaBlobs.getInstance().deleteAllBlobs(userId, cookie);
             }).start();
 			
@@ -1,66 +1,42 @@
 package tukano.impl.users;
 
+import tukano.api.Page;
 import tukano.api.Result;
 import tukano.api.User;
 import tukano.api.Users;
-import tukano.impl.JavaBlobs;
+import tukano.impl.SQLConnectionPool;
+import tukano.impl.SQLSchema;
+import tukano.impl.SQLStatementCache;
 import tukano.impl.shorts.ShortsImpl;
 import utils.CacheUtils;
-import utils.ResourceUtils;
 
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
 import java.util.logging.Logger;
 
 import static tukano.api.Result.error;
+import static tukano.api.Result.errorOrResult;
+import static tukano.api.Result.errorOrValue;
 import static tukano.api.Result.ok;
 import static utils.AuthUtils.authorizationOk;
 import static utils.AuthUtils.createCookie;
 
 public class SQLUsers implements Users {
     private static final Logger Log = Logger.getLogger(SQLUsers.class.getName());
-    private final Connection connection;
     private static SQLUsers instance;
 
     private SQLUsers() {
         try {
-            // Explicitly load the PostgreSQL JDBC driver
-            Class.forName("org.postgresql.Driver");
-        } catch (ClassNotFoundException e) {
-            Log.severe("PostgreSQL JDBC Driver not found");
-            throw new RuntimeException("PostgreSQL JDBC Driver missing", e);
-        }
-
-        Properties props = new Properties();
-        ResourceUtils.loadPropertiesFromResources(props, "db.properties");
-        String connectionString = props.getProperty("connectionString");
-        String user = props.getProperty("username");
-        String pass = props.getProperty("password");
-
-        try {
-            this.connection = DriverManager.getConnection(connectionString, user, pass);
             initializeTables();
         } catch (SQLException e) {
-            Log.severe("Failed to initialize SQL connection: " + e.getMessage());
+            Log.severe("Failed to initialize SQL tables: " + e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
     private void initializeTables() throws SQLException {
-        String createUserTable = """
-                    CREATE TABLE IF NOT EXISTS Users (
-                        id VARCHAR(255) PRIMARY KEY,
-                        pwd VARCHAR(255) NOT NULL,
-                        displayName VARCHAR(255) NOT NULL,
-                        email VARCHAR(255) NOT NULL
-                    )
-                """;
-
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(createUserTable);
-        }
+        SQLSchema.migrate();
     }
 
     public static SQLUsers getInstance() {
@@ -78,12 +54,15 @@ public class SQLUsers implements Users {
             return error(Result.ErrorCode.BAD_REQUEST);
 
         String sql = "INSERT INTO Users (id, pwd, displayName, email) VALUES (?, ?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
             pstmt.setString(1, user.getId());
             pstmt.setString(2, user.getPwd());
             pstmt.setString(3, user.getDisplayName());
             pstmt.setString(4, user.getEmail());
             pstmt.executeUpdate();
+            // replaces the tombstone left by earlier lookups of the id
+            CacheUtils.storeUserInCache(user);
             return ok(user.getId());
         } catch (SQLException e) {
             Log.severe(() -> String.format("Error creating User %s\n%s", user, e.getMessage()));
@@ -94,47 +73,39 @@ public class SQLUsers implements Users {
     public Result<User> getUser(String userId, String pwd, boolean useCache) {
         Log.info(() -> String.format("getUser : userId = %s, pwd = %s, useCache = %b\n", userId, pwd, useCache));
 
-        User user = null;
-        if (useCache) {
-            CacheUtils.CacheResult<User> cacheResult = CacheUtils.getUserFromCache(userId);
-            if (cacheResult.isCacheHit()) {
-                Log.info(() -> String.format("Cache hit for user with Id %s\n", userId));
-                user = cacheResult.getObject();
+        // Concurrent misses of the same user share a single query
+        var user = useCache ? CacheUtils.getUser(userId, () -> readUser(userId)) : readUser(userId);
+        return errorOrResult(user, u -> {
+            if (!authorizationOk(u, pwd)) {
+                Log.severe(() -> String.format("Invalid cookie or password for user with Id %s\n", userId));
+                return error(Result.ErrorCode.UNAUTHORIZED);
             }
-        }
-
-        if (user == null) {
-            String sql = "SELECT * FROM Users WHERE id = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setString(1, userId);
-                ResultSet rs = pstmt.executeQuery();
-
-                if (!rs.next()) {
-                    return error(Result.ErrorCode.NOT_FOUND);
-                }
-
-                user = new User(
-                        rs.getString("id"),
-                        rs.getString("pwd"),
-                        rs.getString("displayName"),
-                        rs.getString("email")
-                );
+            return ok(u);
+        });
+    }
 
-                if (useCache) {
-                    CacheUtils.storeUserInCache(user);
-                }
+    private Result<User> readUser(String userId) {
+        String sql = "SELECT * FROM Users WHERE id = ?";
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            pstmt.setString(1, userId);
+            ResultSet rs = pstmt.executeQuery();
 
-            } catch (SQLException e) {
-                Log.severe(() -> String.format("Error getting User with Id %s\n%s", userId, e.getMessage()));
+            if (!rs.next()) {
                 return error(Result.ErrorCode.NOT_FOUND);
             }
-        }
 
-        if (!authorizationOk(user, pwd)) {
-            Log.severe(() -> String.format("Invalid cookie or password for user with Id %s\n", userId));
-            return error(Result.ErrorCode.UNAUTHORIZED);
+            return ok(new User(
+                    rs.getString("id"),
+                    rs.getString("pwd"),
+                    rs.getString("displayName"),
+                    rs.getString("email")
+            ));
+        } catch (SQLException e) {
+            // not a NOT_FOUND, which would be cached as a tombstone
+            Log.severe(() -> String.format("Error getting User with Id %s\n%s", userId, e.getMessage()));
+            return error(Result.ErrorCode.INTERNAL_ERROR);
         }
-        return ok(user);
     }
 
     @Override
@@ -142,12 +113,48 @@ public class SQLUsers implements Users {
         return getUser(userId, pwd, true);
     }
 
+    @Override
+    public Result<List<User>> getUsers(List<String> userIds) {
+        Log.info(() -> String.format("getUsers : userIds = %s\n", userIds));
+
+        if (userIds == null)
+            return error(Result.ErrorCode.BAD_REQUEST);
+
+        // One MGET for the cached users, one query for the others
+        return errorOrValue(CacheUtils.getUsers(userIds, this::readUsers),
+                users -> users.stream().map(User::copyWithoutPassword).toList());
+    }
+
+    private Result<List<User>> readUsers(List<String> userIds) {
+        String sql = "SELECT * FROM Users WHERE id = ANY(?)";
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            pstmt.setArray(1, connection.createArrayOf("varchar", userIds.toArray()));
+            ResultSet rs = pstmt.executeQuery();
+
+            List<User> users = new ArrayList<>();
+            while (rs.next()) {
+                users.add(new User(
+                        rs.getString("id"),
+                        rs.getString("pwd"),
+                        rs.getString("displayName"),
+                        rs.getString("email")
+                ));
+            }
+            return ok(users);
+        } catch (SQLException e) {
+            Log.severe(() -> String.format("Error getting Users with Ids %s\n%s", userIds, e.getMessage()));
+            return error(Result.ErrorCode.INTERNAL_ERROR);
+        }
+    }
+
     @Override
     public Result<User> updateUser(String userId, String pwd, User newUserInfo) {
         Log.info(() -> String.format("updateUser : userId = %s, pwd = %s, user: %s\n", userId, pwd, newUserInfo));
 
         String sql = "UPDATE Users SET displayName = ?, email = ? WHERE id = ? AND pwd = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
             pstmt.setString(1, newUserInfo.getDisplayName());
             pstmt.setString(2, newUserInfo.getEmail());
             pstmt.setString(3, userId);
@@ -157,12 +164,13 @@ public class SQLUsers implements Users {
             if (updatedRows == 0) {
                 return error(Result.ErrorCode.NOT_FOUND);
             }
-
-            return getUser(userId, pwd);
         } catch (SQLException e) {
             Log.severe(() -> String.format("Error updating User with Id %s\n%s", userId, e.getMessage()));
             return error(Result.ErrorCode.INTERNAL_ERROR);
         }
+        // read back after the pooled connection was returned, past the now outdated cached copies
+        CacheUtils.removeUserFromCache(userId);
+        return getUser(userId, pwd);
     }
 
     @Override
@@ -174,13 +182,15 @@ public class SQLUsers implements Users {
             return user;
         }
         var cookie = createCookie(userId);
-        // delete associated shorts
-        ShortsImpl.getInstance().deleteAllShorts(userId, pwd, cookie);
-        // delete associated blobs
-        JavaBlobs.getInstance().deleteAllBlobs(userId, cookie);
+        // delete associated shorts and their blobs, keeping the user if they are not all deleted,
+        // so the cascade can be run again
+        var deleted = ShortsImpl.getInstance().deleteAllShorts(userId, pwd, cookie);
+        if (!deleted.isOK())
+            return error(deleted.error());
         // delete user
         String sql = "DELETE FROM Users WHERE id = ? AND pwd = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
             pstmt.setString(1, userId);
             pstmt.setString(2, pwd);
             pstmt.executeUpdate();
@@ -198,13 +208,14 @@ public class SQLUsers implements Users {
         Log.info(() -> String.format("searchUsers : pattern = %s\n", pattern));
 
         String sql = "SELECT * FROM Users WHERE UPPER(id) LIKE UPPER(?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
             pstmt.setString(1, "%" + pattern + "%");
             ResultSet rs = pstmt.executeQuery();
 
             List<User> users = new ArrayList<>();
             while (rs.next()) {
-                CacheUtils.storeUserInCache(new User(
+                CacheUtils.cacheLoadedUser(new User(
                         rs.getString("id"),
                         rs.getString("pwd"),
                         rs.getString("displayName"),
@@ -225,6 +236,49 @@ public class SQLUsers implements Users {
         }
     }
 
+    @Override
+    public Result<Page<User>> searchUsers(String pattern, String token, int size) {
+        Log.info(() -> String.format("searchUsers : pattern = %s, token = %s, size = %d\n", pattern, token, size));
+
+        // Pages resume after the id of the last user of the previous page
+        String after;
+        try {
+            after = token == null ? "" : Page.keys(token, 1)[0];
+        } catch (IllegalArgumentException e) {
+            return error(Result.ErrorCode.BAD_REQUEST);
+        }
+
+        String sql = "SELECT * FROM Users WHERE UPPER(id) LIKE UPPER(?) AND id > ? ORDER BY id LIMIT ?";
+        try (Connection connection = SQLConnectionPool.getConnection();
+             PreparedStatement pstmt = SQLStatementCache.prepare(connection, sql)) {
+            pstmt.setString(1, "%" + pattern + "%");
+            pstmt.setString(2, after);
+            pstmt.setInt(3, size + 1);
+            ResultSet rs = pstmt.executeQuery();
+
+            List<User> users = new ArrayList<>();
+            while (rs.next()) {
+                CacheUtils.cacheLoadedUser(new User(
+                        rs.getString("id"),
+                        rs.getString("pwd"),
+                        rs.getString("displayName"),
+                        rs.getString("email")));
+
+                users.add(new User(
+                        rs.getString("id"),
+                        null,
+                        rs.getString("displayName"),
+                        rs.getString("email")
+                ));
+            }
+
+            return ok(Page.of(users, size, u -> new String[]{u.getId()}));
+        } catch (SQLException e) {
+            Log.severe("Error searching users: " + e.getMessage());
+            return error(Result.ErrorCode.INTERNAL_ERROR);
+        }
+    }
+
     private boolean badUserInfo(User user) {
         return (user.getId() == null || user.getPwd() == null ||
                 user.getDisplayName() == null || user.getEmail() == null);
@@ -0,0 +1,39 @@
+package utils;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Encoding of the values kept in Redis.
+ * <p>
+ * Versioned encodings start with a format byte; entries written before those existed are plain JSON text,
+ * which never starts with one. Entries of every format stay readable whichever codec writes, so pods can be
+ * switched from one codec to another while both are running.
+ */
+public interface CacheCodec {
+
+	byte[] encode(Object value) throws IOException;
+
+	<T> T decode(byte[] data, Class<T> clazz) throws IOException;
+
+	/**
+	 * Creates the codec configured in redis.properties: cacheCodec is json or binary (the default).
+	 */
+	static CacheCodec fromProperties(Properties props) {
+		var codec = props.getProperty("cacheCodec", "binary");
+		return switch (codec) {
+			case "json" -> new JsonCacheCodec();
+			case "binary" -> new SmileCacheCodec(Integer.parseInt(props.getProperty("cacheCompressThreshold", "1024")));
+			default -> throw new IllegalArgumentException("Unknown cacheCodec: " + codec);
+		};
+	}
+
+	/**
+	 * Decodes an entry written by any codec.
+	 */
+	static <T> T decodeAny(byte[] data, Class<T> clazz) throws IOException {
+		if (data.length > 0 && SmileCacheCodec.isSmile(data[0]))
+			return SmileCacheCodec.DECODER.decode(data, clazz);
+		return JsonCacheCodec.DECODER.decode(data, clazz);
+	}
+}
@@ -0,0 +1,39 @@
+package utils;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the entries of one kind of key are cached, as configured in redis.properties by
+ * {@code <name>CacheTtl}, {@code <name>CacheMaxIdle}, {@code <name>CacheRefreshAhead} and {@code <name>CacheJitter}.
+ *
+ * @param ttl          seconds an entry is kept in redis
+ * @param maxIdle      seconds an in-memory copy of an entry is kept without being read, 0 for as long as its TTL
+ * @param refreshAhead fraction of the TTL before the expiry in which a read reloads the entry in the background,
+ *                     0 to leave early reloads to the readers themselves
+ * @param jitter       fraction of the TTL randomly taken off each entry, so entries cached together do not expire together
+ */
+public record CachePolicy(long ttl, long maxIdle, double refreshAhead, double jitter) {
+
+	public static CachePolicy fromProperties(Properties props, String name, CachePolicy defaults) {
+		return new CachePolicy(
+				Long.parseLong(props.getProperty(name + "CacheTtl", String.valueOf(defaults.ttl()))),
+				Long.parseLong(props.getProperty(name + "CacheMaxIdle", String.valueOf(defaults.maxIdle()))),
+				Double.parseDouble(props.getProperty(name + "CacheRefreshAhead", String.valueOf(defaults.refreshAhead()))),
+				Double.parseDouble(props.getProperty(name + "CacheJitter", String.valueOf(defaults.jitter()))));
+	}
+
+	/**
+	 * Seconds until an entry written now expires: the TTL, less a random fraction of it.
+	 */
+	public long expiry() {
+		return Math.max(1, ttl - (long) (ttl * jitter * ThreadLocalRandom.current().nextDouble()));
+	}
+
+	/**
+	 * Whether an entry read with the given milliseconds left before it expires is due for a background reload.
+	 */
+	public boolean refreshAhead(long remaining) {
+		return remaining >= 0 && remaining < refreshAhead * ttl * 1000;
+	}
+}
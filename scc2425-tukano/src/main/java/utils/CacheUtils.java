@@ -1,21 +1,115 @@
 package utils;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import tukano.impl.RedisCachePool;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import tukano.api.Result;
 import tukano.api.User;
+import tukano.impl.RedisCachePool;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+/**
+ * Two tier cache of users, sessions and tokens: a small in-heap near cache per key prefix, in front of Redis.
+ * Pods announce the keys they change or remove on a Redis pub/sub channel, so the others drop their near copies.
+ * <p>
+ * Misses are loaded once per pod and key, however many requests miss at the same time. Each kind of key has its
+ * own {@link CachePolicy}. Entries expire after jittered TTLs, and entries still read near their expiry are reloaded
+ * in the background (refresh-ahead), or, for kinds without refresh-ahead, by a reader with a probability that grows
+ * as the expiry nears. Either way popular entries are reloaded once before they expire for everyone.
+ * <p>
+ * Loads that find nothing leave a tombstone for a few seconds (cacheNegativeTtl), so lookups of missing
+ * keys are answered by the cache too. Storing a value replaces them.
+ * <p>
+ * Cache fills, the values loaded from the database, are batched per request with {@link RedisBatch}. Storing or
+ * removing a key cancels the fills of the key the request queued before. Fills and tombstones are only written if
+ * the key still holds what was read before the load, so a fill sent late never overwrites a value stored meanwhile.
+ * Removed keys are replaced by a marker, unique to each removal, that reads take for a miss, so a fill loaded before
+ * the removal does not bring the key back either.
+ * <p>
+ * Reads are sampled to detect hot keys ({@link HotKeys}), e.g. of a viral short. Hot keys of the prefixes without
+ * a near cache are served from a small pod-local replica for a short TTL (hotKeyReplicaTtl), so their reads are
+ * spread over the pods instead of all reaching the one Redis node holding the key. Changes to a hot key are
+ * announced like those of near cached keys.
+ * <p>
+ * Redis may be a single node or a cluster (see {@link RedisCachePool}): all the commands used here are on one key,
+ * or pipelined per key in a cluster, so they work on both. Values are always read from the primary.
+ */
 public class CacheUtils {
 
     private static final Logger Log = Logger.getLogger(CacheUtils.class.getName());
     private static final String USER_CACHE_PREFIX = "user:";
     private static final String TOKEN_CACHE_PREFIX = "token:";
     private static final String SESSION_CACHE_PREFIX = "session:";
-    private static final ObjectMapper objectMapper = new ObjectMapper(); // Jackson ObjectMapper for JSON
+
+    private static final String INVALIDATION_CHANNEL = "cache:invalidations";
+    // Tags the invalidations of this pod, which already applied them locally
+    private static final String ORIGIN = UUID.randomUUID().toString();
+    private static final long RESUBSCRIBE_DELAY = 1000;
+    private static final long DEFAULT_TTL = 3600;
+    private static final int REFRESH_THREADS = 2;
+    private static final int MAX_PENDING_REFRESHES = 1000;
+    // Redis value of a tombstone, below the first byte of any codec, and its near cache copy
+    private static final byte[] TOMBSTONE_DATA = {0x00};
+    private static final Object TOMBSTONE = new Object();
+    // Redis value of a removed key: the tombstone byte followed by random bytes, which tell removals apart
+    private static final int REMOVAL_ID_BYTES = 8;
+
+    // Sets a key only if it still holds the value read before the load, '' if it was missing.
+    // KEYS is the key, ARGV the value read, the value to set and its expiry.
+    private static final byte[] FILL_SCRIPT = """
+            if (redis.call('get', KEYS[1]) or '') == ARGV[1] then
+                redis.call('set', KEYS[1], ARGV[2], 'EX', ARGV[3])
+                return 1
+            end
+            return 0
+            """.getBytes(StandardCharsets.UTF_8);
+
+    // concurrent loads of the same key, and concurrent reads of the same session
+    private static final SingleFlight<String, Result<?>> loads = new SingleFlight<>();
+    private static final SingleFlight<String, CacheResult<?>> reads = new SingleFlight<>();
+    // keys being reloaded in the background
+    private static final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    // prefix -> near cache, null until initialized, empty if near caching is disabled
+    private static Map<String, NearCache<Object>> nearCaches;
+    // null if hot key detection is disabled
+    private static HotKeys hotKeys;
+    private static NearCache<Object> hotReplica;
+    private static CacheCodec codec;
+    // prefix -> policy of its keys, the default policy applies to the others
+    private static Map<String, CachePolicy> policies;
+    private static CachePolicy defaultPolicy;
+    private static ExecutorService refresher;
+    // expected milliseconds to reload an entry, scales how early entries are refreshed
+    private static long earlyRefresh;
+    // seconds a missing key is remembered
+    private static long negativeTtl;
+    private static volatile boolean configured;
 
     public static CacheResult<User> getUserFromCache(String userId) {
         return getFromCache(USER_CACHE_PREFIX + userId, User.class);
@@ -25,22 +119,249 @@ public class CacheUtils {
         return getFromCache(TOKEN_CACHE_PREFIX + userId, String.class);
     }
 
+    @SuppressWarnings("unchecked")
     public static CacheResult<Session> getSessionFromCache(String sessionId) {
-        return getFromCache(SESSION_CACHE_PREFIX + sessionId, Session.class);
+        // every request of a session reads it, concurrent requests share one read
+        String cacheKey = SESSION_CACHE_PREFIX + sessionId;
+        return (CacheResult<Session>) reads.run(cacheKey, () -> getFromCache(cacheKey, Session.class));
+    }
+
+    /**
+     * Returns the cached user, or loads it with the given loader and caches it.
+     */
+    public static Result<User> getUser(String userId, Supplier<Result<User>> loader) {
+        return getOrLoad(USER_CACHE_PREFIX + userId, User.class, loader);
+    }
+
+    /**
+     * Returns the value cached under the key, or loads it and caches it as the policy of the key says.
+     * Concurrent misses of the key share a single load. Keys the loader finds NOT_FOUND are cached as tombstones.
+     */
+    public static <T> Result<T> getOrLoad(String cacheKey, Class<T> clazz, Supplier<Result<T>> loader) {
+        var cached = getFromCache(cacheKey, clazz, true);
+        if (cached.isNegative())
+            return Result.error(Result.ErrorCode.NOT_FOUND);
+        if (cached.isCacheHit() && !refreshAhead(cacheKey, cached.remaining, () -> load(cacheKey, cached.data, loader)))
+            return Result.ok(cached.getObject());
+
+        return loadOnce(cacheKey, () -> load(cacheKey, cached.data, loader));
+    }
+
+    // Loads a key, and caches the result unless the key no longer holds the value read before, null if there was none
+    private static <T> Result<T> load(String cacheKey, byte[] read, Supplier<Result<T>> loader) {
+        var res = loader.get();
+        // loaded values are unchanged, so there is nothing to invalidate on other pods
+        if (res.isOK())
+            fillCache(cacheKey, res.value(), read);
+        else if (res.error() == Result.ErrorCode.NOT_FOUND)
+            storeTombstones(Collections.singletonMap(cacheKey, read));
+        return res;
+    }
+
+    /**
+     * Returns the cached users, loading the ones that are not cached with a single call of the loader.
+     */
+    public static Result<List<User>> getUsers(List<String> userIds, Function<List<String>, Result<List<User>>> loader) {
+        return getAllOrLoad(USER_CACHE_PREFIX, userIds, User.class, User::getId, loader);
     }
 
-    private static <T> CacheResult<T> getFromCache(String cacheKey, Class<T> clazz) {
-        JedisPool pool = RedisCachePool.getCachePool();
-        try (Jedis jedis = pool.getResource()) {
-            String cachedData = jedis.get(cacheKey);
+    /**
+     * Returns the values cached under the prefix followed by each of the ids, read from the near cache or
+     * with a single MGET (pipelined GETs in a cluster, where the keys are spread over the nodes), and loads the others with a single call of the loader. Ids the loader does not find
+     * are left out of the result, and cached as tombstones.
+     *
+     * @param idOf the id of a loaded value
+     * @return the values found, in the order of their ids, without duplicates
+     */
+    public static <T> Result<List<T>> getAllOrLoad(String prefix, List<String> ids, Class<T> clazz,
+                                                   Function<T, String> idOf,
+                                                   Function<List<String>, Result<List<T>>> loader) {
+        var unique = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<String, T> found = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        // the values read from Redis for the misses, which their loads may replace
+        Map<String, byte[]> read = new HashMap<>();
+
+        for (var id : unique) {
+            recordRead(prefix + id);
+            var local = localCache(prefix + id);
+            var cachedObject = local == null ? null : local.get(prefix + id);
+            if (cachedObject == null)
+                misses.add(id);
+            else if (cachedObject != TOMBSTONE)
+                found.put(id, clazz.cast(cachedObject));
+        }
 
-            if (cachedData != null) {
-                // Deserialize only if cache data is found
-                T cachedObject = deserializeObject(cachedData, clazz);
-                return new CacheResult<>(cachedObject, true);
+        if (!misses.isEmpty()) {
+            try {
+                var data = mget(RedisCachePool.getCache(), misses.stream().map(id -> key(prefix + id)).toList());
+                List<String> stillMissing = new ArrayList<>();
+                for (int i = 0; i < misses.size(); i++) {
+                    var id = misses.get(i);
+                    if (Arrays.equals(data.get(i), TOMBSTONE_DATA))
+                        continue;
+                    T cachedObject = data.get(i) == null || isRemoved(data.get(i)) ? null : decode(data.get(i), clazz);
+                    if (cachedObject == null) {
+                        stillMissing.add(id);
+                        read.put(id, data.get(i));
+                        continue;
+                    }
+                    found.put(id, cachedObject);
+                    var local = localCache(prefix + id);
+                    if (local != null)
+                        local.put(prefix + id, cachedObject);
+                }
+                misses = stillMissing;
+            } catch (Exception e) {
+                Log.warning(() -> "Cache read error: " + e.getMessage());
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            var res = loader.apply(misses);
+            if (!res.isOK())
+                return Result.error(res.error());
+            for (var value : res.value()) {
+                found.put(idOf.apply(value), value);
+                fillCache(prefix + idOf.apply(value), value, read.get(idOf.apply(value)));
+            }
+            Map<String, byte[]> missing = new HashMap<>();
+            for (var id : misses)
+                if (!found.containsKey(id))
+                    missing.put(prefix + id, read.get(id));
+            storeTombstones(missing);
+        }
+        return Result.ok(unique.stream().map(found::get).filter(Objects::nonNull).toList());
+    }
+
+    /**
+     * Runs the loader of a key, unless it is already running, in which case its result is shared.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Result<T> loadOnce(String key, Supplier<Result<T>> loader) {
+        return (Result<T>) loads.run(key, loader::get);
+    }
+
+    /**
+     * Returns the policy of the kind of the key, as configured in redis.properties.
+     */
+    public static CachePolicy policy(String cacheKey) {
+        configure();
+        return policies.getOrDefault(cacheKey.substring(0, cacheKey.indexOf(':') + 1), defaultPolicy);
+    }
+
+    /**
+     * Sets the policy of the keys of a prefix, e.g. of kinds of keys cached by other classes.
+     */
+    public static void setPolicy(String prefix, CachePolicy policy) {
+        configure();
+        policies.put(prefix, policy);
+    }
+
+    /**
+     * Decides what a reader does with an entry that expires in the given milliseconds. If the policy of the key
+     * refreshes ahead, the entry is reloaded in the background once it is due, and the reader keeps the cached value.
+     * Otherwise the reader may have to reload the entry itself, see refreshEarly.
+     *
+     * @return true if the reader has to reload the entry itself
+     */
+    public static boolean refreshAhead(String cacheKey, long remaining, Runnable reload) {
+        return refreshAhead(cacheKey, policy(cacheKey), remaining, reload);
+    }
+
+    /**
+     * As refreshAhead(cacheKey, remaining, reload), for entries of the given policy.
+     *
+     * @param key identifies the entry, so it is reloaded only once at a time
+     */
+    public static boolean refreshAhead(String key, CachePolicy policy, long remaining, Runnable reload) {
+        configure();
+        if (policy.refreshAhead() <= 0)
+            return refreshEarly(remaining);
+
+        if (policy.refreshAhead(remaining) && refreshing.add(key)) {
+            try {
+                refresher.execute(() -> {
+                    try {
+                        reload.run();
+                    } catch (RuntimeException e) {
+                        Log.warning(() -> "Cache refresh error: " + e.getMessage());
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // too many refreshes pending, the entry will be loaded again once it expired
+                refreshing.remove(key);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decides whether a reader refreshes an entry that expires in the given milliseconds, as in
+     * "Optimal Probabilistic Cache Stampede Prevention" (XFetch): the closer the expiry, the likelier.
+     */
+    public static boolean refreshEarly(long remaining) {
+        configure();
+        return remaining >= 0 && remaining <= -earlyRefresh * Math.log(ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Reads a value cached under the given key, through the near cache of its prefix if there is one,
+     * or through the hot key replica if the key is hot.
+     */
+    public static <T> CacheResult<T> getFromCache(String cacheKey, Class<T> clazz) {
+        return getFromCache(cacheKey, clazz, false);
+    }
+
+    // Hits read from Redis with their time to live tell the milliseconds left before they expire
+    private static <T> CacheResult<T> getFromCache(String cacheKey, Class<T> clazz, boolean withTtl) {
+        recordRead(cacheKey);
+        var near = localCache(cacheKey);
+        if (near != null) {
+            var cachedObject = near.get(cacheKey);
+            if (cachedObject == TOMBSTONE)
+                return CacheResult.negative();
+            if (cachedObject != null)
+                return new CacheResult<>(clazz.cast(cachedObject), true);
+        }
+
+        try {
+            byte[] cachedData;
+            long remaining = -1;
+            if (withTtl) {
+                Response<byte[]> data;
+                Response<Long> ttl;
+                try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+                    data = p.get(key(cacheKey));
+                    ttl = p.pttl(cacheKey);
+                }
+                cachedData = data.get();
+                remaining = ttl.get();
+            } else
+                cachedData = RedisCachePool.getCache().get(key(cacheKey));
+
+            if (Arrays.equals(cachedData, TOMBSTONE_DATA)) {
+                if (near != null)
+                    near.put(cacheKey, TOMBSTONE);
+                return CacheResult.negative();
+            }
+
+            // removed entries, and entries that cannot be decoded (e.g. written by a newer release), are misses
+            T cachedObject = cachedData == null || isRemoved(cachedData) ? null : decode(cachedData, clazz);
+
+            CacheResult<T> result;
+            if (cachedObject != null) {
+                if (near != null)
+                    near.put(cacheKey, cachedObject);
+                result = new CacheResult<>(cachedObject, true);
+                result.remaining = remaining;
             } else {
-                return new CacheResult<>(null, false);
+                result = new CacheResult<>(null, false);
             }
+            result.data = cachedData;
+            return result;
         } catch (Exception e) {
             Log.warning(() -> "Cache read error: " + e.getMessage());
             return new CacheResult<>(null, false);
@@ -48,35 +369,104 @@ public class CacheUtils {
     }
 
     public static void storeUserInCache(User user) {
-        storeinCache(USER_CACHE_PREFIX + user.getId(), user);
+        storeinCache(USER_CACHE_PREFIX + user.getId(), user, true);
+    }
+
+    /**
+     * Caches a user as read from the database, e.g. by a search. Unlike a user that was just changed,
+     * other pods cannot hold a newer copy, so the write is batched with the other cache fills of the request.
+     */
+    public static void cacheLoadedUser(User user) {
+        // not read from the cache before, so only cached if it is missing
+        fillCache(USER_CACHE_PREFIX + user.getId(), user, null);
     }
 
     public static void storeSessionInCache(Session session){
-        storeinCache(SESSION_CACHE_PREFIX + session.uuid(), session);
+        // sessions are never changed once created, so other pods cannot hold an outdated copy
+        storeinCache(SESSION_CACHE_PREFIX + session.uuid(), session, false);
     }
 
     public static void storeTokenInCache(String userId, String token) {
-        storeinCache(TOKEN_CACHE_PREFIX + userId, token);
+        storeinCache(TOKEN_CACHE_PREFIX + userId, token, true);
+    }
+
+    // Caches a value loaded from the database, in the batch of the request if there is one, unless the key
+    // no longer holds the value read before the load, null if there was none
+    private static void fillCache(String cacheKey, Object object, byte[] read) {
+        byte[] serializedData = encode(object);
+        if (serializedData == null)
+            return;
+
+        long expiry = policy(cacheKey).expiry();
+        Consumer<AbstractPipeline> fill = p -> setIfUnchanged(p, cacheKey, read, serializedData, expiry);
+        if (!RedisBatch.queue(cacheKey, fill)) {
+            try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+                fill.accept(p);
+            } catch (Exception e) {
+                Log.warning(() -> "Cache write error: " + e.getMessage());
+                return;
+            }
+        }
+        var near = localCache(cacheKey);
+        if (near != null)
+            near.put(cacheKey, object);
     }
 
-    private static void storeinCache(String cacheKey, Object object){
-        JedisPool pool = RedisCachePool.getCachePool();
-        try (Jedis jedis = pool.getResource()) {
-            String serializedSessionData = serializeObject(object);
-            jedis.setex(cacheKey, 3600, serializedSessionData); // Set 1-hour TTL
+    private static void storeinCache(String cacheKey, Object object, boolean invalidateOthers){
+        // a fill queued earlier by the request would overwrite the value stored now
+        RedisBatch.cancel(cacheKey);
+        var near = localCache(cacheKey);
+        try {
+            byte[] serializedData = codec().encode(object);
+            RedisCachePool.getCache().setex(key(cacheKey), policy(cacheKey).expiry(), serializedData);
+            if (near != null && invalidateOthers)
+                publishInvalidation(cacheKey);
+            if (near != null)
+                near.put(cacheKey, object);
         } catch (Exception e) {
+            if (near != null)
+                near.invalidate(cacheKey);
             Log.severe(() -> "Cache write error: " + e.getMessage());
         }
     }
 
+    // Remembers that the keys are missing, unless they changed since they were found missing.
+    // Maps each key to the value read before it was found missing, null if there was none.
+    private static void storeTombstones(Map<String, byte[]> read) {
+        if (read.isEmpty())
+            return;
+        var cacheKeys = new ArrayList<>(read.keySet());
+        RedisBatch.cancel(cacheKeys.toArray(String[]::new));
+        try {
+            List<Response<Object>> stored = new ArrayList<>();
+            try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+                for (var cacheKey : cacheKeys)
+                    stored.add(setIfUnchanged(p, cacheKey, read.get(cacheKey), TOMBSTONE_DATA, negativeTtl));
+            }
+            for (int i = 0; i < cacheKeys.size(); i++) {
+                var near = localCache(cacheKeys.get(i));
+                if (near != null && Objects.equals(stored.get(i).get(), 1L))
+                    near.put(cacheKeys.get(i), TOMBSTONE);
+            }
+        } catch (Exception e) {
+            Log.warning(() -> "Cache write error: " + e.getMessage());
+        }
+    }
+
     public static void removeUserFromCache(String userId) {
         removeFromCache(USER_CACHE_PREFIX + userId);
     }
 
     private static void removeFromCache(String cacheKey) {
-        JedisPool pool = RedisCachePool.getCachePool();
-        try (Jedis jedis = pool.getResource()) {
-            jedis.del(cacheKey);
+        var near = localCache(cacheKey);
+        dropLocalCopies(cacheKey);
+        // e.g. the fill of the read checking the password of a user being deleted
+        RedisBatch.cancel(cacheKey);
+
+        try {
+            RedisCachePool.getCache().setex(key(cacheKey), policy(cacheKey).ttl(), removal());
+            if (near != null)
+                publishInvalidation(cacheKey);
             Log.info(() -> String.format("Cache entry removed for key %s", cacheKey));
         } catch (Exception e) {
             Log.warning(() -> String.format("Error removing key from cache: %s", e.getMessage()));
@@ -84,24 +474,219 @@ public class CacheUtils {
     }
 
     /**
-     * Serialize a User object to JSON String.
+     * Removes a key read with getOrLoad or getAllOrLoad (e.g. of a short changed by another class), in the given
+     * pipeline. The loads of the key that read it before it was removed do not cache it again.
+     */
+    public static void removeFromCache(AbstractPipeline p, String cacheKey) {
+        p.setex(key(cacheKey), policy(cacheKey).ttl(), removal());
+    }
+
+    // Sets the key to the data in the pipeline, only if it still holds the value read, null if there was none
+    private static Response<Object> setIfUnchanged(AbstractPipeline p, String cacheKey, byte[] read, byte[] data, long expiry) {
+        return p.eval(FILL_SCRIPT, List.of(key(cacheKey)),
+                List.of(read == null ? new byte[0] : read, data, key(String.valueOf(expiry))));
+    }
+
+    // A new value for a removed key, which no other removal writes
+    private static byte[] removal() {
+        var data = new byte[1 + REMOVAL_ID_BYTES];
+        ThreadLocalRandom.current().nextBytes(data);
+        data[0] = TOMBSTONE_DATA[0];
+        return data;
+    }
+
+    private static boolean isRemoved(byte[] data) {
+        return data.length > 1 && data[0] == TOMBSTONE_DATA[0];
+    }
+
+    // Tells the other pods to drop their near copies of the key. Not pipelined with the write of the key, since
+    // a cluster pipeline sends commands to the node of their key, and a publication has none.
+    private static void publishInvalidation(String cacheKey) {
+        RedisCachePool.getCache().publish(INVALIDATION_CHANNEL, ORIGIN + " " + cacheKey);
+    }
+
+    // Reads the values of the keys, with MGET on a single node, or with a pipeline splitting them by node in a cluster
+    private static List<byte[]> mget(UnifiedJedis cache, List<byte[]> keys) {
+        if (!RedisCachePool.isCluster())
+            return cache.mget(keys.toArray(byte[][]::new));
+
+        List<Response<byte[]>> data = new ArrayList<>();
+        try (AbstractPipeline p = cache.pipelined()) {
+            keys.forEach(k -> data.add(p.get(k)));
+        }
+        return data.stream().map(Response::get).toList();
+    }
+
+    /**
+     * Drops the copies of hot keys changed or removed by other classes (e.g. of shorts) from the hot key replicas
+     * of all pods. Keys that are not hot here are only dropped locally, their copies elsewhere soon expire.
      */
-    public static <T> String serializeObject(T obj) {
+    public static void invalidateHotKeys(String... cacheKeys) {
+        configure();
+        if (hotKeys == null)
+            return;
+        for (var cacheKey : cacheKeys) {
+            hotReplica.invalidate(cacheKey);
+            if (hotKeys.isHot(cacheKey)) {
+                try {
+                    publishInvalidation(cacheKey);
+                } catch (Exception e) {
+                    Log.warning(() -> "Cache invalidation error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void recordRead(String cacheKey) {
+        configure();
+        if (hotKeys != null)
+            hotKeys.record(cacheKey);
+    }
+
+    // Returns the in-memory cache of the key: the near cache of its prefix, else the hot key replica if the key is hot
+    private static NearCache<Object> localCache(String cacheKey) {
+        var near = nearCache(cacheKey);
+        if (near != null || hotKeys == null || !hotKeys.isHot(cacheKey))
+            return near;
+        return hotReplica;
+    }
+
+    private static void dropLocalCopies(String cacheKey) {
+        var near = nearCache(cacheKey);
+        if (near != null)
+            near.invalidate(cacheKey);
+        if (hotReplica != null)
+            hotReplica.invalidate(cacheKey);
+    }
+
+    // Returns the near cache of the prefix of the key, or null if near caching is disabled
+    private static NearCache<Object> nearCache(String cacheKey) {
+        configure();
+        return nearCaches.get(cacheKey.substring(0, cacheKey.indexOf(':') + 1));
+    }
+
+    private static CacheCodec codec() {
+        configure();
+        return codec;
+    }
+
+    // Called on every read, so only the first calls take the lock. The volatile write of configured, after all
+    // the fields were set, makes them visible to the threads that read it.
+    private static void configure() {
+        if (configured)
+            return;
+        synchronized (CacheUtils.class) {
+            if (configured)
+                return;
+            try {
+                initialize();
+            } finally {
+                configured = true;
+            }
+        }
+    }
+
+    private static void initialize() {
+        nearCaches = new HashMap<>();
+        Properties props = new Properties();
         try {
-            return objectMapper.writeValueAsString(obj);
-        } catch (JsonProcessingException e) {
+            ResourceUtils.loadPropertiesFromResources(props, "redis.properties");
+        } catch (RuntimeException e) {
+            Log.warning(() -> "No redis.properties, near cache disabled: " + e.getMessage());
+        }
+        codec = CacheCodec.fromProperties(props);
+        earlyRefresh = Long.parseLong(props.getProperty("cacheEarlyRefresh", "200"));
+        negativeTtl = Long.parseLong(props.getProperty("cacheNegativeTtl", "30"));
+
+        double jitter = Double.parseDouble(props.getProperty("cacheTtlJitter", "0.1"));
+        defaultPolicy = new CachePolicy(DEFAULT_TTL, 0, 0, jitter);
+        policies = new ConcurrentHashMap<>();
+        // users are reloaded ahead of their expiry, sessions and tokens have no loader
+        policies.put(USER_CACHE_PREFIX, CachePolicy.fromProperties(props, "users", new CachePolicy(DEFAULT_TTL, 0, 0.1, jitter)));
+        policies.put(SESSION_CACHE_PREFIX, CachePolicy.fromProperties(props, "sessions", defaultPolicy));
+        policies.put(TOKEN_CACHE_PREFIX, CachePolicy.fromProperties(props, "tokens", defaultPolicy));
+        refresher = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_REFRESHES), Threads.daemonFactory("cache-refresher"));
+
+        if (props.isEmpty())
+            return;
+
+        if (Boolean.parseBoolean(props.getProperty("nearCacheEnabled", "true"))) {
+            int size = Integer.parseInt(props.getProperty("nearCacheSize", "10000"));
+            long ttl = Long.parseLong(props.getProperty("nearCacheTtl", "5000"));
+            for (var prefix : new String[]{USER_CACHE_PREFIX, SESSION_CACHE_PREFIX, TOKEN_CACHE_PREFIX})
+                nearCaches.put(prefix, new NearCache<>(size, ttl, policies.get(prefix).maxIdle() * 1000));
+        }
+
+        hotKeys = HotKeys.fromProperties(props);
+        if (hotKeys != null) {
+            hotReplica = new NearCache<>(Integer.parseInt(props.getProperty("hotKeysTracked", "100")),
+                    Long.parseLong(props.getProperty("hotKeyReplicaTtl", "1000")));
+            HotKeys.registerStats(hotKeys, hotReplica);
+        }
+
+        if (nearCaches.isEmpty() && hotKeys == null)
+            return;
+        var subscriber = Threads.daemonFactory("cache-invalidations").newThread(CacheUtils::subscribeToInvalidations);
+        subscriber.start();
+    }
+
+    // Applies the invalidations of the other pods, for as long as the server runs
+    private static void subscribeToInvalidations() {
+        var listener = new JedisPubSub() {
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                // invalidations may have been missed while not subscribed
+                nearCaches.values().forEach(NearCache::clear);
+                if (hotReplica != null)
+                    hotReplica.clear();
+            }
+
+            @Override
+            public void onMessage(String channel, String message) {
+                var parts = message.split(" ", 2);
+                if (parts.length == 2 && !parts[0].equals(ORIGIN))
+                    dropLocalCopies(parts[1]);
+            }
+        };
+        while (true) {
+            try {
+                // in a cluster, publications reach the subscribers on every node
+                RedisCachePool.getCache().subscribe(listener, INVALIDATION_CHANNEL);
+            } catch (Exception e) {
+                Log.warning(() -> "Cache invalidation subscription lost: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RESUBSCRIBE_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static byte[] key(String cacheKey) {
+        return cacheKey.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a value with the configured cache codec, or returns null if it cannot be encoded.
+     */
+    public static byte[] encode(Object object) {
+        try {
+            return codec().encode(object);
+        } catch (IOException e) {
             Log.warning(() -> "Serialization error: " + e.getMessage());
             return null;
         }
     }
 
     /**
-     * Deserialize a JSON String to a User object.
+     * Decodes a cached value written by any of the cache codecs, or returns null if it cannot be decoded.
      */
-    public static <T> T deserializeObject(String data, Class<T> clazz) {
+    public static <T> T decode(byte[] data, Class<T> clazz) {
         try {
-            return objectMapper.readValue(data, clazz);
-        } catch (JsonProcessingException e) {
+            return CacheCodec.decodeAny(data, clazz);
+        } catch (IOException e) {
             Log.warning(() -> "Deserialization error: " + e.getMessage());
             return null;
         }
@@ -110,10 +695,15 @@ public class CacheUtils {
 
     /**
      * A helper class to return the cache result along with a hit/miss indicator.
+     * A hit without an object is a tombstone: the key is known to be missing.
      */
     public static class CacheResult<T> {
         private final T obj;
         private final boolean cacheHit;
+        // milliseconds before the entry expires in Redis, -1 if unknown
+        private long remaining = -1;
+        // the value read from Redis, which a reload of the entry expects to replace, null if none or unknown
+        private byte[] data;
 
         public CacheResult(T obj, boolean cacheHit) {
             this.obj = obj;
@@ -127,5 +717,13 @@ public class CacheUtils {
         public boolean isCacheHit() {
             return cacheHit;
         }
+
+        public boolean isNegative() {
+            return cacheHit && obj == null;
+        }
+
+        static <T> CacheResult<T> negative() {
+            return new CacheResult<>(null, true);
+        }
     }
 }
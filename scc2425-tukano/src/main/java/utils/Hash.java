@@ -1,52 +1,78 @@
 package utils;
 
-import java.math.BigInteger;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Message digests, safe to use from any number of threads.
+ * Each thread reuses its own digest instances, so hashing neither locks nor allocates a digest per call.
+ */
 public class Hash {
-		static MessageDigest md5;
-		static MessageDigest sha256;
-				
+		private static final int BUFFER_SIZE = 64 * 1024;
+
+		private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> newDigest("MD5"));
+		private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> newDigest("SHA-256"));
+		private static final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
 		public static byte[] md5( byte[] data ) {
-			if (md5 == null) {
-				try {
-					md5 = MessageDigest.getInstance("MD5");
-				} catch (NoSuchAlgorithmException e) {
-					e.printStackTrace();
-				}
-			}
-			md5.reset();
-			md5.update( data == null ? new byte[0] : data );
-			return md5.digest();
+			return digest( md5.get(), data );
 		}
-		
+
 		public static byte[] sha256( byte[] data ) {
-			if (sha256 == null) {
-				try {
-					sha256 = MessageDigest.getInstance("SHA-256");
-				} catch (NoSuchAlgorithmException e) {
-					e.printStackTrace();
-				}
-			}
-			sha256.reset();
-			sha256.update( data == null ? new byte[0] : data );
-			return sha256.digest();
+			return digest( sha256.get(), data );
 		}
-		
-		
-		synchronized public static String of(Object ...values) {
-			if (md5 == null) {
-				try {
-					md5 = MessageDigest.getInstance("MD5");
-				} catch (NoSuchAlgorithmException e) {
-					e.printStackTrace();
-				}
-			}
-			md5.reset();
+
+		/**
+		 * Hashes a stream until its end, in chunks, so large inputs are never held in memory.
+		 */
+		public static byte[] sha256( InputStream in ) throws IOException {
+			var digest = sha256.get();
+			var chunk = buffer.get();
+			digest.reset();
+			int n;
+			while ((n = in.read(chunk)) > 0)
+				digest.update(chunk, 0, n);
+			return digest.digest();
+		}
+
+		/**
+		 * Returns a new SHA-256 digest owned by the caller, for hashing data as it is written elsewhere
+		 * (e.g. through a DigestOutputStream).
+		 */
+		public static MessageDigest newSha256() {
+			return newDigest("SHA-256");
+		}
+
+		/**
+		 * MD5 of the string forms of the values, as uppercase hex without leading zeros, padded to at least 16 digits.
+		 */
+		public static String of(Object ...values) {
+			var digest = md5.get();
+			digest.reset();
 			for( var o : values )
-				md5.update( o.toString().getBytes() );
+				digest.update( o.toString().getBytes() );
+
+			var hex = Hex.of( digest.digest() );
+			int start = 0;
+			while (start < hex.length() - 16 && hex.charAt(start) == '0')
+				start++;
+			return hex.substring(start);
+		}
 
-			return String.format("%016X", new BigInteger(1, md5.digest()));
-		};
+		private static byte[] digest( MessageDigest digest, byte[] data ) {
+			digest.reset();
+			digest.update( data == null ? new byte[0] : data );
+			return digest.digest();
+		}
+
+		private static MessageDigest newDigest(String algorithm) {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				// every Java platform is required to support MD5 and SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
 }
@@ -1,20 +1,24 @@
 package utils;
 
-import java.util.Arrays;
-
 public class Hex {
-	static final String hexits = "0123456789ABCDEF";
-	
+	private static final char[] hexits = "0123456789ABCDEF".toCharArray();
+
 	public static String of( byte[] data ) {
 		return of( data, data.length);
 	}
-	
+
+	/**
+	 * Uppercase hex of the first len bytes of data, zero padded if data is shorter.
+	 */
 	public static String of( byte[] data, int len ) {
-		var sb = new StringBuilder();
-		for ( var b : Arrays.copyOf(data, len) ) {
-			sb.append( hexits.charAt( (b & 0xF0 ) >>> 4 ));;
-			sb.append( hexits.charAt( (b & 0x0F ) ));
-		}		
-		return sb.toString();
+		var chars = new char[2 * len];
+		for ( int i = 0; i < len && i < data.length; i++ ) {
+			int b = data[i];
+			chars[2 * i] = hexits[ (b & 0xF0 ) >>> 4 ];
+			chars[2 * i + 1] = hexits[ b & 0x0F ];
+		}
+		for ( int i = 2 * Math.min(len, data.length); i < chars.length; i++ )
+			chars[i] = '0';
+		return new String(chars);
 	}
 }
@@ -0,0 +1,238 @@
+package utils;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Detects the hot keys of the cache, the few keys (e.g. of a viral short or user) read far more than the others,
+ * which would otherwise all be read from the one Redis node that holds them.
+ * <p>
+ * A sample of the reads is counted in a count-min sketch, whose counters are halved every window so that it tracks
+ * recent popularity. A key whose estimated reads reach the threshold is hot until its estimate falls below it again.
+ * At most maxTracked keys are hot at a time: past that, a new hot key only replaces the coldest one if it is hotter
+ * (space-saving), so the hot keys are the top-K of the recent reads.
+ */
+public class HotKeys {
+
+	private static final Logger Log = Logger.getLogger(HotKeys.class.getName());
+
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 1 << 14;
+
+	private final long threshold;
+	private final long window;
+	private final double sampleRate;
+	private final int maxTracked;
+	private final LongSupplier clock;
+
+	// guarded by this
+	private final int[][] table = new int[DEPTH][WIDTH];
+	private final int[] seeds = new int[DEPTH];
+	private long windowStart;
+	private long sampled;
+
+	// written under this, read without it by every cache read
+	private final Map<String, Long> hot = new ConcurrentHashMap<>();
+
+	/**
+	 * @param threshold  estimated reads of a key, halved every window, past which it is hot
+	 * @param window     milliseconds between the halvings of the counts
+	 * @param sampleRate fraction of the reads that are counted
+	 * @param maxTracked max number of keys that are hot at a time
+	 */
+	public HotKeys(long threshold, long window, double sampleRate, int maxTracked) {
+		this(threshold, window, sampleRate, maxTracked, System::currentTimeMillis);
+	}
+
+	HotKeys(long threshold, long window, double sampleRate, int maxTracked, LongSupplier clock) {
+		this.threshold = threshold;
+		this.window = window;
+		this.sampleRate = sampleRate;
+		this.maxTracked = maxTracked;
+		this.clock = clock;
+		this.windowStart = clock.getAsLong();
+		for (int i = 0; i < DEPTH; i++)
+			seeds[i] = ThreadLocalRandom.current().nextInt() | 1;
+	}
+
+	/**
+	 * Creates the detector configured in redis.properties, or returns null if hot key detection is disabled.
+	 */
+	public static HotKeys fromProperties(Properties props) {
+		if (!Boolean.parseBoolean(props.getProperty("hotKeysEnabled", "true")))
+			return null;
+		return new HotKeys(
+				Long.parseLong(props.getProperty("hotKeyThreshold", "1000")),
+				Long.parseLong(props.getProperty("hotKeyWindow", "1000")),
+				Double.parseDouble(props.getProperty("hotKeySampleRate", "0.1")),
+				Integer.parseInt(props.getProperty("hotKeysTracked", "100")));
+	}
+
+	/**
+	 * Counts a read of the key, if it is sampled, and tells whether the key is hot.
+	 */
+	public boolean record(String key) {
+		if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+			return hot.containsKey(key);
+
+		synchronized (this) {
+			decay();
+			sampled++;
+			long estimate = increment(key);
+			if (estimate >= threshold)
+				track(key, estimate);
+			return hot.containsKey(key);
+		}
+	}
+
+	public boolean isHot(String key) {
+		return hot.containsKey(key);
+	}
+
+	/**
+	 * Returns the hot keys with their estimated reads, hottest first.
+	 */
+	public synchronized Map<String, Long> top() {
+		decay();
+		var res = new LinkedHashMap<String, Long>();
+		hot.entrySet().stream()
+				.sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+				.forEach(e -> res.put(e.getKey(), e.getValue()));
+		return res;
+	}
+
+	public synchronized long getSampledReads() {
+		return sampled;
+	}
+
+	// A new hot key takes the place of the coldest one when there are too many
+	private void track(String key, long estimate) {
+		if (hot.containsKey(key) || hot.size() < maxTracked) {
+			hot.put(key, estimate);
+			return;
+		}
+		var coldest = hot.entrySet().stream().min(Map.Entry.comparingByValue()).orElseThrow();
+		if (coldest.getValue() < estimate) {
+			hot.remove(coldest.getKey());
+			hot.put(key, estimate);
+		}
+	}
+
+	// Halves the counts once per elapsed window, and cools down the keys that fell below the threshold
+	private void decay() {
+		long now = clock.getAsLong();
+		if (now - windowStart < window)
+			return;
+		int halvings = (int) Math.min(31, (now - windowStart) / window);
+		for (var row : table)
+			for (int j = 0; j < WIDTH; j++)
+				row[j] >>= halvings;
+		windowStart = now;
+
+		for (var key : hot.keySet()) {
+			long estimate = estimate(key);
+			if (estimate < threshold)
+				hot.remove(key);
+			else
+				hot.put(key, estimate);
+		}
+	}
+
+	private long increment(String key) {
+		int hash = spread(key.hashCode());
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			int index = index(hash, i);
+			if (table[i][index] < Integer.MAX_VALUE)
+				table[i][index]++;
+			min = Math.min(min, table[i][index]);
+		}
+		return (long) (min / sampleRate);
+	}
+
+	private long estimate(String key) {
+		int hash = spread(key.hashCode());
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++)
+			min = Math.min(min, table[i][index(hash, i)]);
+		return (long) (min / sampleRate);
+	}
+
+	private int index(int hash, int row) {
+		int h = hash * seeds[row];
+		return (h ^ (h >>> 16)) & (WIDTH - 1);
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 17;
+		h *= 0xed5ad4bb;
+		h ^= h >>> 11;
+		return h;
+	}
+
+	/**
+	 * Exposes the hot keys, and the pod-local replica serving them, through JMX as tukano:type=HotKeys.
+	 */
+	public static void registerStats(HotKeys hotKeys, NearCache<?> replica) {
+		try {
+			ManagementFactory.getPlatformMBeanServer()
+					.registerMBean(new Stats(hotKeys, replica), new ObjectName("tukano:type=HotKeys"));
+		} catch (Exception e) {
+			Log.warning(() -> "Could not register hot keys MBean: " + e.getMessage());
+		}
+	}
+
+	public interface StatsMXBean {
+		Map<String, Long> getHotKeys();
+
+		int getHotKeyCount();
+
+		long getSampledReads();
+
+		int getReplicaSize();
+
+		double getReplicaHitRatio();
+	}
+
+	static class Stats implements StatsMXBean {
+		private final HotKeys hotKeys;
+		private final NearCache<?> replica;
+
+		Stats(HotKeys hotKeys, NearCache<?> replica) {
+			this.hotKeys = hotKeys;
+			this.replica = replica;
+		}
+
+		@Override
+		public Map<String, Long> getHotKeys() {
+			return hotKeys.top();
+		}
+
+		@Override
+		public int getHotKeyCount() {
+			return hotKeys.hot.size();
+		}
+
+		@Override
+		public long getSampledReads() {
+			return hotKeys.getSampledReads();
+		}
+
+		@Override
+		public int getReplicaSize() {
+			return replica.size();
+		}
+
+		@Override
+		public double getReplicaHitRatio() {
+			return replica.hitRatio();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * The original encoding of cached values, as unversioned JSON text.
+ * Readable by every release, so it is the codec to use while older pods are still running.
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+	static final JsonCacheCodec DECODER = new JsonCacheCodec();
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Override
+	public byte[] encode(Object value) throws IOException {
+		return objectMapper.writeValueAsBytes(value);
+	}
+
+	@Override
+	public <T> T decode(byte[] data, Class<T> clazz) throws IOException {
+		return objectMapper.readValue(data, clazz);
+	}
+}
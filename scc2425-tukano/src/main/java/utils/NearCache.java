@@ -0,0 +1,209 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Small in-heap cache kept in front of Redis, for the few entries every request reads.
+ * <p>
+ * Entries live for a short TTL, so values changed by other pods are picked up even if an invalidation is lost,
+ * and may be dropped earlier if they are not read for a max idle time.
+ * Admission follows W-TinyLFU: new entries go through a small LRU window, and leave it for the main LRU region
+ * only if they were accessed more often than the entry they would evict, as estimated by a count-min sketch
+ * of recent accesses. A burst of one-off keys (e.g. a scan) thus cannot flush the hot entries.
+ * <p>
+ * Values are shared by all readers and must not be modified.
+ */
+public class NearCache<V> {
+
+	// expires at the deadline set when written, or earlier once idle
+	private record Entry<V>(V value, long deadline, long expiresAt) {
+	}
+
+	private final long ttl;
+	private final long maxIdle;
+	private final int windowSize;
+	private final int mainSize;
+	private final LongSupplier clock;
+	private final FrequencySketch sketch;
+
+	// both in access order, guarded by this
+	private final LinkedHashMap<String, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long hits, misses;
+
+	/**
+	 * @param maxSize max number of entries
+	 * @param ttl     milliseconds an entry is served for
+	 */
+	public NearCache(int maxSize, long ttl) {
+		this(maxSize, ttl, 0);
+	}
+
+	/**
+	 * @param maxSize max number of entries
+	 * @param ttl     milliseconds an entry is served for
+	 * @param maxIdle milliseconds an entry is kept without being read, 0 for as long as its ttl
+	 */
+	public NearCache(int maxSize, long ttl, long maxIdle) {
+		this(maxSize, ttl, maxIdle, System::currentTimeMillis);
+	}
+
+	NearCache(int maxSize, long ttl, LongSupplier clock) {
+		this(maxSize, ttl, 0, clock);
+	}
+
+	NearCache(int maxSize, long ttl, long maxIdle, LongSupplier clock) {
+		this.ttl = ttl;
+		this.maxIdle = maxIdle;
+		this.clock = clock;
+		this.windowSize = Math.max(1, maxSize / 100);
+		this.mainSize = Math.max(1, maxSize - windowSize);
+		this.sketch = new FrequencySketch(maxSize);
+	}
+
+	/**
+	 * Returns the cached value of the key, or null if it is missing or expired.
+	 */
+	public synchronized V get(String key) {
+		sketch.increment(key);
+		var map = window.containsKey(key) ? window : main;
+		var entry = map.get(key);
+		long now = clock.getAsLong();
+		if (entry != null && entry.expiresAt() <= now) {
+			map.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		if (maxIdle > 0)
+			map.put(key, new Entry<>(entry.value(), entry.deadline(), expiresAt(entry.deadline(), now)));
+		return entry.value();
+	}
+
+	public synchronized void put(String key, V value) {
+		sketch.increment(key);
+		long now = clock.getAsLong();
+		var entry = new Entry<>(value, now + ttl, expiresAt(now + ttl, now));
+		if (main.containsKey(key)) {
+			main.put(key, entry);
+			return;
+		}
+		window.put(key, entry);
+		if (window.size() <= windowSize)
+			return;
+
+		// the least recently used entry of the window competes for a place in the main region
+		var candidate = eldest(window);
+		window.remove(candidate.getKey());
+		if (main.size() < mainSize) {
+			main.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+		var victim = eldest(main);
+		if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+			main.remove(victim.getKey());
+			main.put(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	public synchronized void invalidate(String key) {
+		window.remove(key);
+		main.remove(key);
+	}
+
+	public synchronized void clear() {
+		window.clear();
+		main.clear();
+	}
+
+	public synchronized int size() {
+		return window.size() + main.size();
+	}
+
+	/**
+	 * Fraction of the reads that were served from this cache.
+	 */
+	public synchronized double hitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	private long expiresAt(long deadline, long lastRead) {
+		return maxIdle > 0 ? Math.min(deadline, lastRead + maxIdle) : deadline;
+	}
+
+	private static <V> Map.Entry<String, Entry<V>> eldest(LinkedHashMap<String, Entry<V>> map) {
+		return map.entrySet().iterator().next();
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters, halved periodically so that it tracks recent popularity.
+	 */
+	static class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+
+		private final byte[][] table;
+		private final int[] seeds = new int[DEPTH];
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int maxSize) {
+			// a few counters per entry keep the collisions of one-off keys well below the counts of hot ones
+			int width = Integer.highestOneBit(Math.max(16, maxSize) * 4 - 1) * 2;
+			table = new byte[DEPTH][width];
+			mask = width - 1;
+			sampleSize = 10 * Math.max(16, maxSize);
+			for (int i = 0; i < DEPTH; i++)
+				seeds[i] = ThreadLocalRandom.current().nextInt() | 1;
+		}
+
+		void increment(String key) {
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for (int i = 0; i < DEPTH; i++) {
+				int index = index(hash, i);
+				if (table[i][index] < MAX_COUNT) {
+					table[i][index]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize)
+				reset();
+		}
+
+		int frequency(String key) {
+			int hash = spread(key.hashCode());
+			int min = MAX_COUNT;
+			for (int i = 0; i < DEPTH; i++)
+				min = Math.min(min, table[i][index(hash, i)]);
+			return min;
+		}
+
+		private void reset() {
+			for (var row : table)
+				for (int j = 0; j < row.length; j++)
+					row[j] >>= 1;
+			additions /= 2;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * seeds[row];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private static int spread(int h) {
+			h ^= h >>> 17;
+			h *= 0xed5ad4bb;
+			h ^= h >>> 11;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package utils;
+
+import redis.clients.jedis.AbstractPipeline;
+import tukano.impl.RedisCachePool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Request scoped batch of the Redis writes nobody waits for, such as filling the cache with values read
+ * from the database. The writes of a request are queued while it runs and sent once it was answered,
+ * by a background writer that pipelines the batches of all requests pending at that time in one round trip.
+ * <p>
+ * Only writes that may arrive late, or be lost, belong here, never invalidations. A queued fill lands after
+ * the writes the request makes directly, so every store or invalidation of a key cancels the fills of the key
+ * queued before it by the same request, which would otherwise bring back the value it replaced. The fills
+ * queued by other requests are not cancelled, so they are written only if the key still holds the value read
+ * before the load (see {@link CacheUtils}).
+ * Outside of a request the writes are not batched.
+ */
+public class RedisBatch {
+
+	private static final Logger Log = Logger.getLogger(RedisBatch.class.getName());
+
+	// batches waiting for the writer, past which new ones are dropped rather than piling up while redis is down
+	private static final int MAX_PENDING = 10_000;
+
+	// a queued write, and the cache key it fills
+	private record Write(String key, Consumer<AbstractPipeline> write) {
+	}
+
+	private static final ThreadLocal<List<Write>> batch = new ThreadLocal<>();
+	private static final BlockingQueue<List<Consumer<AbstractPipeline>>> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+
+	private static Thread writer;
+
+	/**
+	 * Starts batching the writes of the current request.
+	 */
+	public static void begin() {
+		// a request that ended without a response still leaves its writes to send
+		end();
+		batch.set(new ArrayList<>());
+	}
+
+	/**
+	 * Queues a write filling the given cache key in the batch of the current request.
+	 *
+	 * @return false if there is no batch, in which case the caller has to send the write itself
+	 */
+	public static boolean queue(String key, Consumer<AbstractPipeline> write) {
+		var writes = batch.get();
+		if (writes == null)
+			return false;
+		writes.add(new Write(key, write));
+		return true;
+	}
+
+	/**
+	 * Drops the writes of the given cache keys queued so far by the current request, as the keys are being
+	 * stored or invalidated.
+	 */
+	public static void cancel(String... keys) {
+		var writes = batch.get();
+		if (writes == null || writes.isEmpty())
+			return;
+		var cancelled = Set.of(keys);
+		writes.removeIf(w -> cancelled.contains(w.key()));
+	}
+
+	/**
+	 * Ends the batch of the current request and hands its writes to the background writer.
+	 */
+	public static void end() {
+		end(RedisBatch::send);
+	}
+
+	static void end(Consumer<List<Consumer<AbstractPipeline>>> sender) {
+		var writes = batch.get();
+		batch.remove();
+		if (writes != null && !writes.isEmpty())
+			sender.accept(writes.stream().map(Write::write).toList());
+	}
+
+	private static void send(List<Consumer<AbstractPipeline>> writes) {
+		startWriter();
+		if (!pending.offer(writes))
+			Log.warning(() -> "Redis batch writer overloaded, dropped " + writes.size() + " writes");
+	}
+
+	private static synchronized void startWriter() {
+		if (writer != null)
+			return;
+		writer = Threads.daemonFactory("redis-batch-writer").newThread(RedisBatch::write);
+		writer.start();
+	}
+
+	// Sends the pending batches, one pipeline for all that are pending at a time, for as long as the server runs
+	private static void write() {
+		var batches = new ArrayList<List<Consumer<AbstractPipeline>>>();
+		while (true) {
+			try {
+				batches.add(pending.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			pending.drainTo(batches);
+			try (AbstractPipeline p = RedisCachePool.getCache().pipelined()) {
+				for (var writes : batches)
+					writes.forEach(write -> write.accept(p));
+				p.sync();
+			} catch (Exception e) {
+				Log.warning(() -> "Redis batch write error: " + e.getMessage());
+			}
+			batches.clear();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller runs the loader,
+ * the callers that arrive while it runs wait for and share its result.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+	public V run(K key, Supplier<V> loader) {
+		var call = new CompletableFuture<V>();
+		var inFlight = calls.putIfAbsent(key, call);
+		if (inFlight != null) {
+			try {
+				return inFlight.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException re)
+					throw re;
+				throw e;
+			}
+		}
+
+		try {
+			V value = loader.get();
+			call.complete(value);
+			return value;
+		} catch (RuntimeException | Error e) {
+			call.completeExceptionally(e);
+			throw e;
+		} finally {
+			calls.remove(key, call);
+		}
+	}
+
+	/**
+	 * Number of keys being loaded right now.
+	 */
+	public int inFlight() {
+		return calls.size();
+	}
+}
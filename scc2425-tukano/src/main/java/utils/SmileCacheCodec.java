@@ -0,0 +1,103 @@
+package utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of cached values: a format byte followed by the value in Smile, Jackson's binary JSON,
+ * deflated when it is larger than the compression threshold. Smile needs no string decoding and
+ * no number parsing, so it is both smaller and faster to read than JSON text.
+ */
+public class SmileCacheCodec implements CacheCodec {
+
+	// format bytes, below any character JSON text may start with
+	static final byte V1_SMILE = 0x01;
+	static final byte V1_SMILE_DEFLATED = 0x02;
+
+	static final SmileCacheCodec DECODER = new SmileCacheCodec(Integer.MAX_VALUE);
+
+	// the 4 byte Smile header is implied by the format byte, so it is not stored
+	private static final ObjectMapper objectMapper = new ObjectMapper(
+			SmileFactory.builder()
+					.disable(SmileGenerator.Feature.WRITE_HEADER)
+					.disable(SmileParser.Feature.REQUIRE_HEADER)
+					.build());
+
+	private final int compressThreshold;
+
+	/**
+	 * @param compressThreshold size in bytes past which values are deflated
+	 */
+	public SmileCacheCodec(int compressThreshold) {
+		this.compressThreshold = compressThreshold;
+	}
+
+	static boolean isSmile(byte format) {
+		return format == V1_SMILE || format == V1_SMILE_DEFLATED;
+	}
+
+	@Override
+	public byte[] encode(Object value) throws IOException {
+		var smile = objectMapper.writeValueAsBytes(value);
+		if (smile.length <= compressThreshold)
+			return withFormat(V1_SMILE, smile);
+
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(smile);
+			deflater.finish();
+			var out = new ByteArrayOutputStream(smile.length / 2);
+			out.write(V1_SMILE_DEFLATED);
+			var chunk = new byte[4096];
+			while (!deflater.finished())
+				out.write(chunk, 0, deflater.deflate(chunk));
+			return out.size() < smile.length ? out.toByteArray() : withFormat(V1_SMILE, smile);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public <T> T decode(byte[] data, Class<T> clazz) throws IOException {
+		return switch (data[0]) {
+			case V1_SMILE -> objectMapper.readValue(data, 1, data.length - 1, clazz);
+			case V1_SMILE_DEFLATED -> objectMapper.readValue(inflate(data), clazz);
+			default -> throw new IOException("Not a Smile cache entry, format " + data[0]);
+		};
+	}
+
+	private static byte[] inflate(byte[] data) throws IOException {
+		var inflater = new Inflater();
+		try {
+			inflater.setInput(data, 1, data.length - 1);
+			var out = new ByteArrayOutputStream(data.length * 2);
+			var chunk = new byte[4096];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(chunk);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated cache entry");
+				out.write(chunk, 0, n);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] withFormat(byte format, byte[] data) {
+		var res = new byte[data.length + 1];
+		res[0] = format;
+		System.arraycopy(data, 0, res, 1, data.length);
+		return res;
+	}
+}
@@ -0,0 +1,27 @@
+package utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factories for the background threads of the service. All threads are daemons,
+ * so they never keep the server (or a test run) from shutting down.
+ */
+final public class Threads {
+
+	private Threads() {
+	}
+
+	public static ThreadFactory daemonFactory(String name) {
+		return r -> {
+			var t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	public static ScheduledExecutorService daemonScheduler(String name) {
+		return Executors.newSingleThreadScheduledExecutor(daemonFactory(name));
+	}
+}
@@ -0,0 +1,53 @@
+package tukano.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PageTest {
+
+    @Test
+    void testTokenRoundTrip() {
+        String token = Page.token("1700000000000", "user+id/with?odd=chars");
+        assertArrayEquals(new String[]{"1700000000000", "user+id/with?odd=chars"}, Page.keys(token, 2));
+        assertThrows(IllegalArgumentException.class, () -> Page.keys(token, 1));
+        assertThrows(IllegalArgumentException.class, () -> Page.keys("not base64!", 1));
+    }
+
+    @Test
+    void testExtraItemMeansNextPage() {
+        var last = Page.of(List.of("a", "b"), 2, s -> new String[]{s});
+        assertEquals(List.of("a", "b"), last.items());
+        assertFalse(last.hasNext());
+
+        var first = Page.of(List.of("a", "b", "c"), 2, s -> new String[]{s});
+        assertEquals(List.of("a", "b"), first.items());
+        assertEquals("b", Page.keys(first.next(), 1)[0]);
+    }
+
+    @Test
+    void testSliceWalksTheWholeList() {
+        var all = Result.ok(List.of("a", "b", "c", "d", "e"));
+
+        var page = Page.slice(all, null, 2).value();
+        assertEquals(List.of("a", "b"), page.items());
+        page = Page.slice(all, page.next(), 2).value();
+        assertEquals(List.of("c", "d"), page.items());
+        page = Page.slice(all, page.next(), 2).value();
+        assertEquals(List.of("e"), page.items());
+        assertFalse(page.hasNext());
+
+        assertEquals(Result.ErrorCode.BAD_REQUEST, Page.slice(all, "garbage", 2).error());
+        assertEquals(Result.ErrorCode.NOT_FOUND, Page.slice(Result.<List<String>>error(Result.ErrorCode.NOT_FOUND), null, 2).error());
+    }
+
+    @Test
+    void testSizeIsCapped() {
+        assertEquals(Page.DEFAULT_SIZE, Page.size(null));
+        assertEquals(Page.DEFAULT_SIZE, Page.size(0));
+        assertEquals(10, Page.size(10));
+        assertEquals(Page.MAX_SIZE, Page.size(Page.MAX_SIZE + 1));
+    }
+}
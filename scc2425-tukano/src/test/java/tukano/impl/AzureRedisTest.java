@@ -3,15 +3,14 @@ package tukano.impl;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.UnifiedJedis;
 import tukano.api.Result;
 import tukano.api.User;
 import tukano.api.Users;
 import tukano.impl.users.UsersImpl;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static tukano.impl.RedisCachePool.getCachePool;
+import static tukano.impl.RedisCachePool.getCache;
 
 public class AzureRedisTest {
 
@@ -25,22 +24,16 @@ public class AzureRedisTest {
     public static void setUp() {
         // Initialize the AzureUsers instance and clear the Redis cache before testing
         users = UsersImpl.getInstance();
-        JedisPool jedisPool = getCachePool();
-        try (Jedis jedis = jedisPool.getResource()) {
-            // Clear all data in Redis to ensure a clean state for test
-            jedis.flushDB();
-            System.out.println(1);
-        }
+        UnifiedJedis cache = getCache();
+        // Clear all data in Redis to ensure a clean state for test
+        cache.flushDB();
     }
 
     @Test
     public void testRedisConnection() {
         // Check if a Redis connection is established
-        JedisPool pool = RedisCachePool.getCachePool();
-        try (Jedis jedis = pool.getResource()) {
-
-            assertNotNull(jedis, "Redis connection should be established.");
-            assertTrue(jedis.isConnected(), "Redis should be connected.");
+        try {
+            assertEquals("PONG", RedisCachePool.getCache().ping(), "Redis should be connected.");
         } catch (Exception e) {
             fail("Redis connection failed: " + e.getMessage());
         }
@@ -58,12 +51,9 @@ public class AzureRedisTest {
         assertEquals(REDIS_TEST_USER_ID, result.value().getId(), "User ID should match the retrieved value.");
 
         // Check if the user data is cached in Redis
-        JedisPool pool = RedisCachePool.getCachePool();
-        try (Jedis jedis = pool.getResource()) {
-            String cachedUserJson = jedis.get(REDIS_USER_KEY);
-            assertNotNull(cachedUserJson, "User data should be cached in Redis.");
-            assertTrue(cachedUserJson.contains("Redis Cache Test User"), "Cached data should contain correct user information.");
-        }
+        String cachedUserJson = RedisCachePool.getCache().get(REDIS_USER_KEY);
+        assertNotNull(cachedUserJson, "User data should be cached in Redis.");
+        assertTrue(cachedUserJson.contains("Redis Cache Test User"), "Cached data should contain correct user information.");
     }
 
     @Test
@@ -86,39 +76,31 @@ public class AzureRedisTest {
     @Test
     public void testCacheExpiry() throws InterruptedException {
         // Set a short expiry time for testing purposes
-        JedisPool pool = RedisCachePool.getCachePool();
-        try (Jedis jedis = pool.getResource()) {
-            jedis.expire(REDIS_USER_KEY, 2); // Set expiry to 2 seconds
-        }
+        getCache().expire(REDIS_USER_KEY, 2); // Set expiry to 2 seconds
 
         // Wait for the cache to expire
         Thread.sleep(3000);
 
         // Check that the cache no longer contains the user data
-        try (Jedis jedis = getCachePool().getResource()) {
-            String cachedUserJson = jedis.get(REDIS_USER_KEY);
-            assertNull(cachedUserJson, "Cached data should expire and be null.");
-        }
+        String cachedUserJson = getCache().get(REDIS_USER_KEY);
+        assertNull(cachedUserJson, "Cached data should expire and be null.");
     }
 
     @AfterAll
     public static void tearDown() {
         // Clean up Redis cache for the test user after all tests complete
-        try (Jedis jedis = getCachePool().getResource()) {
-            jedis.del(REDIS_USER_KEY);
-        }
+        getCache().del(REDIS_USER_KEY);
     }
 
     @Test
     public void firstTest() {
-        // Get the Redis pool
-        JedisPool pool = RedisCachePool.getCachePool();
-
-        // Get a Redis connection from the pool
-        try (Jedis jedis = pool.getResource()) {
-            // Use the Redis connection to perform some operations
-            jedis.set("example_key4", "example_value4");
-            String value = jedis.get("example_key4");
+        // Get the Redis client
+        UnifiedJedis cache = getCache();
+
+        try {
+            // Use the Redis client to perform some operations
+            cache.set("example_key4", "example_value4");
+            String value = cache.get("example_key4");
 
             System.out.println("Retrieved value: " + value);
         } catch (Exception e) {
@@ -0,0 +1,83 @@
+package tukano.impl;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.models.CosmosBulkExecutionOptions;
+import com.azure.cosmos.models.CosmosBulkItemResponse;
+import com.azure.cosmos.models.CosmosBulkOperationResponse;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.PartitionKey;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class CosmosBulkTest {
+
+    private final CosmosBulk bulk = new CosmosBulk(1000, 2, 3, 10, null);
+
+    @Test
+    void testThrottledOperationsAreRetried() {
+        CosmosContainer container = mock(CosmosContainer.class);
+        var a = delete("a");
+        var b = delete("b");
+        doReturn(List.of(response(a, 204), response(b, 429)))
+                .when(container).executeBulkOperations(eq(List.of(a, b)), any(CosmosBulkExecutionOptions.class));
+        doReturn(List.of(response(b, 204)))
+                .when(container).executeBulkOperations(eq(List.of(b)), any(CosmosBulkExecutionOptions.class));
+
+        var outcome = bulk.execute(container, List.of(a, b), "test");
+
+        assertTrue(outcome.isOK());
+        assertEquals(List.of(a, b), outcome.applied());
+        verify(container).executeBulkOperations(eq(List.of(b)), any(CosmosBulkExecutionOptions.class));
+    }
+
+    @Test
+    void testDeletesOfMissingItemsAreNotFailures() {
+        CosmosContainer container = mock(CosmosContainer.class);
+        var a = delete("a");
+        doReturn(List.of(response(a, 404)))
+                .when(container).executeBulkOperations(any(), any(CosmosBulkExecutionOptions.class));
+
+        var outcome = bulk.execute(container, List.of(a), "test");
+
+        assertTrue(outcome.isOK());
+        assertEquals(1, outcome.missing());
+        assertTrue(outcome.applied().isEmpty());
+    }
+
+    @Test
+    void testRetriesStopAfterMaxAttempts() {
+        CosmosContainer container = mock(CosmosContainer.class);
+        var a = delete("a");
+        doReturn(List.of(response(a, 429)))
+                .when(container).executeBulkOperations(any(), any(CosmosBulkExecutionOptions.class));
+
+        var outcome = bulk.execute(container, List.of(a), "test");
+
+        assertEquals(1, outcome.failed());
+        verify(container, times(3)).executeBulkOperations(any(), any(CosmosBulkExecutionOptions.class));
+    }
+
+    private static CosmosItemOperation delete(String id) {
+        return CosmosBulkOperations.getDeleteItemOperation(id, new PartitionKey(id));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CosmosBulkOperationResponse<Object> response(CosmosItemOperation operation, int status) {
+        CosmosBulkItemResponse item = mock(CosmosBulkItemResponse.class);
+        when(item.getStatusCode()).thenReturn(status);
+        when(item.isSuccessStatusCode()).thenReturn(status / 100 == 2);
+        when(item.getRetryAfterDuration()).thenReturn(Duration.ofMillis(1));
+        CosmosBulkOperationResponse<Object> response = mock(CosmosBulkOperationResponse.class);
+        when(response.getOperation()).thenReturn(operation);
+        when(response.getResponse()).thenReturn(item);
+        return response;
+    }
+}
@@ -0,0 +1,47 @@
+package tukano.impl;
+
+import com.azure.cosmos.models.SqlParameter;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CosmosQueryTest {
+
+    @Test
+    void testValuesAreBoundAsParameters() {
+        var query = CosmosQuery.of("test.byOwner", "SELECT * FROM c WHERE c.ownerId = @userId AND c.id > @after");
+
+        var spec = query.bind("o'brien", "x");
+
+        assertEquals("SELECT * FROM c WHERE c.ownerId = @userId AND c.id > @after", spec.getQueryText());
+        List<SqlParameter> params = spec.getParameters();
+        assertEquals("@userId", params.get(0).getName());
+        assertEquals("o'brien", params.get(0).getValue(String.class));
+        assertEquals("@after", params.get(1).getName());
+    }
+
+    @Test
+    void testListsArePaddedToAPowerOfTwo() {
+        var query = CosmosQuery.of("test.in", "SELECT * FROM c WHERE c.ownerId IN (@owners) AND c.id > @id");
+
+        assertEquals("SELECT * FROM c WHERE c.ownerId IN (@owners_0) AND c.id > @id",
+                query.bind(List.of("a"), "x").getQueryText());
+        var three = query.bind(List.of("a", "b", "c"), "x");
+        assertEquals("SELECT * FROM c WHERE c.ownerId IN (@owners_0, @owners_1, @owners_2, @owners_3) AND c.id > @id",
+                three.getQueryText());
+        assertEquals("c", three.getParameters().get(3).getValue(String.class));
+        assertEquals(three.getQueryText(), query.bind(List.of("d", "e", "f", "g"), "y").getQueryText());
+        assertThrows(IllegalArgumentException.class, () -> query.bind(List.of(), "x"));
+    }
+
+    @Test
+    void testTemplatesAreUniquePerName() {
+        var query = CosmosQuery.of("test.unique", "SELECT * FROM c WHERE c.id = @id");
+
+        assertSame(query, CosmosQuery.of("test.unique", "SELECT * FROM c WHERE c.id = @id"));
+        assertThrows(IllegalArgumentException.class, () -> CosmosQuery.of("test.unique", "SELECT * FROM c"));
+        assertThrows(IllegalArgumentException.class, () -> query.bind("a", "b"));
+    }
+}
@@ -0,0 +1,58 @@
+package tukano.impl;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SQLSchemaTest {
+
+    @Test
+    void testOnlyMigrationsPastTheRecordedVersionAreApplied() throws Exception {
+        Connection connection = mock(Connection.class);
+        Statement stmt = mock(Statement.class);
+        ResultSet version = mock(ResultSet.class);
+        PreparedStatement record = mock(PreparedStatement.class);
+        when(connection.createStatement()).thenReturn(stmt);
+        when(connection.prepareStatement(anyString())).thenReturn(record);
+        when(stmt.executeQuery(anyString())).thenReturn(version);
+        when(version.getInt(1)).thenReturn(SQLSchema.MIGRATIONS.size() - 1);
+
+        assertEquals(1, SQLSchema.migrate(connection));
+
+        var last = SQLSchema.MIGRATIONS.get(SQLSchema.MIGRATIONS.size() - 1);
+        ArgumentCaptor<String> executed = ArgumentCaptor.forClass(String.class);
+        verify(stmt, times(1 + last.statements().length)).execute(executed.capture());
+        assertTrue(executed.getAllValues().get(0).contains("schema_version"));
+        assertEquals(List.of(last.statements()), executed.getAllValues().subList(1, executed.getAllValues().size()));
+        verify(record).setInt(1, last.version());
+        verify(connection).commit();
+    }
+
+    @Test
+    void testUpToDateSchemaIsLeftAlone() throws Exception {
+        Connection connection = mock(Connection.class);
+        Statement stmt = mock(Statement.class);
+        ResultSet version = mock(ResultSet.class);
+        when(connection.createStatement()).thenReturn(stmt);
+        when(stmt.executeQuery(anyString())).thenReturn(version);
+        when(version.getInt(1)).thenReturn(SQLSchema.MIGRATIONS.size());
+
+        assertEquals(0, SQLSchema.migrate(connection));
+        verify(connection, never()).commit();
+    }
+
+    @Test
+    void testVersionsAreConsecutive() {
+        for (int i = 0; i < SQLSchema.MIGRATIONS.size(); i++)
+            assertEquals(i + 1, SQLSchema.MIGRATIONS.get(i).version());
+    }
+}
@@ -0,0 +1,31 @@
+package tukano.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SQLStatementCacheTest {
+
+    @Test
+    void testHitsAreCountedPerConnection() throws Exception {
+        Connection connection1 = mock(Connection.class);
+        Connection connection2 = mock(Connection.class);
+        String sql = "SELECT * FROM Users WHERE id = ?";
+
+        long hits = SQLStatementCache.getHits();
+        long misses = SQLStatementCache.getMisses();
+
+        SQLStatementCache.prepare(connection1, sql);
+        SQLStatementCache.prepare(connection1, sql);
+        SQLStatementCache.prepare(connection2, sql);
+
+        assertEquals(hits + 1, SQLStatementCache.getHits());
+        assertEquals(misses + 2, SQLStatementCache.getMisses());
+        verify(connection1, times(2)).prepareStatement(sql);
+    }
+}
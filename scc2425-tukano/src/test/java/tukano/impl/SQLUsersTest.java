@@ -180,6 +180,21 @@ class SQLUsersTest {
         assertTrue(users.stream().allMatch(u -> u.getPwd() == null));
     }
 
+    @Test
+    void getUsers_ReturnsExistingUsersInOrder() {
+        User user1 = createTestUser();
+        User user2 = new User("testuser2", TEST_PASSWORD, "Test User 2", "test2@example.com");
+
+        sqlUsers.createUser(user1);
+        sqlUsers.createUser(user2);
+
+        Result<List<User>> result = sqlUsers.getUsers(List.of("testuser2", "nosuchuser", TEST_USER_ID, "testuser2"));
+
+        assertTrue(result.isOK());
+        assertEquals(List.of("testuser2", TEST_USER_ID), result.value().stream().map(User::getId).toList());
+        assertTrue(result.value().stream().allMatch(u -> u.getPwd().isEmpty()));
+    }
+
     @Test
     void searchUsers_NoMatches() {
         User user = createTestUser();
@@ -0,0 +1,34 @@
+package tukano.impl.rest.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ByteRangeTest {
+
+    @Test
+    void testRanges() {
+        assertEquals(new ByteRange(0, 100), ByteRange.parse("bytes=0-99", 1000));
+        assertEquals(new ByteRange(900, 100), ByteRange.parse("bytes=900-", 1000));
+        assertEquals(new ByteRange(900, 100), ByteRange.parse("bytes=900-5000", 1000));
+        assertEquals(new ByteRange(950, 50), ByteRange.parse("bytes=-50", 1000));
+        assertEquals(new ByteRange(0, 1000), ByteRange.parse("bytes=-5000", 1000));
+        assertEquals("bytes 0-99/1000", ByteRange.parse("bytes=0-99", 1000).contentRange(1000));
+    }
+
+    @Test
+    void testUnsatisfiableRanges() {
+        assertFalse(ByteRange.parse("bytes=1000-", 1000).isSatisfiable());
+        assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+        assertEquals("bytes */1000", ByteRange.UNSATISFIABLE.contentRange(1000));
+    }
+
+    @Test
+    void testIgnoredHeaders() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=5-1", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("bytes=0-1,5-6", 1000));
+    }
+}
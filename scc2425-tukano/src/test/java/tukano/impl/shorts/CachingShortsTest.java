@@ -0,0 +1,37 @@
+package tukano.impl.shorts;
+
+import org.junit.jupiter.api.Test;
+import tukano.api.Short;
+import tukano.api.Shorts;
+import utils.CachePolicy;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static tukano.api.Result.ok;
+
+public class CachingShortsTest {
+
+    @Test
+    void testListChangedDuringALoadIsNotCached() {
+        Shorts backend = mock(Shorts.class);
+        CachingShorts shorts = new CachingShorts(backend, new CachePolicy(60, 0, 0, 0), 0);
+        String userId = "user-" + UUID.randomUUID();
+        when(backend.createShort(userId, "pwd")).thenReturn(ok(new Short(userId + "+new", userId, "blob")));
+
+        // the first load reads the list, then a short is created before the list is cached
+        when(backend.getShorts(userId))
+                .thenAnswer(invocation -> {
+                    shorts.createShort(userId, "pwd");
+                    return ok(List.of(userId + "+old"));
+                })
+                .thenReturn(ok(List.of(userId + "+old", userId + "+new")));
+
+        // the stale list is not served by the next reads, whether they are answered by redis or by the backend
+        assertEquals(List.of(userId + "+old"), shorts.getShorts(userId).value());
+        assertEquals(List.of(userId + "+old", userId + "+new"), shorts.getShorts(userId).value());
+        assertEquals(List.of(userId + "+old", userId + "+new"), shorts.getShorts(userId).value());
+    }
+}
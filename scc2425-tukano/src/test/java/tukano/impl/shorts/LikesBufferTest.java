@@ -0,0 +1,138 @@
+package tukano.impl.shorts;
+
+import org.junit.jupiter.api.Test;
+import tukano.api.Result;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LikesBufferTest {
+
+    private final List<LikesBuffer.PendingLike> flushed = new ArrayList<>();
+
+    // likes held by the backend, as "userId shortId"
+    private final Set<String> stored = new HashSet<>();
+
+    private boolean isLiked(String shortId, String userId) {
+        return stored.contains(userId + " " + shortId);
+    }
+
+    @Test
+    void testTogglesAreMergedAndVisibleBeforeFlush() {
+        LikesBuffer buffer = new LikesBuffer(flushed::addAll, this::isLiked, 100, 0, 0, 3);
+
+        assertTrue(buffer.add("user1", "short1", "owner", true).isOK());
+        assertTrue(buffer.add("user2", "short1", "owner", true).isOK());
+        assertTrue(buffer.add("user2", "short1", "owner", false).isOK());
+        assertTrue(buffer.add("user2", "short1", "owner", true).isOK());
+
+        assertEquals(2, buffer.pendingDelta("short1"));
+        assertEquals(List.of("user3", "user1", "user2"), buffer.applyTo("short1", List.of("user3")));
+        assertTrue(flushed.isEmpty());
+
+        buffer.flush();
+        assertEquals(2, flushed.size());
+        assertEquals(0, buffer.pendingDelta("short1"));
+    }
+
+    @Test
+    void testUnlikeHidesStoredLike() {
+        stored.add("user1 short1");
+        LikesBuffer buffer = new LikesBuffer(flushed::addAll, this::isLiked, 100, 0, 0, 3);
+
+        assertTrue(buffer.add("user1", "short1", "owner", false).isOK());
+
+        assertEquals(-1, buffer.pendingDelta("short1"));
+        assertEquals(List.of("user2"), buffer.applyTo("short1", List.of("user1", "user2")));
+    }
+
+    @Test
+    void testTogglesThatDoNotChangeTheLikeAreRejected() {
+        stored.add("user1 short1");
+        LikesBuffer buffer = new LikesBuffer(flushed::addAll, this::isLiked, 100, 0, 0, 3);
+
+        assertEquals(Result.ErrorCode.CONFLICT, buffer.add("user1", "short1", "owner", true).error());
+        assertEquals(Result.ErrorCode.NOT_FOUND, buffer.add("user2", "short1", "owner", false).error());
+
+        assertTrue(buffer.add("user2", "short1", "owner", true).isOK());
+        assertEquals(Result.ErrorCode.CONFLICT, buffer.add("user2", "short1", "owner", true).error());
+        assertEquals(1, buffer.pendingDelta("short1"));
+
+        // undoing a buffered toggle leaves nothing to write
+        assertTrue(buffer.add("user2", "short1", "owner", false).isOK());
+        assertEquals(0, buffer.pendingDelta("short1"));
+        buffer.flush();
+        assertTrue(flushed.isEmpty());
+    }
+
+    @Test
+    void testFailedFlushIsRetried() {
+        List<Integer> attempts = new ArrayList<>();
+        LikesBuffer buffer = new LikesBuffer(likes -> {
+            attempts.add(likes.size());
+            if (attempts.size() == 1)
+                throw new IllegalStateException("unavailable");
+            flushed.addAll(likes);
+        }, this::isLiked, 100, 0, 0, 3);
+
+        buffer.add("user1", "short1", "owner", true);
+        buffer.flush();
+        assertEquals(1, buffer.pendingDelta("short1"));
+
+        buffer.flush();
+        assertEquals(List.of(1, 1), attempts);
+        assertEquals(1, flushed.size());
+        assertEquals(0, buffer.pendingDelta("short1"));
+    }
+
+    @Test
+    void testToggleAfterAFailedFlushStartsFromTheStoredState() {
+        LikesBuffer buffer = new LikesBuffer(likes -> {
+            throw new IllegalStateException("unavailable");
+        }, this::isLiked, 100, 0, 0, 3);
+
+        buffer.add("user1", "short1", "owner", true);
+        buffer.flush();
+        assertTrue(buffer.add("user1", "short1", "owner", false).isOK());
+
+        // the like was never written, so the unlike undoes it
+        assertEquals(0, buffer.pendingDelta("short1"));
+        assertTrue(buffer.pending("short1").isEmpty());
+    }
+
+    @Test
+    void testTogglesAreDroppedAfterMaxAttempts() {
+        List<Integer> attempts = new ArrayList<>();
+        LikesBuffer buffer = new LikesBuffer(likes -> {
+            attempts.add(likes.size());
+            throw new IllegalStateException("rejected");
+        }, this::isLiked, 100, 0, 0, 3);
+
+        buffer.add("user1", "short1", "owner", true);
+        for (int i = 0; i < 5; i++)
+            buffer.flush();
+
+        assertEquals(List.of(1, 1, 1), attempts);
+        assertEquals(0, buffer.pendingDelta("short1"));
+    }
+
+    @Test
+    void testFullBufferRejectsAfterMaxWait() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        LikesBuffer buffer = new LikesBuffer(likes -> gate.await(), this::isLiked, 2, 0, 50, 3);
+
+        // the first flush blocks in the sink, so at most two buffers worth of likes are accepted
+        int accepted = 0;
+        while (accepted < 10 && buffer.add("user" + accepted, "short1", "owner", true).isOK())
+            accepted++;
+        assertTrue(accepted >= 2 && accepted <= 4);
+
+        gate.countDown();
+        buffer.close();
+    }
+}
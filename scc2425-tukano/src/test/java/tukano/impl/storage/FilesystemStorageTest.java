@@ -0,0 +1,85 @@
+package tukano.impl.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tukano.api.Result;
+import utils.Hash;
+import utils.Hex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FilesystemStorageTest {
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void testStreamingReadMatchesWrittenBytes() {
+        BlobStorage storage = new FilesystemStorage(rootDir + "/");
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+
+        assertTrue(storage.write("user/blob", data).isOK());
+        var info = storage.stat("user/blob").value();
+        assertEquals(data.length, info.size());
+        assertEquals(Hex.of(Hash.sha256(data)), info.sha256());
+
+        var out = new ByteArrayOutputStream();
+        assertTrue(storage.read("user/blob", out).isOK());
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    void testRangedRead() {
+        BlobStorage storage = new FilesystemStorage(rootDir + "/");
+        byte[] data = "0123456789".getBytes();
+        storage.write("user/blob", data);
+
+        var out = new ByteArrayOutputStream();
+        assertTrue(storage.read("user/blob", 2, 3, out).isOK());
+        assertEquals("234", out.toString());
+
+        out.reset();
+        assertTrue(storage.read("user/blob", 7, 100, out).isOK());
+        assertEquals("789", out.toString());
+    }
+
+    @Test
+    void testRewriteWithOtherContentsConflicts() {
+        BlobStorage storage = new FilesystemStorage(rootDir + "/");
+
+        assertTrue(storage.write("user/blob", "a".getBytes()).isOK());
+        assertTrue(storage.write("user/blob", "a".getBytes()).isOK());
+        assertEquals(Result.ErrorCode.CONFLICT, storage.write("user/blob", "b".getBytes()).error());
+    }
+
+    @Test
+    void testStreamingWriteLeavesNoTempFiles() throws Exception {
+        BlobStorage storage = new FilesystemStorage(rootDir + "/");
+        byte[] data = new byte[1024 * 1024 + 5];
+        new Random(7).nextBytes(data);
+
+        assertTrue(storage.write("user/blob", new ByteArrayInputStream(data)).isOK());
+        assertEquals(Hex.of(Hash.sha256(data)), storage.stat("user/blob").value().sha256());
+        assertEquals(Result.ErrorCode.CONFLICT, storage.write("user/blob", new ByteArrayInputStream(new byte[1])).error());
+
+        try (var files = Files.list(rootDir.resolve("user"))) {
+            assertEquals(List.of("blob", "blob.sha256"), files.map(f -> f.getFileName().toString()).sorted().toList());
+        }
+    }
+
+    @Test
+    void testStreamingReadOfMissingBlob() {
+        BlobStorage storage = new FilesystemStorage(rootDir + "/");
+
+        assertEquals(Result.ErrorCode.NOT_FOUND, storage.stat("user/missing").error());
+        assertEquals(Result.ErrorCode.NOT_FOUND, storage.read("user/missing", new ByteArrayOutputStream()).error());
+    }
+}
@@ -0,0 +1,67 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+import tukano.api.Page;
+import tukano.api.User;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheCodecTest {
+
+    private final User user = new User("userId", "pwd", "user@mail.com", "A User");
+
+    @Test
+    void testBinaryRoundTripIsSmallerThanJson() throws Exception {
+        var binary = new SmileCacheCodec(1024);
+        var json = new JsonCacheCodec();
+
+        byte[] encoded = binary.encode(user);
+        assertEquals(SmileCacheCodec.V1_SMILE, encoded[0]);
+        assertTrue(encoded.length < json.encode(user).length);
+
+        var decoded = CacheCodec.decodeAny(encoded, User.class);
+        assertEquals(user.toString(), decoded.toString());
+        assertEquals(new Session("uuid", "userId"), CacheCodec.decodeAny(binary.encode(new Session("uuid", "userId")), Session.class));
+        assertEquals("token", CacheCodec.decodeAny(binary.encode("token"), String.class));
+    }
+
+    @Test
+    void testPagesAndListsRoundTrip() throws Exception {
+        var binary = new SmileCacheCodec(1024);
+        var page = new Page<>(List.of("a", "b"), "next");
+
+        assertEquals(page, CacheCodec.decodeAny(binary.encode(page), Page.class));
+        assertEquals(new Page<>(List.of(), null), CacheCodec.decodeAny(binary.encode(new Page<>(List.of(), null)), Page.class));
+        assertEquals(List.of("a", "b"), CacheCodec.decodeAny(binary.encode(List.of("a", "b")), List.class));
+    }
+
+    @Test
+    void testLargeValuesAreCompressed() throws Exception {
+        var binary = new SmileCacheCodec(64);
+        var large = new User("userId", "pwd", "user@mail.com", "A User ".repeat(100));
+
+        byte[] encoded = binary.encode(large);
+        assertEquals(SmileCacheCodec.V1_SMILE_DEFLATED, encoded[0]);
+        assertEquals(large.toString(), CacheCodec.decodeAny(encoded, User.class).toString());
+    }
+
+    @Test
+    void testLegacyJsonEntriesStayReadable() throws Exception {
+        var legacy = "{\"id\":\"userId\",\"pwd\":\"pwd\",\"email\":\"user@mail.com\",\"displayName\":\"A User\"}";
+        var decoded = CacheCodec.decodeAny(legacy.getBytes(StandardCharsets.UTF_8), User.class);
+        assertEquals(user.toString(), decoded.toString());
+        assertEquals("token", CacheCodec.decodeAny("\"token\"".getBytes(StandardCharsets.UTF_8), String.class));
+    }
+
+    @Test
+    void testCodecFromProperties() {
+        var props = new Properties();
+        assertInstanceOf(SmileCacheCodec.class, CacheCodec.fromProperties(props));
+        props.setProperty("cacheCodec", "json");
+        assertInstanceOf(JsonCacheCodec.class, CacheCodec.fromProperties(props));
+    }
+}
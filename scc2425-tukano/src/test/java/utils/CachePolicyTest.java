@@ -0,0 +1,44 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachePolicyTest {
+
+    private static final CachePolicy DEFAULTS = new CachePolicy(3600, 0, 0.1, 0.1);
+
+    @Test
+    void testReadsTheKeysOfItsKind() {
+        Properties props = new Properties();
+        props.setProperty("usersCacheTtl", "60");
+        props.setProperty("usersCacheMaxIdle", "10");
+        props.setProperty("shortsCacheTtl", "5");
+
+        assertEquals(new CachePolicy(60, 10, 0.1, 0.1), CachePolicy.fromProperties(props, "users", DEFAULTS));
+        assertEquals(DEFAULTS, CachePolicy.fromProperties(props, "tokens", DEFAULTS));
+    }
+
+    @Test
+    void testExpiryStaysWithinTheJitter() {
+        var policy = new CachePolicy(1000, 0, 0, 0.2);
+        for (int i = 0; i < 1000; i++) {
+            long expiry = policy.expiry();
+            assertTrue(expiry > 800 && expiry <= 1000, String.valueOf(expiry));
+        }
+        assertEquals(1, new CachePolicy(1, 0, 0, 1).expiry());
+    }
+
+    @Test
+    void testRefreshAheadOnlyNearTheExpiry() {
+        var policy = new CachePolicy(100, 0, 0.1, 0);
+        assertFalse(policy.refreshAhead(10_000));
+        assertTrue(policy.refreshAhead(9_999));
+        assertTrue(policy.refreshAhead(0));
+        // no expiry (-1) or no key (-2)
+        assertFalse(policy.refreshAhead(-1));
+        assertFalse(new CachePolicy(100, 0, 0, 0).refreshAhead(0));
+    }
+}
@@ -0,0 +1,67 @@
+package utils;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of token signatures and blob hashes as threads are added, against the former
+ * shared, synchronized digests. After mvn compile, run with:
+ * java -cp target/classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) utils.HashBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    private static MessageDigest sharedMd5;
+
+    private byte[] blob;
+
+    @Setup
+    public void setup() throws Exception {
+        sharedMd5 = MessageDigest.getInstance("MD5");
+        blob = new byte[64 * 1024];
+        new Random(1).nextBytes(blob);
+    }
+
+    @Benchmark
+    public String tokenSignature() {
+        return Hash.of("user", 1730000000000L, "secret");
+    }
+
+    @Benchmark
+    public String tokenSignatureSynchronized() {
+        return synchronizedOf("user", 1730000000000L, "secret");
+    }
+
+    @Benchmark
+    public String blobSha256() {
+        return Hex.of(Hash.sha256(blob));
+    }
+
+    // The implementation Hash.of replaced
+    private static synchronized String synchronizedOf(Object... values) {
+        sharedMd5.reset();
+        for (var o : values)
+            sharedMd5.update(o.toString().getBytes());
+        return String.format("%016X", new BigInteger(1, sharedMd5.digest()));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, Runtime.getRuntime().availableProcessors()})
+            new Runner(new OptionsBuilder()
+                    .include(HashBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+    }
+}
@@ -0,0 +1,59 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashTest {
+
+    @Test
+    void testOfKeepsTokenFormat() throws Exception {
+        var md5 = MessageDigest.getInstance("MD5");
+        for (int i = 0; i < 10_000; i++) {
+            md5.reset();
+            md5.update(("user" + i).getBytes());
+            md5.update(String.valueOf(i).getBytes());
+            var expected = String.format("%016X", new BigInteger(1, md5.digest()));
+            assertEquals(expected, Hash.of("user" + i, i));
+        }
+    }
+
+    @Test
+    void testHexPadsShortData() {
+        assertEquals("00FF0A", Hex.of(new byte[]{0, (byte) 0xFF, 0x0A}));
+        assertEquals("0A00", Hex.of(new byte[]{0x0A}, 2));
+    }
+
+    @Test
+    void testStreamingMatchesArray() throws Exception {
+        byte[] data = new byte[200_000];
+        new Random(3).nextBytes(data);
+        assertArrayEquals(Hash.sha256(data), Hash.sha256(new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    void testConcurrentHashesAreNotMixed() throws Exception {
+        byte[] data = new byte[100_000];
+        new Random(5).nextBytes(data);
+        var expected = Hex.of(Hash.sha256(data));
+
+        var pool = Executors.newFixedThreadPool(8);
+        try {
+            var results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++)
+                results.add(pool.submit(() -> Hex.of(Hash.sha256(data))));
+            for (var r : results)
+                assertEquals(expected, r.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotKeysTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void testKeysReadPastTheThresholdAreHot() {
+        HotKeys hotKeys = new HotKeys(100, 1000, 1.0, 10, now::get);
+        for (int i = 0; i < 99; i++)
+            assertFalse(hotKeys.record("short:viral"));
+        for (int i = 0; i < 50; i++)
+            hotKeys.record("short:other" + i);
+
+        assertTrue(hotKeys.record("short:viral"));
+        assertTrue(hotKeys.isHot("short:viral"));
+        assertFalse(hotKeys.isHot("short:other0"));
+        assertEquals(List.of("short:viral"), List.copyOf(hotKeys.top().keySet()));
+    }
+
+    @Test
+    void testHotKeysCoolDownOnceNoLongerRead() {
+        HotKeys hotKeys = new HotKeys(100, 1000, 1.0, 10, now::get);
+        for (int i = 0; i < 150; i++)
+            hotKeys.record("short:viral");
+        assertTrue(hotKeys.isHot("short:viral"));
+
+        // halved to 75 after one window
+        now.addAndGet(1000);
+        assertTrue(hotKeys.top().isEmpty());
+        assertFalse(hotKeys.isHot("short:viral"));
+    }
+
+    @Test
+    void testOnlyTheHottestKeysAreTracked() {
+        HotKeys hotKeys = new HotKeys(10, 1000, 1.0, 2, now::get);
+        for (int i = 0; i < 30; i++)
+            hotKeys.record("user:a");
+        for (int i = 0; i < 20; i++)
+            hotKeys.record("user:b");
+        for (int i = 0; i < 25; i++)
+            hotKeys.record("user:c");
+
+        assertEquals(List.of("user:a", "user:c"), List.copyOf(hotKeys.top().keySet()));
+        assertFalse(hotKeys.isHot("user:b"));
+    }
+}
@@ -0,0 +1,76 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NearCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void testEntriesExpire() {
+        NearCache<String> cache = new NearCache<>(100, 1000, now::get);
+        cache.put("user:a", "A");
+        assertEquals("A", cache.get("user:a"));
+
+        now.addAndGet(1000);
+        assertNull(cache.get("user:a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testIdleEntriesExpireBeforeTheirTtl() {
+        NearCache<String> cache = new NearCache<>(100, 1000, 300, now::get);
+        cache.put("user:a", "A");
+        cache.put("user:b", "B");
+
+        now.addAndGet(200);
+        assertEquals("A", cache.get("user:a"));
+        now.addAndGet(200);
+        assertEquals("A", cache.get("user:a"));
+        assertNull(cache.get("user:b"));
+
+        // reads keep an entry only until its ttl
+        for (int i = 0; i < 3; i++) {
+            now.addAndGet(200);
+            cache.get("user:a");
+        }
+        assertNull(cache.get("user:a"));
+    }
+
+    @Test
+    void testInvalidate() {
+        NearCache<String> cache = new NearCache<>(100, 1000, now::get);
+        cache.put("user:a", "A");
+        cache.invalidate("user:a");
+        assertNull(cache.get("user:a"));
+    }
+
+    @Test
+    void testScanDoesNotEvictHotEntries() {
+        NearCache<String> cache = new NearCache<>(100, 60_000, now::get);
+        for (int i = 0; i < 100; i++) {
+            cache.put("hot" + i, "v");
+            for (int j = 0; j < 3; j++)
+                cache.get("hot" + i);
+        }
+
+        // one-off keys, while the hot ones keep being read
+        for (int i = 0; i < 10_000; i++) {
+            cache.put("cold" + i, "v");
+            // read through, as CacheUtils does
+            if (cache.get("hot" + i % 100) == null)
+                cache.put("hot" + i % 100, "v");
+        }
+
+        int kept = 0;
+        for (int i = 0; i < 100; i++)
+            if (cache.get("hot" + i) != null)
+                kept++;
+        assertTrue(kept >= 90, "hot entries kept: " + kept);
+        assertTrue(cache.size() <= 100);
+    }
+}
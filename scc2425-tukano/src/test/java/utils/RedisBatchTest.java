@@ -0,0 +1,67 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.AbstractPipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RedisBatchTest {
+
+    @Test
+    void testWritesOutsideARequestAreNotQueued() {
+        assertFalse(RedisBatch.queue("user:a", p -> {}));
+    }
+
+    @Test
+    void testRequestWritesAreSentTogetherOnce() {
+        List<List<Consumer<AbstractPipeline>>> sent = new ArrayList<>();
+        Consumer<AbstractPipeline> first = p -> {};
+        Consumer<AbstractPipeline> second = p -> {};
+
+        RedisBatch.begin();
+        assertTrue(RedisBatch.queue("user:a", first));
+        assertTrue(RedisBatch.queue("user:b", second));
+        RedisBatch.end(sent::add);
+        RedisBatch.end(sent::add);
+
+        assertEquals(List.of(List.of(first, second)), sent);
+        assertFalse(RedisBatch.queue("user:a", p -> {}));
+    }
+
+    @Test
+    void testEmptyBatchesAreNotSent() {
+        List<List<Consumer<AbstractPipeline>>> sent = new ArrayList<>();
+        RedisBatch.begin();
+        RedisBatch.end(sent::add);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    void testFillsQueuedBeforeADeleteAreCancelled() {
+        List<List<Consumer<AbstractPipeline>>> sent = new ArrayList<>();
+        Consumer<AbstractPipeline> staleFill = p -> {};
+        Consumer<AbstractPipeline> otherFill = p -> {};
+        Consumer<AbstractPipeline> laterFill = p -> {};
+
+        RedisBatch.begin();
+        // the read checking the password of the user being deleted
+        RedisBatch.queue("user:a", staleFill);
+        RedisBatch.queue("user:b", otherFill);
+        // the delete of the user
+        RedisBatch.cancel("user:a");
+        // a read after the delete
+        RedisBatch.queue("user:a", laterFill);
+        RedisBatch.end(sent::add);
+
+        assertEquals(List.of(List.of(otherFill, laterFill)), sent);
+    }
+
+    @Test
+    void testCancelOutsideARequestIsIgnored() {
+        assertDoesNotThrow(() -> RedisBatch.cancel("user:a"));
+    }
+}
@@ -0,0 +1,78 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SingleFlightTest {
+
+    @Test
+    void testConcurrentCallersShareOneLoad() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(8, r -> {
+            var t = new Thread(r);
+            threads.add(t);
+            return t;
+        });
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(pool.submit(() -> flight.run("user:a", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                await(release);
+                return "A";
+            })));
+            loading.await();
+            for (int i = 0; i < 7; i++)
+                results.add(pool.submit(() -> flight.run("user:a", () -> {
+                    loads.incrementAndGet();
+                    return "other";
+                })));
+
+            // let the other callers join the running load before it completes
+            while (threads.size() < 8 || threads.stream().anyMatch(t -> t.getState() != Thread.State.WAITING))
+                Thread.sleep(1);
+            release.countDown();
+
+            for (var result : results)
+                assertEquals("A", result.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+            assertEquals(0, flight.inFlight());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailuresPropagateAndAreNotKept() {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        assertThrows(IllegalStateException.class, () -> flight.run("user:a", () -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals("A", flight.run("user:a", () -> "A"));
+    }
+
+    @Test
+    void testKeysLoadIndependently() {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        assertEquals("B", flight.run("user:a", () -> flight.run("user:b", () -> "B")));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}